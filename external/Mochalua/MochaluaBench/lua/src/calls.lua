@@ -0,0 +1,83 @@
+-- Call path benchmarks. Each function runs n operations.
+
+local function fib ( n )
+    if n < 2 then
+        return n
+    end
+    return fib ( n - 1 ) + fib ( n - 2 )
+end
+
+-- One operation is fib ( 15 ), 1973 calls
+function fib15 ( n )
+    local r = 0
+    for i = 1, n do
+        r = fib ( 15 )
+    end
+    return r
+end
+
+-- One operation is fib ( 30 ), 2692537 calls
+function fib30 ( n )
+    local r = 0
+    for i = 1, n do
+        r = fib ( 30 )
+    end
+    return r
+end
+
+local function depth ( n )
+    if n == 0 then
+        return 0
+    end
+    return 1 + depth ( n - 1 )
+end
+
+-- One operation is a recursion 1000 frames deep and back
+function deep ( n )
+    local r = 0
+    for i = 1, n do
+        r = depth ( 1000 )
+    end
+    return r
+end
+
+local Point = {}
+Point.__index = Point
+
+function Point:move ( dx, dy )
+    self.x = self.x + dx
+    self.y = self.y + dy
+    return self
+end
+
+-- One operation is one method call through OP_SELF
+function method ( n )
+    local p = setmetatable ( { x = 0, y = 0 }, Point )
+    for i = 1, n do
+        p:move ( 1, -1 )
+    end
+    return p.x
+end
+
+-- One operation is one Java function call
+function javacall ( n )
+    local abs = math.abs
+    local r = 0
+    for i = 1, n do
+        r = r + abs ( -i )
+    end
+    return r
+end
+
+-- One operation creates two closures sharing three captured locals
+function closures ( n )
+    local r = 0
+    for i = 1, n do
+        local a, b, c = i, i + 1, i + 2
+        local get = function () return a + b + c end
+        local set = function ( v ) a = v end
+        set ( r )
+        r = get () - b - c
+    end
+    return r
+end
@@ -0,0 +1,175 @@
+-- Regression checks run by bench.Checks. Each function returns nothing if
+-- the check passed and the reason otherwise.
+
+-- __gc added to the metatable after setmetatable, the usual newproxy pattern
+function proxygc ( n )
+    local finalized = 0
+    for i = 1, n do
+        local p = newproxy ( true )
+        getmetatable ( p ).__gc = function () finalized = finalized + 1 end
+    end
+    for i = 1, 3 do
+        collectgarbage ( "collect" )
+    end
+    if finalized ~= n then
+        return "finalized " .. finalized .. " of " .. n .. " proxies"
+    end
+end
+
+-- Same, but the proxies stay alive until lua_close. Their __gc calls the
+-- Java function finalized registered by the check.
+function proxygcclose ( n )
+    proxies = {}
+    for i = 1, n do
+        local p = newproxy ( true )
+        getmetatable ( p ).__gc = function () finalized () end
+        proxies[i] = p
+    end
+end
+
+-- Recursion without loops, run by the check under an instruction budget
+function fib ( n )
+    if n < 2 then
+        return n
+    end
+    return fib ( n - 1 ) + fib ( n - 2 )
+end
+
+-- Closures of nested functions and error positions, run by the check on
+-- several threads at once, all sharing the cached prototype of this chunk
+function sharedprototype ( n )
+    for i = 1, n do
+        local make = function ( x ) return function () return x + i end end
+        if make ( 1 ) () ~= i + 1 then
+            return "wrong closure result in run " .. i
+        end
+        local ok, err = pcall ( function () local t = nil; return t.x end )
+        if ok or not string.find ( err, ":%d+: attempt to index local 't'" ) then
+            return "wrong error in run " .. i .. ": " .. tostring ( err )
+        end
+    end
+end
+
+-- Leaves n coroutines suspended with nothing referring to them and one in
+-- the global kept; run with a Java thread per coroutine
+function abandoncoroutines ( n )
+    for i = 1, n do
+        local co = coroutine.create ( function () coroutine.yield () end )
+        coroutine.resume ( co )
+    end
+    kept = coroutine.create ( function () coroutine.yield () return "done" end )
+    coroutine.resume ( kept )
+end
+
+-- The coroutine in kept has to survive the collection of the others
+function resumekept ()
+    local ok, result = coroutine.resume ( kept )
+    if not ok or result ~= "done" then
+        return "resuming the kept coroutine gave " .. tostring ( ok ) .. ", " .. tostring ( result )
+    end
+end
+
+-- Metamethods, string coercion and errors in a function called often enough
+-- to be quickened, so its arithmetic, comparisons and indexing take the
+-- generic path whenever the operands are not plain numbers and tables
+local quickenedmt = {
+    __add = function ( a, b ) return "add" end,
+    __lt = function ( a, b ) return true end,
+    __index = function ( t, k ) return k * 2 end,
+    __newindex = function ( t, k, v ) rawset ( t, k, v * 10 ) end,
+}
+
+local function quickenedstep ( p, i, t )
+    local sum = i + 1
+    local coerced = "10" + i
+    local added = p + i
+    local less = p < p
+    local lessstring = "a" <= "b"
+    local index = p[-i]
+    p[i + 1000] = i
+    t[i] = i / 2
+    local ok, err = pcall ( function () return t.missing + i end )
+    return sum == i + 1 and coerced == 10 + i and added == "add" and less and lessstring
+        and index == -i * 2 and rawget ( p, i + 1000 ) == i * 10 and t[i] == i / 2
+        and not ok and string.find ( err, "arithmetic" ) ~= nil
+end
+
+function quickened ( n )
+    local p, t = setmetatable ( {}, quickenedmt ), {}
+    for i = 1, n do
+        if not quickenedstep ( p, i, t ) then
+            return "wrong result in call " .. i
+        end
+    end
+end
+
+-- Coroutines resuming coroutines n deep, past LUAI_MAXCCALLS; resumes from
+-- Lua run inline and take no Java stack
+local function nestresume ( n )
+    if n == 0 then
+        return "bottom"
+    end
+    local ok, result = coroutine.resume ( coroutine.create ( nestresume ), n - 1 )
+    return ok and result or "resume failed at depth " .. n .. ": " .. tostring ( result )
+end
+
+local function nestwrap ( n )
+    if n == 0 then
+        return "bottom"
+    end
+    return coroutine.wrap ( nestwrap ) ( n - 1 )
+end
+
+function nestedresume ( n )
+    local result = nestresume ( n )
+    if result ~= "bottom" then
+        return result
+    end
+    local ok, result = pcall ( nestwrap, n )
+    if not ok or result ~= "bottom" then
+        return "wrap failed: " .. tostring ( result )
+    end
+end
+
+-- # of tables with holes, the borders reference Lua picks
+function borders ()
+    local holes = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }
+    holes[5] = nil
+    local appended = {}
+    for i = 1, 10 do
+        appended[i] = i
+    end
+    appended[5] = nil
+    local lengths = { #{ 3, nil, 1 }, #holes, #appended, #{ nil, nil, 3 } }
+    local expected = { 3, 10, 10, 3 }
+    for i = 1, #expected do
+        if lengths[i] ~= expected[i] then
+            return "length " .. i .. " is " .. lengths[i] .. " instead of " .. expected[i]
+        end
+    end
+end
+
+-- # of formats, the strings reference Lua prints
+function unsignedformat ()
+    local formatted = { string.format ( "%u", -1 ), string.format ( "%x", -1 ), string.format ( "%05u", 3 ), string.format ( "%u", -12345 ) }
+    local expected = { "18446744073709551615", "ffffffffffffffff", "00003", "18446744073709539271" }
+    for i = 1, #expected do
+        if formatted[i] ~= expected[i] then
+            return "format " .. i .. " is " .. formatted[i] .. " instead of " .. expected[i]
+        end
+    end
+end
+
+-- # of table sizes, sorted with a comparator that is always true
+function invalidorder ()
+    for _, n in ipairs { 4, 100 } do
+        local t = {}
+        for i = 1, n do
+            t[i] = i
+        end
+        local ok, message = pcall ( table.sort, t, function ( a, b ) return true end )
+        if ok or not string.find ( message, "invalid order function for sorting", 1, true ) then
+            return n .. " elements sorted with " .. tostring ( message )
+        end
+    end
+end
@@ -0,0 +1,62 @@
+-- Coroutine benchmarks. Each function runs n operations.
+
+-- One operation is one resume/yield pair
+function resume ( n )
+    local co = coroutine.create ( function ()
+        while true do
+            coroutine.yield ( 1 )
+        end
+    end )
+    local resume = coroutine.resume
+    for i = 1, n do
+        resume ( co )
+    end
+end
+
+-- One operation is one call of a wrapped generator
+function wrap ( n )
+    local gen = coroutine.wrap ( function ()
+        local i = 0
+        while true do
+            i = i + 1
+            coroutine.yield ( i )
+        end
+    end )
+    local s = 0
+    for i = 1, n do
+        s = s + gen ()
+    end
+    return s
+end
+
+-- One operation is creating, running and finishing one coroutine
+function create ( n )
+    for i = 1, n do
+        local co = coroutine.create ( function ( a ) return a end )
+        coroutine.resume ( co, i )
+    end
+end
+
+-- Parked coroutines for the Java side: makes n suspended coroutines
+function park ( n )
+    local cos = {}
+    for i = 1, n do
+        local co = coroutine.create ( function ()
+            while true do
+                coroutine.yield ()
+            end
+        end )
+        coroutine.resume ( co )
+        cos[i] = co
+    end
+    parked = cos
+end
+
+-- Resumes every parked coroutine once, one operation per coroutine
+function switch ( n )
+    local cos = parked
+    local resume = coroutine.resume
+    for i = 1, n do
+        resume ( cos[( i - 1 ) % #cos + 1] )
+    end
+end
@@ -0,0 +1,40 @@
+-- Numeric loop and global access benchmarks. Each function runs n operations.
+
+-- One operation is one loop step with three arithmetic instructions
+function numfor ( n )
+    local s = 0
+    for i = 1, n do
+        s = s + i * 2 - 1
+    end
+    return s
+end
+
+-- Same with fractional values, which can't come from the number cache
+function floatfor ( n )
+    local s = 0.5
+    for i = 1, n do
+        s = s * 1.0000001 + 0.25
+    end
+    return s
+end
+
+-- One operation is one while loop step
+function whileloop ( n )
+    local i, s = 0, 0
+    while i < n do
+        i = i + 1
+        s = s + i % 7
+    end
+    return s
+end
+
+counter = 0
+
+-- One operation is a global read, a global write and a library field read
+function globals ( n )
+    for i = 1, n do
+        counter = counter + 1
+        local f = math.floor
+    end
+    return counter
+end
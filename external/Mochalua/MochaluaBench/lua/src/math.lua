@@ -0,0 +1,60 @@
+-- Math library benchmarks. Each function runs n operations.
+
+-- One operation is one ^ with an integer exponent
+function powint ( n )
+    local r = 0
+    for i = 1, n do
+        r = r + 1.0001 ^ 16
+    end
+    return r
+end
+
+-- One operation is one math.exp and one math.log
+function explog ( n )
+    local exp, log = math.exp, math.log
+    local r = 0
+    for i = 1, n do
+        r = r + log ( exp ( i % 10 + 0.5 ) )
+    end
+    return r
+end
+
+-- One operation is one math.atan and one math.asin
+function trig ( n )
+    local atan, asin = math.atan, math.asin
+    local r = 0
+    for i = 1, n do
+        local x = ( i % 100 ) / 100
+        r = r + atan ( x ) + asin ( x )
+    end
+    return r
+end
+
+-- One operation is one math.tanh
+function hyperbolic ( n )
+    local tanh = math.tanh
+    local r = 0
+    for i = 1, n do
+        r = r + tanh ( ( i % 100 ) / 50 )
+    end
+    return r
+end
+
+-- One operation is one %
+function mod ( n )
+    local r = 0
+    for i = 1, n do
+        r = r + i % 7.5
+    end
+    return r
+end
+
+-- One operation is one math.random
+function random ( n )
+    local random = math.random
+    local r = 0
+    for i = 1, n do
+        r = r + random ()
+    end
+    return r
+end
@@ -0,0 +1,59 @@
+-- Metatable benchmarks. Each function runs n operations.
+
+local Base = { value = 1 }
+Base.__index = Base
+
+local function derive ( parent )
+    local class = setmetatable ( {}, parent )
+    class.__index = class
+    return class
+end
+
+local Level1 = derive ( Base )
+local Level2 = derive ( Level1 )
+local Level3 = derive ( Level2 )
+
+local direct = setmetatable ( {}, Base )
+local deep = setmetatable ( {}, Level3 )
+
+-- One operation is one field read through one __index table
+function index1 ( n )
+    local s = 0
+    for i = 1, n do
+        s = s + direct.value
+    end
+    return s
+end
+
+-- One operation is one field read through a chain of four __index tables
+function index4 ( n )
+    local s = 0
+    for i = 1, n do
+        s = s + deep.value
+    end
+    return s
+end
+
+local proxy = setmetatable ( {}, { __index = function ( t, k ) return 1 end } )
+
+-- One operation is one __index function call
+function indexfunction ( n )
+    local s = 0
+    for i = 1, n do
+        s = s + proxy.value
+    end
+    return s
+end
+
+local Vector = {}
+Vector.__add = function ( a, b ) return setmetatable ( { x = a.x + b.x }, Vector ) end
+
+-- One operation is one __add metamethod call
+function arith ( n )
+    local v = setmetatable ( { x = 0 }, Vector )
+    local one = setmetatable ( { x = 1 }, Vector )
+    for i = 1, n do
+        v = v + one
+    end
+    return v.x
+end
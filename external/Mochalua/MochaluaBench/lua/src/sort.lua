@@ -0,0 +1,46 @@
+-- table.sort benchmarks. One operation is sorting 1000 elements.
+
+local function shuffled ( n )
+    local t = {}
+    local seed = 12345
+    for i = 1, n do
+        -- Fixed generator so every run sorts the same input
+        seed = ( seed * 16807 ) % 2147483647
+        t[i] = seed
+    end
+    return t
+end
+
+local input = shuffled ( 1000 )
+
+local function copy ( t )
+    local c = {}
+    for i = 1, #t do
+        c[i] = t[i]
+    end
+    return c
+end
+
+function sortnumbers ( n )
+    for i = 1, n do
+        table.sort ( copy ( input ) )
+    end
+end
+
+function sortcomparator ( n )
+    local greater = function ( a, b ) return a > b end
+    for i = 1, n do
+        table.sort ( copy ( input ), greater )
+    end
+end
+
+local strings = {}
+for i = 1, #input do
+    strings[i] = tostring ( input[i] )
+end
+
+function sortstrings ( n )
+    for i = 1, n do
+        table.sort ( copy ( strings ) )
+    end
+end
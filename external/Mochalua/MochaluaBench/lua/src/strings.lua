@@ -0,0 +1,50 @@
+-- String benchmarks. Each function runs n operations.
+
+-- One operation is one .. of a short string
+function concat ( n )
+    local s = ""
+    for i = 1, n do
+        s = "item" .. i
+    end
+    return s
+end
+
+-- One operation is appending one piece with table.concat at the end
+function buffer ( n )
+    local t = {}
+    for i = 1, n do
+        t[i] = "x"
+    end
+    return #table.concat ( t )
+end
+
+local text = string.rep ( "the quick brown fox jumps over the lazy dog ", 8 )
+
+-- One operation is one gsub over a 352 character string
+function gsub ( n )
+    local r, c
+    for i = 1, n do
+        r, c = string.gsub ( text, "%w+", "%0!" )
+    end
+    return c
+end
+
+-- One operation is one gmatch step
+function gmatch ( n )
+    local c = 0
+    while c < n do
+        for w in string.gmatch ( text, "%a+" ) do
+            c = c + 1
+        end
+    end
+    return c
+end
+
+-- One operation is one string.format with three conversions
+function format ( n )
+    local s
+    for i = 1, n do
+        s = string.format ( "%d: %5.2f %s", i, i / 3, "x" )
+    end
+    return s
+end
@@ -0,0 +1,118 @@
+-- Table benchmarks. Each function runs n operations.
+
+-- One operation is one array store through t[#t + 1]
+function append ( n )
+    local t = {}
+    for i = 1, n do
+        t[#t + 1] = i
+    end
+    return #t
+end
+
+-- One operation is one table.insert at the end
+function insert ( n )
+    local t = {}
+    local tinsert = table.insert
+    for i = 1, n do
+        tinsert ( t, i )
+    end
+    return #t
+end
+
+local keys = {}
+local hash = {}
+for i = 1, 256 do
+    keys[i] = "key" .. i
+    hash[keys[i]] = i
+end
+
+-- One operation is one string key store in a hash part
+function hashset ( n )
+    local t = {}
+    for i = 1, n do
+        t[keys[i % 256 + 1]] = i
+    end
+    return t
+end
+
+-- One operation is one string key lookup
+function hashget ( n )
+    local s = 0
+    for i = 1, n do
+        s = s + hash[keys[i % 256 + 1]]
+    end
+    return s
+end
+
+local array = {}
+for i = 1, 1000 do
+    array[i] = i
+end
+
+-- One operation is one array read
+function arrayget ( n )
+    local s = 0
+    for i = 1, n do
+        s = s + array[i % 1000 + 1]
+    end
+    return s
+end
+
+-- One operation is one pairs step over the hash part (Table.GetNext)
+function pairshash ( n )
+    local s = 0
+    local steps = 0
+    while steps < n do
+        for k, v in pairs ( hash ) do
+            s = s + v
+        end
+        steps = steps + 256
+    end
+    return s
+end
+
+local big = {}
+for i = 1, 100000 do
+    big["k" .. i] = i
+end
+
+-- One operation is one pairs step over a hash part of 100000 entries
+function pairsbig ( n )
+    local s = 0
+    local steps = 0
+    while steps < n do
+        for k, v in pairs ( big ) do
+            s = s + v
+        end
+        steps = steps + 100000
+    end
+    return s
+end
+
+-- One operation is one ipairs step over the array part
+function ipairsarray ( n )
+    local s = 0
+    local steps = 0
+    while steps < n do
+        for i, v in ipairs ( array ) do
+            s = s + v
+        end
+        steps = steps + 1000
+    end
+    return s
+end
+
+-- One operation is one next call made from Lua
+function nextcall ( n )
+    local s = 0
+    local steps = 0
+    while steps < n do
+        local k, v = next ( hash )
+        while k do
+            s = s + v
+            k, v = next ( hash, k )
+        end
+        steps = steps + 256
+    end
+    return s
+end
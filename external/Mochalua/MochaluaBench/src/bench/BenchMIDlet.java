@@ -0,0 +1,98 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package bench;
+
+import javax.microedition.lcdui.*;
+import javax.microedition.midlet.*;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Runs the BenchRunner suite on a background thread and lists the results.
+// The Bench-Filter, Bench-Warmup, Bench-Iterations and Bench-Millis JAD
+// properties override the defaults.
+public class BenchMIDlet extends MIDlet implements CommandListener, Runnable {
+
+    private Form m_Form;
+    private Command m_ExitCommand;
+    private Thread m_Thread;
+
+    public BenchMIDlet () {
+        this.m_Form = new Form ( "Mochalua benchmarks" );
+        this.m_ExitCommand = new Command ( "Exit", Command.EXIT, 0 );
+        this.m_Form.addCommand ( this.m_ExitCommand );
+        this.m_Form.setCommandListener ( this );
+    }
+
+    public void startApp () {
+        Display.getDisplay ( this ).setCurrent ( this.m_Form );
+        if ( this.m_Thread == null ) {
+            this.m_Thread = new Thread ( this );
+            this.m_Thread.start ();
+        }
+    }
+
+    public void run () {
+        BenchRunner runner = new BenchRunner () {
+
+            protected void Print ( String strLine ) {
+                super.Print ( strLine );
+                if ( strLine.startsWith ( "RESULT," ) == false ) {
+                    m_Form.append ( strLine + "\n" );
+                }
+            }
+        };
+
+        runner.SetFilter ( getAppProperty ( "Bench-Filter" ) );
+        String strValue = getAppProperty ( "Bench-Warmup" );
+        if ( strValue != null ) {
+            runner.SetWarmupIterations ( Integer.parseInt ( strValue.trim () ) );
+        }
+        strValue = getAppProperty ( "Bench-Iterations" );
+        if ( strValue != null ) {
+            runner.SetIterations ( Integer.parseInt ( strValue.trim () ) );
+        }
+        strValue = getAppProperty ( "Bench-Millis" );
+        if ( strValue != null ) {
+            runner.SetIterationMillis ( Long.parseLong ( strValue.trim () ) );
+        }
+
+        runner.RunAll ();
+        this.m_Form.append ( "Done\n" );
+    }
+
+    public void commandAction ( Command command, Displayable displayable ) {
+        if ( command == this.m_ExitCommand ) {
+            destroyApp ( true );
+            notifyDestroyed ();
+        }
+    }
+
+    public void pauseApp () {
+    }
+
+    public void destroyApp ( boolean unconditional ) {
+    }
+}
@@ -0,0 +1,244 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package bench;
+
+import com.groundspeak.mochalua.*;
+import java.util.Vector;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Runs benchmarks JMH style: a few warmup iterations, then measured ones of
+// a fixed length, each counting how many operations fit in it. Workloads
+// and inputs are fixed, so scores of different builds on the same device
+// compare directly. Results are identified by name and batch size, the
+// operations per call of Run. Every result is also printed as a RESULT line of comma
+// separated values for scripts comparing runs.
+public class BenchRunner {
+
+    public static final String FORMAT_VERSION = "1";
+    private int m_iWarmupIterations = 3;
+    private int m_iIterations = 5;
+    private long m_lIterationMillis = 1000;
+    private String m_strFilter;
+
+    public static Benchmark[] GetBenchmarks () {
+        return new Benchmark[] {
+                new LuaBenchmark ( "calls", "fib15", 10 ),
+                new LuaBenchmark ( "calls", "fib30", 1 ),
+                new LuaBenchmark ( "calls", "deep", 100 ),
+                new LuaBenchmark ( "calls", "method", 10000 ),
+                new LuaBenchmark ( "calls", "javacall", 10000 ),
+                new LuaBenchmark ( "calls", "closures", 10000 ),
+                new LuaBenchmark ( "loops", "numfor", 100000 ),
+                new LuaBenchmark ( "loops", "floatfor", 100000 ),
+                new LuaBenchmark ( "loops", "whileloop", 100000 ),
+                new LuaBenchmark ( "loops", "globals", 10000 ),
+                new LuaBenchmark ( "tables", "append", 1000 ),
+                new LuaBenchmark ( "tables", "append", 100000 ),
+                new LuaBenchmark ( "tables", "append", 1000000 ),
+                new LuaBenchmark ( "tables", "insert", 1000 ),
+                new LuaBenchmark ( "tables", "hashset", 10000 ),
+                new LuaBenchmark ( "tables", "hashget", 10000 ),
+                new LuaBenchmark ( "tables", "arrayget", 10000 ),
+                new LuaBenchmark ( "tables", "pairshash", 10000 ),
+                new LuaBenchmark ( "tables", "pairsbig", 100000 ),
+                new LuaBenchmark ( "tables", "ipairsarray", 10000 ),
+                new LuaBenchmark ( "tables", "nextcall", 10000 ),
+                new LuaBenchmark ( "strings", "concat", 1000 ),
+                new LuaBenchmark ( "strings", "buffer", 1000 ),
+                new LuaBenchmark ( "strings", "gsub", 10 ),
+                new LuaBenchmark ( "strings", "gmatch", 1000 ),
+                new LuaBenchmark ( "strings", "format", 1000 ),
+                new LuaBenchmark ( "sort", "sortnumbers", 1 ),
+                new LuaBenchmark ( "sort", "sortcomparator", 1 ),
+                new LuaBenchmark ( "sort", "sortstrings", 1 ),
+                new LuaBenchmark ( "coroutines", "resume", 10000 ),
+                new LuaBenchmark ( "coroutines", "wrap", 10000 ),
+                new LuaBenchmark ( "coroutines", "create", 1000 ),
+                new ParkedCoroutinesBenchmark ( 100000, false ),
+                new ParkedCoroutinesBenchmark ( 1000, true ),
+                new LuaBenchmark ( "meta", "index1", 10000 ),
+                new LuaBenchmark ( "meta", "index4", 10000 ),
+                new LuaBenchmark ( "meta", "indexfunction", 10000 ),
+                new LuaBenchmark ( "meta", "arith", 10000 ),
+                new MathBenchmark ( "powint", 10000, LuaAPI.LUA_MATHPROFILE_SOFTWARE ),
+                new MathBenchmark ( "powint", 10000, LuaAPI.LUA_MATHPROFILE_JDK ),
+                new MathBenchmark ( "explog", 1000, LuaAPI.LUA_MATHPROFILE_SOFTWARE ),
+                new MathBenchmark ( "explog", 1000, LuaAPI.LUA_MATHPROFILE_JDK ),
+                new MathBenchmark ( "trig", 1000, LuaAPI.LUA_MATHPROFILE_SOFTWARE ),
+                new MathBenchmark ( "trig", 1000, LuaAPI.LUA_MATHPROFILE_JDK ),
+                new MathBenchmark ( "hyperbolic", 1000, LuaAPI.LUA_MATHPROFILE_SOFTWARE ),
+                new MathBenchmark ( "hyperbolic", 1000, LuaAPI.LUA_MATHPROFILE_JDK ),
+                new MathBenchmark ( "mod", 10000, LuaAPI.LUA_MATHPROFILE_SOFTWARE ),
+                new MathBenchmark ( "mod", 10000, LuaAPI.LUA_MATHPROFILE_JDK ),
+                new MathBenchmark ( "random", 10000, LuaAPI.LUA_MATHPROFILE_SOFTWARE ),
+                new MathBenchmark ( "random", 10000, LuaAPI.LUA_MATHPROFILE_JDK ),
+                new StatesBenchmark ( 1 ),
+                new StatesBenchmark ( 4 ),
+                new LoadBenchmark ( "calls", false ),
+                new LoadBenchmark ( "calls", true ),
+            };
+    }
+
+    public final void SetWarmupIterations ( int iWarmupIterations ) {
+        this.m_iWarmupIterations = iWarmupIterations;
+    }
+
+    public final void SetIterations ( int iIterations ) {
+        this.m_iIterations = iIterations;
+    }
+
+    public final void SetIterationMillis ( long lIterationMillis ) {
+        this.m_lIterationMillis = lIterationMillis;
+    }
+
+    // Only benchmarks whose name contains strFilter are run
+    public final void SetFilter ( String strFilter ) {
+        this.m_strFilter = strFilter;
+    }
+
+    protected void Print ( String strLine ) {
+        System.out.println ( strLine );
+    }
+
+    public static long UsedMemory () {
+        final Runtime runtime = Runtime.getRuntime ();
+        for ( int iRun = 0; iRun < 3; iRun ++ ) {
+            System.gc ();
+        }
+        return runtime.totalMemory () - runtime.freeMemory ();
+    }
+
+    public final void RunAll () {
+        Print ( "# Mochalua benchmarks, format " + FORMAT_VERSION + ", " + System.getProperty ( "microedition.platform" ) );
+        Print ( "# " + this.m_iWarmupIterations + " warmup and " + this.m_iIterations + " measured iterations of " + this.m_lIterationMillis + " ms" );
+        Print ( "# " + Pad ( "benchmark", 30 ) + Pad ( "batch", 9 ) + "score" );
+
+        final Benchmark[] benchmarks = GetBenchmarks ();
+        for ( int iBenchmark = 0; iBenchmark < benchmarks.length; iBenchmark ++ ) {
+            final Benchmark benchmark = benchmarks[iBenchmark];
+            if ( this.m_strFilter != null && benchmark.GetName ().indexOf ( this.m_strFilter ) == -1 ) {
+                continue;
+            }
+            try {
+                Run ( benchmark );
+            }
+            catch ( Throwable ex ) {
+                Print ( benchmark.GetName () + " failed: " + ex.toString () );
+            }
+            finally {
+                benchmark.TearDown ();
+            }
+        }
+
+        if ( this.m_strFilter == null || MathAccuracy.NAME.indexOf ( this.m_strFilter ) != -1 ) {
+            try {
+                final Vector lines = MathAccuracy.Compare ();
+                for ( int iLine = 0; iLine < lines.size (); iLine ++ ) {
+                    Print ( ( String ) lines.elementAt ( iLine ) );
+                }
+            }
+            catch ( Throwable ex ) {
+                Print ( MathAccuracy.NAME + " failed: " + ex.toString () );
+            }
+        }
+
+        if ( this.m_strFilter == null || Checks.NAME.indexOf ( this.m_strFilter ) != -1 ) {
+            final Vector lines = Checks.Run ();
+            for ( int iLine = 0; iLine < lines.size (); iLine ++ ) {
+                Print ( ( String ) lines.elementAt ( iLine ) );
+            }
+        }
+    }
+
+    // Returns operations per second of every measured iteration
+    public final double[] Run ( Benchmark benchmark ) throws Exception {
+        benchmark.Setup ();
+        for ( int iIteration = 0; iIteration < this.m_iWarmupIterations; iIteration ++ ) {
+            Iterate ( benchmark );
+        }
+
+        final double[] aScores = new double[ this.m_iIterations ];
+        double dSum = 0;
+        double dMin = Double.MAX_VALUE;
+        double dMax = 0;
+        for ( int iIteration = 0; iIteration < this.m_iIterations; iIteration ++ ) {
+            aScores[iIteration] = Iterate ( benchmark );
+            dSum += aScores[iIteration];
+            dMin = Math.min ( dMin, aScores[iIteration] );
+            dMax = Math.max ( dMax, aScores[iIteration] );
+        }
+
+        final double dMean = dSum / aScores.length;
+        double dVariance = 0;
+        for ( int iIteration = 0; iIteration < aScores.length; iIteration ++ ) {
+            dVariance += ( aScores[iIteration] - dMean ) * ( aScores[iIteration] - dMean );
+        }
+        final double dDeviation = aScores.length > 1 ? Math.sqrt ( dVariance / ( aScores.length - 1 ) ) : 0;
+
+        final String strNotes = benchmark.GetNotes ();
+        Print ( Pad ( benchmark.GetName (), 32 ) + Pad ( String.valueOf ( benchmark.GetBatch () ), 9 ) + Pad ( Format ( dMean ), 14 ) + " +- " + Pad ( Format ( dDeviation ), 12 ) + " ops/s" + ( strNotes != null ? "  " + strNotes : "" ) );
+        Print ( "RESULT," + benchmark.GetName () + "," + benchmark.GetBatch () + "," + Format ( dMean ) + "," + Format ( dDeviation ) + "," + Format ( dMin ) + "," + Format ( dMax ) + ",ops/s" );
+        return aScores;
+    }
+
+    private double Iterate ( Benchmark benchmark ) throws Exception {
+        long lOperations = 0;
+        final long lStart = System.currentTimeMillis ();
+        long lElapsed;
+        do {
+            benchmark.Run ();
+            lOperations += benchmark.GetBatch ();
+            lElapsed = System.currentTimeMillis () - lStart;
+        }
+        while ( lElapsed < this.m_lIterationMillis );
+        return lOperations * 1000.0 / lElapsed;
+    }
+
+    // Two decimals, no exponent
+    private static String Format ( double dValue ) {
+        final long lHundredths = ( long ) ( dValue * 100 + 0.5 );
+        final long lFraction = lHundredths % 100;
+        return ( lHundredths / 100 ) + ( lFraction < 10 ? ".0" : "." ) + lFraction;
+    }
+
+    private static String Pad ( String strValue, int iWidth ) {
+        final StringBuffer buffer = new StringBuffer ( strValue );
+        while ( buffer.length () < iWidth ) {
+            buffer.append ( ' ' );
+        }
+        return buffer.toString ();
+    }
+
+    // For running outside a device, as the run-jdk target does: [filter]
+    public static void main ( String[] args ) {
+        final BenchRunner runner = new BenchRunner ();
+        if ( args.length > 0 ) {
+            runner.SetFilter ( args[0] );
+        }
+        runner.RunAll ();
+    }
+}
@@ -0,0 +1,63 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package bench;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// A measured operation. BenchRunner calls Run over and over and counts
+// GetBatch operations per call.
+public abstract class Benchmark {
+
+    private final String m_strName;
+    private final int m_iBatch;
+
+    protected Benchmark ( String strName, int iBatch ) {
+        this.m_strName = strName;
+        this.m_iBatch = iBatch;
+    }
+
+    public final String GetName () {
+        return this.m_strName;
+    }
+
+    public final int GetBatch () {
+        return this.m_iBatch;
+    }
+
+    public void Setup () throws Exception {
+    }
+
+    // Runs GetBatch operations
+    public abstract void Run () throws Exception;
+
+    public void TearDown () {
+    }
+
+    // Additional figures printed after the score, or null
+    public String GetNotes () {
+        return null;
+    }
+}
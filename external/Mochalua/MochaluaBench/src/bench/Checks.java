@@ -0,0 +1,326 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package bench;
+
+import com.groundspeak.mochalua.*;
+import java.util.Vector;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Regression checks of behaviour the benchmarks don't look at. Each check
+// gets a CHECK line of comma separated values: its name and ok, or FAILED
+// and the reason.
+public class Checks {
+
+    public static final String NAME = "checks";
+    private static final int PROXIES = 50;
+    private static final int COROUTINES = 50;
+    private static final int FIB = 27;
+    private static final long BUDGET = 100000;
+    private static final int THREADS = 8;
+    private static final int RUNS = 200;
+    // Well past LVM.HOT_THRESHOLD
+    private static final int QUICKENED_CALLS = 5000;
+    // Five times LuaAPI.LUAI_MAXCCALLS
+    private static final int RESUME_DEPTH = 1000;
+    // The library default
+    private static final int PROTOTYPE_CACHE_ENTRIES = 32;
+
+    // Returns the lines to print
+    public static Vector Run () {
+        final Vector lines = new Vector ();
+        Report ( lines, "proxygc", CheckProxyFinalizers () );
+        Report ( lines, "proxygcclose", CheckProxyFinalizersOnClose () );
+        Report ( lines, "budgetrecursion", CheckBudgetRecursion () );
+        Report ( lines, "sharedprototype", CheckSharedPrototype () );
+        Report ( lines, "coroutinethreads", CheckCoroutineThreads () );
+        Report ( lines, "quickened", CheckQuickened () );
+        Report ( lines, "nestedresume", CheckNestedResume () );
+        Report ( lines, "borders", CheckBorders () );
+        Report ( lines, "unsignedformat", CheckUnsignedFormat () );
+        Report ( lines, "invalidorder", CheckInvalidOrder () );
+        return lines;
+    }
+
+    private static void Report ( Vector lines, String strCheck, String strFailure ) {
+        lines.addElement ( "CHECK," + NAME + "." + strCheck + "," + ( strFailure == null ? "ok" : "FAILED," + strFailure ) );
+    }
+
+    // A state with all libraries and checks.lua loaded
+    private static lua_State OpenState () throws Exception {
+        lua_State L = LuaAPI.lua_open ();
+        LuaAPI.luaL_openlibs ( L );
+        LuaBenchmark.Load ( L, LuaBenchmark.ReadResource ( NAME ), NAME );
+        LuaBenchmark.Call ( L, 0 );
+        return L;
+    }
+
+    // Calls a function of checks.lua and returns its result
+    private static String CallCheck ( lua_State L, String strFunction, int iArg ) {
+        LuaAPI.lua_getglobal ( L, strFunction );
+        LuaAPI.lua_pushinteger ( L, iArg );
+        if ( LuaAPI.lua_pcall ( L, 1, 1, 0 ) != 0 ) {
+            return "error: " + LuaAPI.lua_tostring ( L, -1 );
+        }
+        return LuaAPI.lua_isnil ( L, -1 ) == true ? null : LuaAPI.lua_tostring ( L, -1 );
+    }
+
+    private static String CheckProxyFinalizers () {
+        lua_State L = null;
+        try {
+            L = OpenState ();
+            return CallCheck ( L, "proxygc", PROXIES );
+        }
+        catch ( Exception ex ) {
+            return ex.toString ();
+        }
+        finally {
+            if ( L != null ) {
+                LuaAPI.lua_close ( L );
+            }
+        }
+    }
+
+    private static String CheckProxyFinalizersOnClose () {
+        final int[] aFinalized = new int[ 1 ];
+        try {
+            lua_State L = OpenState ();
+            LuaAPI.lua_pushjavafunction ( L, new JavaFunction () {
+
+                public int Call ( lua_State thread ) {
+                    aFinalized[0] ++;
+                    return 0;
+                }
+            } );
+            LuaAPI.lua_setglobal ( L, "finalized" );
+            String strFailure = CallCheck ( L, "proxygcclose", PROXIES );
+            LuaAPI.lua_close ( L );
+            if ( strFailure != null ) {
+                return strFailure;
+            }
+        }
+        catch ( Exception ex ) {
+            return ex.toString ();
+        }
+        if ( aFinalized[0] != PROXIES ) {
+            return "lua_close finalized " + aFinalized[0] + " of " + PROXIES + " proxies";
+        }
+        return null;
+    }
+
+    // The budget has to stop recursion as well as loops, and stay exhausted
+    private static String CheckBudgetRecursion () {
+        lua_State L = null;
+        try {
+            L = OpenState ();
+            LuaAPI.lua_setbudget ( L, BUDGET );
+            final long lStart = LuaAPI.lua_getinstructioncount ( L );
+            for ( int iRun = 0; iRun < 2; iRun ++ ) {
+                final String strResult = CallCheck ( L, "fib", FIB );
+                if ( strResult == null || strResult.indexOf ( "instruction budget exhausted" ) < 0 ) {
+                    return "run " + ( iRun + 1 ) + " of fib(" + FIB + ") under a budget of " + BUDGET + " returned " + strResult;
+                }
+            }
+            final long lCounted = LuaAPI.lua_getinstructioncount ( L ) - lStart;
+            if ( lCounted < BUDGET ) {
+                return "counted " + lCounted + " instructions of a budget of " + BUDGET;
+            }
+            LuaAPI.lua_setbudget ( L, -1 );
+            return CallCheck ( L, "fib", 2 ).equals ( "1" ) == true ? null : "fib(2) failed once the budget was removed";
+        }
+        catch ( Exception ex ) {
+            return ex.toString ();
+        }
+        finally {
+            if ( L != null ) {
+                LuaAPI.lua_close ( L );
+            }
+        }
+    }
+
+    // Fresh states on several threads load checks.lua at the same time, so
+    // they build the nested functions and debug information of one cached
+    // prototype concurrently
+    private static String CheckSharedPrototype () {
+        LuaAPI.lua_setprototypecache ( 0 );
+        LuaAPI.lua_setprototypecache ( PROTOTYPE_CACHE_ENTRIES );
+        final String[] strFailures = new String[ THREADS ];
+        final Thread[] threads = new Thread[ THREADS ];
+        for ( int iThread = 0; iThread < THREADS; iThread ++ ) {
+            final int iIndex = iThread;
+            threads[iThread] = new Thread () {
+
+                public void run () {
+                    lua_State L = null;
+                    try {
+                        L = OpenState ();
+                        strFailures[iIndex] = CallCheck ( L, "sharedprototype", RUNS );
+                    }
+                    catch ( Exception ex ) {
+                        strFailures[iIndex] = ex.toString ();
+                    }
+                    finally {
+                        if ( L != null ) {
+                            LuaAPI.lua_close ( L );
+                        }
+                    }
+                }
+            };
+            threads[iThread].start ();
+        }
+        for ( int iThread = 0; iThread < THREADS; iThread ++ ) {
+            try {
+                threads[iThread].join ();
+            }
+            catch ( InterruptedException ex ) {
+                return ex.toString ();
+            }
+            if ( strFailures[iThread] != null ) {
+                return "thread " + iThread + ": " + strFailures[iThread];
+            }
+        }
+        if ( LuaAPI.lua_getprototypecache ( LuaAPI.LUA_PCHITS ) == 0 ) {
+            return "no state found checks.lua in the prototype cache";
+        }
+        return null;
+    }
+
+    // The Java threads of suspended coroutines nothing refers to have to end
+    // without lua_close
+    private static String CheckCoroutineThreads () {
+        lua_State L = null;
+        try {
+            L = OpenState ();
+            LuaAPI.lua_setthreadedcoroutines ( L, true );
+            final int iThreadsBefore = Thread.activeCount ();
+            String strFailure = CallCheck ( L, "abandoncoroutines", COROUTINES );
+            if ( strFailure != null ) {
+                return strFailure;
+            }
+            LuaAPI.lua_gc ( L, LuaAPI.LUA_GCCOLLECT, 0 );
+            // The kept coroutine still has its thread
+            final int iThreadsLeft = Thread.activeCount () - iThreadsBefore;
+            if ( iThreadsLeft > 1 ) {
+                return iThreadsLeft + " coroutine threads left of " + ( COROUTINES + 1 );
+            }
+            return CallCheck ( L, "resumekept", 0 );
+        }
+        catch ( Exception ex ) {
+            return ex.toString ();
+        }
+        finally {
+            if ( L != null ) {
+                LuaAPI.lua_close ( L );
+            }
+        }
+    }
+
+    // Quickened instructions have to behave like the generic ones for
+    // operands other than numbers and plain tables
+    private static String CheckQuickened () {
+        lua_State L = null;
+        try {
+            L = OpenState ();
+            return CallCheck ( L, "quickened", QUICKENED_CALLS );
+        }
+        catch ( Exception ex ) {
+            return ex.toString ();
+        }
+        finally {
+            if ( L != null ) {
+                LuaAPI.lua_close ( L );
+            }
+        }
+    }
+
+    // Inline resumes must not count against the Java call limit
+    private static String CheckNestedResume () {
+        lua_State L = null;
+        try {
+            L = OpenState ();
+            return CallCheck ( L, "nestedresume", RESUME_DEPTH );
+        }
+        catch ( Exception ex ) {
+            return ex.toString ();
+        }
+        finally {
+            if ( L != null ) {
+                LuaAPI.lua_close ( L );
+            }
+        }
+    }
+
+    // The length operator has to agree with luaH_getn on tables with holes
+    private static String CheckBorders () {
+        lua_State L = null;
+        try {
+            L = OpenState ();
+            return CallCheck ( L, "borders", 0 );
+        }
+        catch ( Exception ex ) {
+            return ex.toString ();
+        }
+        finally {
+            if ( L != null ) {
+                LuaAPI.lua_close ( L );
+            }
+        }
+    }
+
+    // %u has to print the same 64-bit unsigned value as %x and %o
+    private static String CheckUnsignedFormat () {
+        lua_State L = null;
+        try {
+            L = OpenState ();
+            return CallCheck ( L, "unsignedformat", 0 );
+        }
+        catch ( Exception ex ) {
+            return ex.toString ();
+        }
+        finally {
+            if ( L != null ) {
+                LuaAPI.lua_close ( L );
+            }
+        }
+    }
+
+    // table.sort has to reject a comparator that contradicts itself
+    private static String CheckInvalidOrder () {
+        lua_State L = null;
+        try {
+            L = OpenState ();
+            return CallCheck ( L, "invalidorder", 0 );
+        }
+        catch ( Exception ex ) {
+            return ex.toString ();
+        }
+        finally {
+            if ( L != null ) {
+                LuaAPI.lua_close ( L );
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package bench;
+
+import com.groundspeak.mochalua.*;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Loads and runs the same chunk in many fresh states, with and without the
+// prototype cache, and notes the memory each of these states holds. Running
+// the chunk builds the prototypes of the functions it defines.
+public class LoadBenchmark extends Benchmark {
+
+    private static final int STATES = 50;
+    // The library default
+    private static final int PROTOTYPE_CACHE_ENTRIES = 32;
+    private final String m_strChunk;
+    private final boolean m_bCache;
+    private byte[] m_aChunk;
+    private long m_lBytesPerState;
+    private int m_iHits;
+    private int m_iMisses;
+
+    public LoadBenchmark ( String strChunk, boolean bCache ) {
+        super ( "load." + strChunk + ( bCache == true ? "/cached" : "/uncached" ), STATES );
+        this.m_strChunk = strChunk;
+        this.m_bCache = bCache;
+    }
+
+    public void Setup () throws Exception {
+        // Start from an empty cache
+        LuaAPI.lua_setprototypecache ( 0 );
+        LuaAPI.lua_setprototypecache ( this.m_bCache == true ? PROTOTYPE_CACHE_ENTRIES : 0 );
+        this.m_aChunk = LuaBenchmark.ReadResource ( this.m_strChunk );
+
+        // Keep STATES loaded chunks alive to see what each one costs
+        final lua_State[] states = new lua_State[ STATES ];
+        final long lBefore = BenchRunner.UsedMemory ();
+        final int iHitsBefore = LuaAPI.lua_getprototypecache ( LuaAPI.LUA_PCHITS );
+        final int iMissesBefore = LuaAPI.lua_getprototypecache ( LuaAPI.LUA_PCMISSES );
+        for ( int iState = 0; iState < STATES; iState ++ ) {
+            states[iState] = LuaAPI.lua_open ();
+            LuaBenchmark.Load ( states[iState], this.m_aChunk, this.m_strChunk );
+            LuaBenchmark.Call ( states[iState], 0 );
+        }
+        this.m_lBytesPerState = ( BenchRunner.UsedMemory () - lBefore ) / STATES;
+        this.m_iHits = LuaAPI.lua_getprototypecache ( LuaAPI.LUA_PCHITS ) - iHitsBefore;
+        this.m_iMisses = LuaAPI.lua_getprototypecache ( LuaAPI.LUA_PCMISSES ) - iMissesBefore;
+        for ( int iState = 0; iState < STATES; iState ++ ) {
+            LuaAPI.lua_close ( states[iState] );
+        }
+    }
+
+    public void Run () throws Exception {
+        for ( int iState = 0; iState < STATES; iState ++ ) {
+            lua_State L = LuaAPI.lua_open ();
+            LuaBenchmark.Load ( L, this.m_aChunk, this.m_strChunk );
+            LuaBenchmark.Call ( L, 0 );
+            LuaAPI.lua_close ( L );
+        }
+    }
+
+    public void TearDown () {
+        LuaAPI.lua_setprototypecache ( PROTOTYPE_CACHE_ENTRIES );
+    }
+
+    public String GetNotes () {
+        return this.m_lBytesPerState + " bytes per state, " + this.m_iHits + " cache hits, " + this.m_iMisses + " misses";
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package bench;
+
+import com.groundspeak.mochalua.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Calls a global function of a precompiled script from lua/bin with the
+// batch size as its only argument.
+public class LuaBenchmark extends Benchmark {
+
+    private final String m_strChunk;
+    private final String m_strFunction;
+    private lua_State m_State;
+
+    public LuaBenchmark ( String strChunk, String strFunction, int iBatch ) {
+        super ( strChunk + "." + strFunction, iBatch );
+        this.m_strChunk = strChunk;
+        this.m_strFunction = strFunction;
+    }
+
+    public static byte[] ReadResource ( String strChunk ) throws IOException {
+        InputStream inputStream = LuaBenchmark.class.getResourceAsStream ( "/" + strChunk + ".out" );
+        if ( inputStream == null ) {
+            throw new IOException ( "Missing /" + strChunk + ".out" );
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+            byte[] aBuffer = new byte[ 4096 ];
+            int iBytesRead;
+            while ( ( iBytesRead = inputStream.read ( aBuffer, 0, aBuffer.length ) ) > 0 ) {
+                baos.write ( aBuffer, 0, iBytesRead );
+            }
+            return baos.toByteArray ();
+        }
+        finally {
+            inputStream.close ();
+        }
+    }
+
+    // Loads and runs the script in a new state
+    public static lua_State OpenState ( String strChunk ) throws Exception {
+        lua_State L = LuaAPI.lua_open ();
+        LuaAPI.luaL_openlibs ( L );
+        Load ( L, ReadResource ( strChunk ), strChunk );
+        Call ( L, 0 );
+        return L;
+    }
+
+    public static void Load ( lua_State L, byte[] aChunk, String strChunk ) throws Exception {
+        if ( LuaAPI.lua_load ( L, new ByteArrayInputStream ( aChunk ), null, strChunk ) != 0 ) {
+            throw new Exception ( LuaAPI.lua_tostring ( L, -1 ) );
+        }
+    }
+
+    // Calls the function on top of the stack with nargs arguments and drops
+    // its results
+    public static void Call ( lua_State L, int nargs ) throws Exception {
+        if ( LuaAPI.lua_pcall ( L, nargs, 0, 0 ) != 0 ) {
+            String strError = LuaAPI.lua_tostring ( L, -1 );
+            LuaAPI.lua_settop ( L, 0 );
+            throw new Exception ( strError );
+        }
+    }
+
+    public static void CallGlobal ( lua_State L, String strFunction, int iArg ) throws Exception {
+        LuaAPI.lua_getglobal ( L, strFunction );
+        LuaAPI.lua_pushinteger ( L, iArg );
+        Call ( L, 1 );
+    }
+
+    public void Setup () throws Exception {
+        this.m_State = OpenState ( this.m_strChunk );
+    }
+
+    public void Run () throws Exception {
+        CallGlobal ( this.m_State, this.m_strFunction, GetBatch () );
+    }
+
+    public void TearDown () {
+        if ( this.m_State != null ) {
+            LuaAPI.lua_close ( this.m_State );
+            this.m_State = null;
+        }
+    }
+}
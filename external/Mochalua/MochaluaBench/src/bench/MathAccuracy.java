@@ -0,0 +1,140 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package bench;
+
+import com.groundspeak.mochalua.*;
+import java.util.Vector;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Compares the math library of the software profile with the one of the
+// JDK profile, taken as the reference, on fixed arguments. Each function
+// gets a comment line and an ACCURACY line of comma separated values with
+// its largest relative error and the arguments it was found at. Arguments
+// stay where the software profile terminates: ^ and math.pow only take
+// integer exponents there.
+public class MathAccuracy {
+
+    public static final String NAME = "math.accuracy";
+    private static final String[] FUNCTIONS = {
+        "exp", "log", "log10", "asin", "acos", "atan", "atan2", "sinh", "cosh", "tanh", "pow", "ldexp"
+    };
+    private static final double[][][] ARGUMENTS = {
+        /* exp */ { { -5 }, { -1 }, { -0.1 }, { 0.1 }, { 0.5 }, { 1 }, { 2.5 }, { 10 }, { 50 } },
+        /* log */ { { 0.001 }, { 0.1 }, { 0.5 }, { 0.9 }, { 1.5 }, { 2 }, { 10 }, { 1000 } },
+        /* log10 */ { { 0.001 }, { 0.1 }, { 0.5 }, { 0.9 }, { 1.5 }, { 2 }, { 10 }, { 1000 } },
+        /* asin */ { { -1 }, { -0.9 }, { -0.5 }, { 0 }, { 0.3 }, { 0.5 }, { 0.9 }, { 1 } },
+        /* acos */ { { -1 }, { -0.9 }, { -0.5 }, { 0 }, { 0.3 }, { 0.5 }, { 0.9 }, { 1 } },
+        /* atan */ { { -10 }, { -1 }, { -0.3 }, { 0 }, { 0.2 }, { 0.5 }, { 1 }, { 3 }, { 100 } },
+        /* atan2 */ { { 1, 1 }, { 1, -1 }, { -1, -1 }, { -1, 1 }, { 0.5, 2 }, { 2, 0.5 } },
+        /* sinh */ { { -3 }, { -0.5 }, { 0.1 }, { 1 }, { 2 }, { 5 } },
+        /* cosh */ { { -3 }, { -0.5 }, { 0.1 }, { 1 }, { 2 }, { 5 } },
+        /* tanh */ { { -3 }, { -0.5 }, { 0.1 }, { 1 }, { 2 }, { 5 } },
+        /* pow */ { { 2, 0 }, { 2, 1 }, { 2, 10 }, { 1.5, 7 }, { 0.5, 20 }, { 10, 15 }, { -3, 5 } },
+        /* ldexp */ { { 0.75, -3 }, { 0.75, 0 }, { 0.75, 3 }, { -0.6, 10 }, { 0.9, -1000 } },
+    };
+
+    // Returns the lines to print
+    public static Vector Compare () throws Exception {
+        final Vector lines = new Vector ();
+        final lua_State software = LuaAPI.lua_open ();
+        final lua_State jdk = LuaAPI.lua_open ();
+        try {
+            LuaAPI.luaL_openlibs ( software );
+            LuaAPI.luaL_openlibs ( jdk );
+            if ( LuaAPI.lua_setmathprofile ( jdk, LuaAPI.LUA_MATHPROFILE_JDK ) == 0 ) {
+                lines.addElement ( "# " + NAME + ": math profile jdk is not available" );
+                return lines;
+            }
+
+            for ( int iFunction = 0; iFunction < FUNCTIONS.length; iFunction ++ ) {
+                double dWorstError = -1;
+                double[] aWorstArguments = null;
+                for ( int iCase = 0; iCase < ARGUMENTS[iFunction].length; iCase ++ ) {
+                    final double[] aArguments = ARGUMENTS[iFunction][iCase];
+                    final double dExpected = Evaluate ( jdk, FUNCTIONS[iFunction], aArguments );
+                    final double dActual = Evaluate ( software, FUNCTIONS[iFunction], aArguments );
+                    final double dError = RelativeError ( dActual, dExpected );
+                    if ( dError > dWorstError ) {
+                        dWorstError = dError;
+                        aWorstArguments = aArguments;
+                    }
+                }
+                final String strArguments = Join ( aWorstArguments, " " );
+                lines.addElement ( "# math." + FUNCTIONS[iFunction] + " largest relative error " + dWorstError + " at ( " + Join ( aWorstArguments, ", " ) + " )" );
+                lines.addElement ( "ACCURACY,math." + FUNCTIONS[iFunction] + "," + dWorstError + "," + strArguments );
+            }
+            return lines;
+        }
+        finally {
+            LuaAPI.lua_close ( software );
+            LuaAPI.lua_close ( jdk );
+        }
+    }
+
+    private static double Evaluate ( lua_State L, String strFunction, double[] aArguments ) throws Exception {
+        LuaAPI.lua_getglobal ( L, "math" );
+        LuaAPI.lua_getfield ( L, -1, strFunction );
+        LuaAPI.lua_remove ( L, -2 );
+        for ( int iArgument = 0; iArgument < aArguments.length; iArgument ++ ) {
+            LuaAPI.lua_pushnumber ( L, aArguments[iArgument] );
+        }
+        if ( LuaAPI.lua_pcall ( L, aArguments.length, 1, 0 ) != 0 ) {
+            String strError = LuaAPI.lua_tostring ( L, -1 );
+            LuaAPI.lua_settop ( L, 0 );
+            throw new Exception ( "math." + strFunction + ": " + strError );
+        }
+        final double dResult = LuaAPI.lua_tonumber ( L, -1 );
+        LuaAPI.lua_settop ( L, 0 );
+        return dResult;
+    }
+
+    // Absolute error where the expected value is 0, infinite if only one of
+    // the values is not a number
+    private static double RelativeError ( double dActual, double dExpected ) {
+        if ( Double.isNaN ( dActual ) == true || Double.isNaN ( dExpected ) == true ) {
+            return Double.isNaN ( dActual ) == Double.isNaN ( dExpected ) ? 0 : Double.POSITIVE_INFINITY;
+        }
+        if ( dActual == dExpected ) {
+            return 0;
+        }
+        if ( dExpected == 0 ) {
+            return Math.abs ( dActual );
+        }
+        return Math.abs ( ( dActual - dExpected ) / dExpected );
+    }
+
+    private static String Join ( double[] aValues, String strSeparator ) {
+        final StringBuffer buffer = new StringBuffer ();
+        for ( int iValue = 0; iValue < aValues.length; iValue ++ ) {
+            if ( iValue > 0 ) {
+                buffer.append ( strSeparator );
+            }
+            buffer.append ( aValues[iValue] );
+        }
+        return buffer.toString ();
+    }
+}
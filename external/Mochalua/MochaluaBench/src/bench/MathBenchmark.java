@@ -0,0 +1,77 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package bench;
+
+import com.groundspeak.mochalua.*;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Runs a function of math.lua in a state using the given math profile.
+// Fails if the profile isn't available on the platform.
+public class MathBenchmark extends Benchmark {
+
+    private final String m_strFunction;
+    private final int m_iProfile;
+    private lua_State m_State;
+
+    public MathBenchmark ( String strFunction, int iBatch, int iProfile ) {
+        super ( "math." + strFunction + "/" + GetProfileName ( iProfile ), iBatch );
+        this.m_strFunction = strFunction;
+        this.m_iProfile = iProfile;
+    }
+
+    public static String GetProfileName ( int iProfile ) {
+        return iProfile == LuaAPI.LUA_MATHPROFILE_JDK ? "jdk" : "software";
+    }
+
+    // A state with all libraries, math.lua loaded and the math profile set
+    public static lua_State OpenState ( int iProfile ) throws Exception {
+        lua_State L = LuaAPI.lua_open ();
+        LuaAPI.luaL_openlibs ( L );
+        if ( LuaAPI.lua_setmathprofile ( L, iProfile ) == 0 ) {
+            LuaAPI.lua_close ( L );
+            throw new Exception ( "math profile " + GetProfileName ( iProfile ) + " is not available" );
+        }
+        LuaBenchmark.Load ( L, LuaBenchmark.ReadResource ( "math" ), "math" );
+        LuaBenchmark.Call ( L, 0 );
+        return L;
+    }
+
+    public void Setup () throws Exception {
+        this.m_State = OpenState ( this.m_iProfile );
+    }
+
+    public void Run () throws Exception {
+        LuaBenchmark.CallGlobal ( this.m_State, this.m_strFunction, GetBatch () );
+    }
+
+    public void TearDown () {
+        if ( this.m_State != null ) {
+            LuaAPI.lua_close ( this.m_State );
+            this.m_State = null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package bench;
+
+import com.groundspeak.mochalua.*;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Parks many suspended coroutines and resumes them round robin. Notes the
+// memory each parked coroutine holds; the score is switches per second.
+public class ParkedCoroutinesBenchmark extends Benchmark {
+
+    private final int m_iCoroutines;
+    private final boolean m_bThreaded;
+    private lua_State m_State;
+    private long m_lBytesPerCoroutine;
+
+    public ParkedCoroutinesBenchmark ( int iCoroutines, boolean bThreaded ) {
+        super ( "coroutines.parked/" + iCoroutines + ( bThreaded == true ? "/threaded" : "" ), Math.min ( iCoroutines, 10000 ) );
+        this.m_iCoroutines = iCoroutines;
+        this.m_bThreaded = bThreaded;
+    }
+
+    public void Setup () throws Exception {
+        this.m_State = LuaBenchmark.OpenState ( "coroutines" );
+        LuaAPI.lua_setthreadedcoroutines ( this.m_State, this.m_bThreaded );
+
+        final long lBefore = BenchRunner.UsedMemory ();
+        LuaBenchmark.CallGlobal ( this.m_State, "park", this.m_iCoroutines );
+        this.m_lBytesPerCoroutine = ( BenchRunner.UsedMemory () - lBefore ) / this.m_iCoroutines;
+    }
+
+    public void Run () throws Exception {
+        LuaBenchmark.CallGlobal ( this.m_State, "switch", GetBatch () );
+    }
+
+    public void TearDown () {
+        if ( this.m_State != null ) {
+            LuaAPI.lua_close ( this.m_State );
+            this.m_State = null;
+        }
+    }
+
+    public String GetNotes () {
+        return this.m_lBytesPerCoroutine + " bytes per parked coroutine";
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package bench;
+
+import com.groundspeak.mochalua.*;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Independent states running fib15 on Java threads of their own. Compared
+// with a single thread it shows how well separate interpreters scale.
+public class StatesBenchmark extends Benchmark {
+
+    private static final int OPS_PER_THREAD = 4;
+    private final int m_iThreads;
+    private lua_State[] m_States;
+
+    public StatesBenchmark ( int iThreads ) {
+        super ( "states.fib15/" + iThreads, iThreads * OPS_PER_THREAD );
+        this.m_iThreads = iThreads;
+    }
+
+    public void Setup () throws Exception {
+        this.m_States = new lua_State[ this.m_iThreads ];
+        for ( int iState = 0; iState < this.m_iThreads; iState ++ ) {
+            this.m_States[iState] = LuaBenchmark.OpenState ( "calls" );
+        }
+    }
+
+    public void Run () throws Exception {
+        final Thread[] threads = new Thread[ this.m_iThreads ];
+        final Exception[] errors = new Exception[ this.m_iThreads ];
+        for ( int iThread = 0; iThread < this.m_iThreads; iThread ++ ) {
+            final int iIndex = iThread;
+            threads[iThread] = new Thread ( new Runnable () {
+
+                public void run () {
+                    try {
+                        LuaBenchmark.CallGlobal ( m_States[iIndex], "fib15", OPS_PER_THREAD );
+                    }
+                    catch ( Exception ex ) {
+                        errors[iIndex] = ex;
+                    }
+                }
+            } );
+            threads[iThread].start ();
+        }
+        for ( int iThread = 0; iThread < this.m_iThreads; iThread ++ ) {
+            threads[iThread].join ();
+            if ( errors[iThread] != null ) {
+                throw errors[iThread];
+            }
+        }
+    }
+
+    public void TearDown () {
+        for ( int iState = 0; this.m_States != null && iState < this.m_States.length; iState ++ ) {
+            if ( this.m_States[iState] != null ) {
+                LuaAPI.lua_close ( this.m_States[iState] );
+            }
+        }
+        this.m_States = null;
+    }
+}
@@ -0,0 +1,101 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+import java.util.SplittableRandom;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Math profile for states running on a Java SE 8 or later VM: everything
+// is delegated to java.lang.Math, whose functions the VM compiles to
+// intrinsics, and math.random uses a SplittableRandom of the state.
+// This source root is only built by the jar-jdk target,
+// LuaAPI.lua_setmathprofile loads the class by name where it is on the
+// classpath.
+class JdkMath implements MathProfile {
+
+    private SplittableRandom m_Random;
+
+    public JdkMath () {
+        this.m_Random = new SplittableRandom ();
+    }
+
+    public double Pow ( double a, double b ) {
+        return Math.pow ( a, b );
+    }
+
+    public double Exp ( double x ) {
+        return Math.exp ( x );
+    }
+
+    public double Log ( double x ) {
+        return Math.log ( x );
+    }
+
+    public double Log10 ( double x ) {
+        return Math.log10 ( x );
+    }
+
+    public double Asin ( double x ) {
+        return Math.asin ( x );
+    }
+
+    public double Acos ( double x ) {
+        return Math.acos ( x );
+    }
+
+    public double Atan ( double x ) {
+        return Math.atan ( x );
+    }
+
+    public double Atan2 ( double y, double x ) {
+        return Math.atan2 ( y, x );
+    }
+
+    public double Sinh ( double x ) {
+        return Math.sinh ( x );
+    }
+
+    public double Cosh ( double x ) {
+        return Math.cosh ( x );
+    }
+
+    public double Tanh ( double x ) {
+        return Math.tanh ( x );
+    }
+
+    public double Ldexp ( double d, int e ) {
+        return Math.scalb ( d, e );
+    }
+
+    public double Random () {
+        return this.m_Random.nextDouble ();
+    }
+
+    public void SetRandomSeed ( long lSeed ) {
+        this.m_Random = new SplittableRandom ( lSeed );
+    }
+}
@@ -0,0 +1,41 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Coroutine threads for Java SE: daemon threads, so a coroutine left
+// suspended doesn't keep the VM from exiting when lua_close is never called.
+// Built by the jar-jdk target, CoroutineThread loads the class by name where
+// it is on the classpath.
+class JdkThreadFactory implements CoroutineThread.Factory {
+
+    public Thread NewThread ( Runnable runnable ) {
+        final Thread thread = new Thread ( runnable, "Mochalua coroutine" );
+        thread.setDaemon ( true );
+        return thread;
+    }
+}
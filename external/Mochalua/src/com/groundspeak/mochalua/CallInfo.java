@@ -61,13 +61,26 @@ class CallInfo {
     }
 
     public CallInfo ( lua_State thread, Function function, int iLocalStackBase, int iReturnBase, int iResultsWanted, int iArgsQuantity ) {
+        this.m_Thread = thread;
+        Init ( function, iLocalStackBase, iReturnBase, iResultsWanted, iArgsQuantity );
+    }
+
+    // Drops the function of a finished call, so a popped call info which
+    // waits for reuse doesn't keep its closure alive
+    final void Release () {
+        this.m_Function = null;
+    }
+
+    // Sets the call info up for a new call, see lua_State.PushCallInfo
+    final void Init ( Function function, int iLocalStackBase, int iReturnBase, int iResultsWanted, int iArgsQuantity ) {
+        final lua_State thread = this.m_Thread;
         this.m_iArgsQuantity = iArgsQuantity;
         this.m_iResultsWanted = iResultsWanted;
         this.m_iReturnBase = iReturnBase;
         this.m_Function = function;
-        this.m_Thread = thread;
         this.m_iIP = 0;
         this.m_iTailCalls = 0;
+        this.m_iTopToRestore = 0;
         this.m_iLocalObjectsStackBase = iLocalStackBase;
 
         if ( m_Function == null ) {
@@ -243,17 +256,24 @@ class CallInfo {
                 if ( res != null && resStr != null ) {
 
                     int nStrings = 0;
+                    int iLength = resStr.length ();
                     int pos = iLast;
                     while ( iFirst <= pos ) {
                         Object o = GetValue ( pos );
                         pos --;
-                        if ( LuaBaseLib.ConvertToString ( o ) == null ) {
+                        if ( o instanceof String ) {
+                            iLength += ( ( String ) o ).length ();
+                        }
+                        else if ( o instanceof Double ) {
+                            iLength += 8;
+                        }
+                        else {
                             break;
                         }
                         nStrings ++;
                     }
                     if ( nStrings > 0 ) {
-                        StringBuffer concatBuffer = new StringBuffer ();
+                        StringBuffer concatBuffer = new StringBuffer ( iLength );
 
                         int firstString = iLast - nStrings + 1;
                         while ( firstString <= iLast ) {
@@ -262,7 +282,8 @@ class CallInfo {
                         }
                         concatBuffer.append ( resStr );
 
-                        res = concatBuffer.toString ().intern ();
+                        // Not interned: string equality goes through equals ()
+                        res = concatBuffer.toString ();
 
                         iLast = iLast - nStrings;
                     }
@@ -271,9 +292,9 @@ class CallInfo {
 
             if ( iFirst <= iLast ) {
                 Object leftConcat = GetValue ( iLast );
-                Function function = ( Function ) lua_State.GetMetaTableObjectByObject ( leftConcat, LVM.TM_CONCAT );
+                Function function = ( Function ) m_Thread.GetMetaTableObjectByObject ( leftConcat, LVM.TM_CONCAT );
                 if ( function == null ) {
-                    function = ( Function ) lua_State.GetMetaTableObjectByObject ( res, LVM.TM_CONCAT );
+                    function = ( Function ) m_Thread.GetMetaTableObjectByObject ( res, LVM.TM_CONCAT );
                 }
                 if ( function == null ) {
                     //throw new RuntimeException( "missing __concat for " + leftConcat + " and " + res );
@@ -0,0 +1,156 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Reads a little endian precompiled chunk held in one byte array. Readers
+// made by At share the array, so every function of a chunk can keep one to
+// read its nested functions and debug information later.
+class ChunkReader {
+
+    private final byte[] m_Data;
+    private final int m_iSizeOfsize_t;
+    private int m_iPosition;
+
+    public ChunkReader ( byte[] aData, int iPosition, int iSizeOfsize_t ) {
+        this.m_Data = aData;
+        this.m_iPosition = iPosition;
+        this.m_iSizeOfsize_t = iSizeOfsize_t;
+    }
+
+    public final ChunkReader At ( int iPosition ) {
+        return new ChunkReader ( this.m_Data, iPosition, this.m_iSizeOfsize_t );
+    }
+
+    public final int GetPosition () {
+        return this.m_iPosition;
+    }
+
+    // False when a skip has gone past the end of the chunk
+    public final boolean IsComplete () {
+        return this.m_iPosition <= this.m_Data.length;
+    }
+
+    public final int ReadByte () {
+        return this.m_Data[this.m_iPosition ++] & 0xFF;
+    }
+
+    public final int ReadInt () {
+        final byte[] aData = this.m_Data;
+        final int iPosition = this.m_iPosition;
+        this.m_iPosition = iPosition + 4;
+        return ( aData[iPosition] & 0xFF ) | ( ( aData[iPosition + 1] & 0xFF ) << 8 ) | ( ( aData[iPosition + 2] & 0xFF ) << 16 ) | ( aData[iPosition + 3] << 24 );
+    }
+
+    public final long ReadLong () {
+        final long lLow = ReadInt () & 0xFFFFFFFFL;
+        return ( ( long ) ReadInt () << 32 ) | lLow;
+    }
+
+    // Fills aInts from consecutive ints
+    public final void ReadInts ( int[] aInts ) {
+        final byte[] aData = this.m_Data;
+        int iPosition = this.m_iPosition;
+        if ( iPosition + aInts.length * 4 > aData.length ) {
+            throw new ArrayIndexOutOfBoundsException ( iPosition + aInts.length * 4 );
+        }
+        for ( int iInt = 0; iInt < aInts.length; iInt ++, iPosition += 4 ) {
+            aInts[iInt] = ( aData[iPosition] & 0xFF ) | ( ( aData[iPosition + 1] & 0xFF ) << 8 ) | ( ( aData[iPosition + 2] & 0xFF ) << 16 ) | ( aData[iPosition + 3] << 24 );
+        }
+        this.m_iPosition = iPosition;
+    }
+
+    private int ReadSize () {
+        return this.m_iSizeOfsize_t == 4 ? ReadInt () : ( int ) ReadLong ();
+    }
+
+    public final String ReadString () {
+        final int iLength = ReadSize ();
+        if ( iLength == 0 ) {
+            return null;
+        }
+        // The terminating null char is not needed
+        final String string = new String ( this.m_Data, this.m_iPosition, iLength - 1 );
+        this.m_iPosition += iLength;
+        return string;
+    }
+
+    private void SkipString () {
+        final int iLength = ReadSize ();
+        this.m_iPosition += iLength;
+    }
+
+    // Moves past a function with all its nested functions without building
+    // any of them
+    public final void SkipFunction () {
+        SkipString ();
+        this.m_iPosition += 4 + 4 + 4;  // lines defined, upvalues, params, vararg, max stack size
+        final int iCodeSize = ReadInt ();
+        this.m_iPosition += 4 * iCodeSize;
+
+        final int iConstantsQuantity = ReadInt ();
+        for ( int iConstant = 0; iConstant < iConstantsQuantity; iConstant ++ ) {
+            switch ( ReadByte () ) {
+                case LuaAPI.LUA_TBOOLEAN: {
+                    this.m_iPosition += 1;
+                    break;
+                }
+                case LuaAPI.LUA_TNUMBER: {
+                    this.m_iPosition += 8;
+                    break;
+                }
+                case LuaAPI.LUA_TSTRING: {
+                    SkipString ();
+                    break;
+                }
+            }
+        }
+
+        final int iLuaFunctionsQuantity = ReadInt ();
+        for ( int iLuaFunction = 0; iLuaFunction < iLuaFunctionsQuantity; iLuaFunction ++ ) {
+            SkipFunction ();
+        }
+
+        SkipDebug ();
+    }
+
+    public final void SkipDebug () {
+        final int iDebugLines = ReadInt ();
+        this.m_iPosition += 4 * iDebugLines;
+
+        final int iLocalVariablesQuantity = ReadInt ();
+        for ( int iLocVar = 0; iLocVar < iLocalVariablesQuantity; iLocVar ++ ) {
+            SkipString ();
+            this.m_iPosition += 8;
+        }
+
+        final int iUpValuesNames = ReadInt ();
+        for ( int iUpValuesName = 0; iUpValuesName < iUpValuesNames; iUpValuesName ++ ) {
+            SkipString ();
+        }
+    }
+}
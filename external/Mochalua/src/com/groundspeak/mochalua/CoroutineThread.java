@@ -0,0 +1,188 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+import java.lang.ref.WeakReference;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Runs a coroutine on a Java thread of its own. Resume and Yield hand control
+// back and forth through this monitor, so only one side runs Lua code at a
+// time and a suspended coroutine keeps the Java frames it yielded from.
+// Those frames hold the state of the coroutine, so Lua values refer to a
+// handle of it instead; once the handle is garbage the thread is ended the
+// way lua_close ends it, see global_State.ReclaimCoroutineThreads.
+class CoroutineThread implements Runnable {
+
+    // Makes the Java threads of coroutines
+    static interface Factory {
+
+        public Thread NewThread ( Runnable runnable );
+    }
+
+    // Unwinds the thread of a coroutine closed while suspended; an Error so
+    // that pcall and lua_resume let it through
+    private static final class Closed extends Error {
+    }
+    // Makes daemon threads on Java SE, so suspended coroutines don't keep
+    // the VM running. Only the Java SE build of the jar-jdk target has the
+    // class; CLDC threads can't be daemons.
+    private static final String JDK_FACTORY_CLASS = "com.groundspeak.mochalua.JdkThreadFactory";
+    private static final Factory m_Factory = LoadFactory ();
+    private final lua_State m_Thread;
+    private final WeakReference m_Handle;
+    // The handle while the coroutine runs, when Lua may ask for it
+    private lua_State m_RunningHandle;
+    private Thread m_JavaThread;
+    private boolean m_bRunning;
+    private boolean m_bClosed;
+    private int m_iArgsQuantity;
+    private int m_iStatus;
+
+    private CoroutineThread ( lua_State thread, lua_State handle ) {
+        this.m_Thread = thread;
+        this.m_Handle = new WeakReference ( handle );
+    }
+
+    // Gives the state of a new coroutine a thread and returns its handle
+    public static lua_State Create ( lua_State thread ) {
+        final lua_State handle = new lua_State ( thread );
+        thread.SetCoroutineThread ( new CoroutineThread ( thread, handle ) );
+        return handle;
+    }
+
+    private static Factory LoadFactory () {
+        try {
+            return ( Factory ) Class.forName ( JDK_FACTORY_CLASS ).newInstance ();
+        }
+        catch ( ClassNotFoundException ex ) {
+        }
+        catch ( InstantiationException ex ) {
+        }
+        catch ( IllegalAccessException ex ) {
+        }
+        catch ( NoClassDefFoundError ex ) {
+        }
+        return null;
+    }
+
+    public final synchronized lua_State GetHandle () {
+        if ( this.m_RunningHandle != null ) {
+            return this.m_RunningHandle;
+        }
+        return ( lua_State ) this.m_Handle.get ();
+    }
+
+    // True for a started coroutine which is suspended and can never be
+    // resumed again
+    public final synchronized boolean IsGarbage () {
+        return this.m_bRunning == false && this.m_Handle.get () == null;
+    }
+
+    // Called by the resuming thread once the arguments are on the coroutine
+    // stack; returns the status after the coroutine yields, ends or fails
+    public final synchronized int Resume ( int iArgsQuantity ) {
+        this.m_iArgsQuantity = iArgsQuantity;
+        this.m_bRunning = true;
+        this.m_RunningHandle = ( lua_State ) this.m_Handle.get ();
+        if ( this.m_JavaThread == null ) {
+            this.m_Thread.GetGlobalState ().AddCoroutineThread ( this );
+            this.m_JavaThread = m_Factory != null ? m_Factory.NewThread ( this ) : new Thread ( this );
+            this.m_JavaThread.start ();
+        }
+        else {
+            notifyAll ();
+        }
+        WaitFor ( false );
+        return this.m_iStatus;
+    }
+
+    // Called by lua_yield on the coroutine thread; returns the number of
+    // values passed to the resume that continues it
+    public final synchronized int Yield () {
+        this.m_Thread.SetStatus ( LuaBaseLib.LUA_YIELD );
+        this.m_iStatus = LuaBaseLib.LUA_YIELD;
+        this.m_bRunning = false;
+        this.m_RunningHandle = null;
+        notifyAll ();
+        WaitFor ( true );
+        if ( this.m_bClosed == true ) {
+            throw new Closed ();
+        }
+        this.m_Thread.SetStatus ( 0 );
+        return this.m_iArgsQuantity;
+    }
+
+    // Ends the thread of a coroutine suspended in Yield and waits until it
+    // has unwound, so no two threads run Lua code of the state
+    public final void Close () {
+        synchronized ( this ) {
+            this.m_bClosed = true;
+            notifyAll ();
+        }
+        if ( this.m_JavaThread != null && this.m_JavaThread != Thread.currentThread () ) {
+            try {
+                this.m_JavaThread.join ();
+            }
+            catch ( InterruptedException e ) {
+            }
+        }
+    }
+
+    public void run () {
+        int iStatus;
+        try {
+            iStatus = LuaAPI.lua_resume ( this.m_Thread, this.m_iArgsQuantity );
+        }
+        catch ( Closed e ) {
+            return;
+        }
+        catch ( Throwable e ) {
+            this.m_Thread.SetStatus ( -1 );
+            LuaAPI.lua_pushstring ( this.m_Thread, "a java exception occurred within the coroutine" );
+            iStatus = -1;
+        }
+        Finish ( iStatus );
+    }
+
+    private synchronized void Finish ( int iStatus ) {
+        this.m_Thread.GetGlobalState ().RemoveCoroutineThread ( this );
+        this.m_iStatus = iStatus;
+        this.m_bRunning = false;
+        this.m_RunningHandle = null;
+        notifyAll ();
+    }
+
+    private void WaitFor ( boolean bRunning ) {
+        while ( this.m_bRunning != bRunning && this.m_bClosed == false ) {
+            try {
+                wait ();
+            }
+            catch ( InterruptedException e ) {
+            }
+        }
+    }
+}
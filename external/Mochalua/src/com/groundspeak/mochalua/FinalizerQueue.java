@@ -0,0 +1,107 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+import java.lang.ref.WeakReference;
+import java.util.Vector;
+
+/**
+ *
+ * @author a.fornwald
+ */
+class FinalizerQueue {
+
+    private final class Entry {
+
+        private WeakReference m_UserData;
+        private UserData.Body m_Body;
+
+        public Entry ( UserData userData ) {
+            this.m_UserData = new WeakReference ( userData );
+            this.m_Body = userData.GetBody ();
+        }
+    }
+    private Vector m_Entries;
+    private int m_iThreshold;
+    private boolean m_bIsRunning;
+    // Don't poll the references until that many userdata are registered
+    private static final int MIN_THRESHOLD = 16;
+
+    public FinalizerQueue () {
+        this.m_Entries = new Vector ();
+        this.m_iThreshold = MIN_THRESHOLD;
+        this.m_bIsRunning = false;
+    }
+
+    public final void Register ( UserData userData ) {
+        if ( userData.GetIsFinalizable () == true ) {
+            return;
+        }
+
+        userData.SetIsFinalizable ( true );
+        this.m_Entries.addElement ( new Entry ( userData ) );
+    }
+
+    // Safe point: runs the finalizers of collected userdata once enough of them were registered
+    public final void Step ( lua_State thread ) {
+        if ( this.m_Entries.size () >= this.m_iThreshold ) {
+            Collect ( thread, false );
+        }
+    }
+
+    // Calls __gc for every collected userdata, or for all of them if bAll is set
+    public final void Collect ( lua_State thread, boolean bAll ) {
+        if ( this.m_bIsRunning == true ) {
+            return;
+        }
+
+        Vector dead = new Vector ();
+        for ( int iIndex = this.m_Entries.size (); iIndex -- > 0;) {
+            Entry entry = ( Entry ) this.m_Entries.elementAt ( iIndex );
+            if ( bAll == true || entry.m_UserData.get () == null ) {
+                this.m_Entries.removeElementAt ( iIndex );
+                dead.addElement ( entry.m_Body );
+            }
+        }
+
+        this.m_iThreshold = Math.max ( this.m_Entries.size () * 2, MIN_THRESHOLD );
+
+        // __gc may register new userdata, so it is called only after the list is updated
+        this.m_bIsRunning = true;
+        try {
+            for ( int iIndex = dead.size (); iIndex -- > 0;) {
+                UserData userData = new UserData ( ( UserData.Body ) dead.elementAt ( iIndex ) );
+                userData.SetIsFinalizable ( false );
+
+                Function function = ( Function ) thread.GetMetaTableObjectByObject ( userData, LVM.TM_GC );
+                if ( function != null ) {
+                    thread.CallMetaTable ( function, userData );
+                }
+            }
+        }
+        finally {
+            this.m_bIsRunning = false;
+        }
+    }
+}
@@ -27,7 +27,7 @@ package com.groundspeak.mochalua;
  *
  * @author a.fornwald
  */
-class Function extends Collectable {
+class Function {
 
     private LuaFunction m_LuaFunction;  // LuaFunction
 
@@ -0,0 +1,119 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Remembers where an OP_GETGLOBAL, OP_GETTABLE or OP_SELF with a constant
+// key found its value the last time. Entries are immutable, a site that
+// misses gets a new entry.
+class InlineCache {
+
+    private final Table m_Table;
+    private final Table.Pair m_Pair;
+    // Set if the value was found through the __index table of m_Table
+    private final Table.Pair m_IndexPair;
+    private final Table m_IndexTable;
+    // Sites which missed that many times are not cached anymore
+    private static final int MAX_MISSES = 8;
+    public static final InlineCache MEGAMORPHIC = new InlineCache ( null, null, null, null );
+
+    private InlineCache ( Table table, Table.Pair pair, Table.Pair indexPair, Table indexTable ) {
+        this.m_Table = table;
+        this.m_Pair = pair;
+        this.m_IndexPair = indexPair;
+        this.m_IndexTable = indexTable;
+    }
+
+    // Returns the cached value or null if the entry doesn't apply to the table
+    public final Object Get ( Table table, Object key ) {
+        if ( this.m_IndexPair == null ) {
+            if ( table == this.m_Table && this.m_Pair.IsDead () == false ) {
+                return this.m_Pair.GetValue ();
+            }
+            return null;
+        }
+
+        if ( table.GetMetaTable () == this.m_Table &&
+            this.m_IndexPair.IsDead () == false &&
+            this.m_IndexPair.GetValue () == this.m_IndexTable &&
+            this.m_Pair.IsDead () == false ) {
+            // Fields of the table itself hide the ones of the __index table
+            Object value = table.GetValue ( key );
+            if ( value != null ) {
+                return value;
+            }
+            return this.m_Pair.GetValue ();
+        }
+        return null;
+    }
+
+    // Looks up table[key] like lua_State.GetTable does and caches the result for the site
+    public static final Object Lookup ( lua_State thread, LuaFunction luaFunction, int iIP, Table table, Object key ) {
+        Object value = null;
+        InlineCache cache = luaFunction.GetInlineCache ( iIP );
+        if ( cache != null ) {
+            value = cache.Get ( table, key );
+            if ( value != null ) {
+                return value;
+            }
+        }
+
+        // Only string keys are cached, numbers may live in the array part
+        if ( cache == MEGAMORPHIC || key instanceof String == false ) {
+            return thread.GetTable ( table, key );
+        }
+
+        InlineCache newCache = null;
+        Table.Pair pair = table.GetPair ( key );
+        if ( pair != null && ( value = pair.GetValue () ) != null ) {
+            newCache = new InlineCache ( table, pair, null, null );
+        }
+        else {
+            Table metaTable = table.GetMetaTable ();
+            Table.Pair indexPair = metaTable != null ? metaTable.GetPair ( LVM.GetEventNameByEvent ( LVM.TM_INDEX ) ) : null;
+            if ( indexPair != null && indexPair.GetValue () instanceof Table ) {
+                Table indexTable = ( Table ) indexPair.GetValue ();
+                pair = indexTable.GetPair ( key );
+                if ( pair != null && ( value = pair.GetValue () ) != null ) {
+                    newCache = new InlineCache ( metaTable, pair, indexPair, indexTable );
+                }
+            }
+        }
+
+        if ( newCache == null ) {
+            // Missing fields, __index functions and deeper chains take the generic path
+            return thread.GetTable ( table, key );
+        }
+
+        if ( cache != null && luaFunction.IncrementInlineCacheMisses ( iIP ) >= MAX_MISSES ) {
+            newCache = MEGAMORPHIC;
+        }
+        luaFunction.SetInlineCache ( iIP, newCache );
+
+        return value;
+    }
+}
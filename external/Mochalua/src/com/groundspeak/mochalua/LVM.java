@@ -105,6 +105,27 @@ class LVM {
     public static final int OP_CLOSURE = 36;  /*	A Bx	R(A) := closure(KPROTO[Bx], R(A), ... ,R(A+n))	*/
 
     public static final int OP_VARARG = 37;  /*	A B	R(A), R(A+1), ..., R(A+B-1) = vararg		*/
+    // Quickened instructions, they are only found in the decoded code of hot functions
+    public static final int OPQ_TFORLOOP = 38;  /*	A C	OP_TFORLOOP with next() and ipairs() iterators run inline */
+
+    public static final int OPQ_ADD = 39;  /*	A B C	OP_ADD of two numbers				*/
+
+    public static final int OPQ_SUB = 40;  /*	A B C	OP_SUB of two numbers				*/
+
+    public static final int OPQ_MUL = 41;  /*	A B C	OP_MUL of two numbers				*/
+
+    public static final int OPQ_DIV = 42;  /*	A B C	OP_DIV of two numbers				*/
+
+    public static final int OPQ_LT = 43;  /*	A B C	OP_LT of two numbers				*/
+
+    public static final int OPQ_LE = 44;  /*	A B C	OP_LE of two numbers				*/
+
+    public static final int OPQ_GETINDEX = 45;  /*	A B C	OP_GETTABLE of a number key in a register, raw unless it misses in a table with a metatable */
+
+    public static final int OPQ_SETINDEX = 46;  /*	A B C	OP_SETTABLE of a number key in a register into a table without metatable */
+
+    // Calls plus back jumps after which a function gets quickened
+    public static final int HOT_THRESHOLD = 1000;
 
     public static final int TM_INDEX = 0;
     public static final int TM_NEWINDEX = 1;
@@ -128,15 +149,10 @@ class LVM {
 
     private static final int FIELDS_PER_FLUSH = 50;
     //private static Table m_GlobalTable;
-    private static Table m_Registry = new Table ( 0, 2 );
-    private static Table[] m_MetaTable = new Table[ LuaAPI.NUM_TAGS ];
-    private static JavaFunction m_AtPanicFunction;
-
-    public static void Reinit () {
-        m_Registry = new Table ( 0, 2 );
-        m_MetaTable = new Table[ LuaAPI.NUM_TAGS ];
-        m_AtPanicFunction = null;
-    }
+    // Shared boxes for small integral numbers, filled on demand
+    private static final int NUMBER_CACHE_MIN = -256;
+    private static final int NUMBER_CACHE_MAX = 4095;
+    private static final Double[] m_NumberCache = new Double[ NUMBER_CACHE_MAX - NUMBER_CACHE_MIN + 1 ];
 
     public static void exit () {
     }
@@ -145,27 +161,33 @@ class LVM {
         return m_strLuaEventsName[iEvent];
     }
 
-    public static final void SetAtPanicFunction ( JavaFunction javaFunction ) {
-        m_AtPanicFunction = javaFunction;
-    }
-
-    public static final JavaFunction GetAtPanicFunction () {
-        return m_AtPanicFunction;
-    }
-
-    public static final Table GetRegistry () {
-        return m_Registry;
-    }
-
-    public static final Table GetMetaTable ( int iType ) {
-        if ( LuaAPI.LUA_TNIL > iType || iType >= LuaAPI.NUM_TAGS ) {
-            return null;
+    // Boxes a number, reusing the cached Double for small integers
+    public static final Double NewNumber ( double dValue ) {
+        int iValue = ( int ) dValue;
+        if ( iValue == dValue && iValue >= NUMBER_CACHE_MIN && iValue <= NUMBER_CACHE_MAX ) {
+            // Keep the sign of -0
+            if ( iValue != 0 || 1 / dValue > 0 ) {
+                Double number = m_NumberCache[iValue - NUMBER_CACHE_MIN];
+                if ( number == null ) {
+                    number = new Double ( dValue );
+                    m_NumberCache[iValue - NUMBER_CACHE_MIN] = number;
+                }
+                return number;
+            }
         }
-        return m_MetaTable[iType];
+        return new Double ( dValue );
     }
 
-    public static final void SetMetaTable ( int iType, Table newTable ) {
-        m_MetaTable[iType] = newTable;
+    public static final Double NewNumber ( int iValue ) {
+        if ( iValue >= NUMBER_CACHE_MIN && iValue <= NUMBER_CACHE_MAX ) {
+            Double number = m_NumberCache[iValue - NUMBER_CACHE_MIN];
+            if ( number == null ) {
+                number = new Double ( iValue );
+                m_NumberCache[iValue - NUMBER_CACHE_MIN] = number;
+            }
+            return number;
+        }
+        return new Double ( iValue );
     }
     private static final String[] m_strLuaEventsName = {
         "__index",
@@ -293,301 +315,634 @@ class LVM {
         }
     }
 
+    // Rewrites the decoded instructions of a hot function into the quickened
+    // forms. Each quickened instruction falls back to the generic code when
+    // its guard fails, so the rewrite is safe in any state of the function.
+    private static final void Quicken ( lua_State thread, LuaFunction luaFunction ) {
+        // Keep the plain instructions while debug hooks are set
+        if ( thread.GetHookMask () != 0 ) {
+            return;
+        }
+
+        final int[] aInstructions = luaFunction.GetWritableInstructions ();
+        final int[] aArgsB = luaFunction.GetArgsB ();
+        final int[] aArgsC = luaFunction.GetArgsC ();
+        for ( int iIP = 0; iIP < aInstructions.length; iIP ++ ) {
+            switch ( aInstructions[iIP] ) {
+                case OP_TFORLOOP: {
+                    aInstructions[iIP] = OPQ_TFORLOOP;
+                    break;
+                }
+                case OP_ADD: {
+                    aInstructions[iIP] = OPQ_ADD;
+                    break;
+                }
+                case OP_SUB: {
+                    aInstructions[iIP] = OPQ_SUB;
+                    break;
+                }
+                case OP_MUL: {
+                    aInstructions[iIP] = OPQ_MUL;
+                    break;
+                }
+                case OP_DIV: {
+                    aInstructions[iIP] = OPQ_DIV;
+                    break;
+                }
+                case OP_LT: {
+                    aInstructions[iIP] = OPQ_LT;
+                    break;
+                }
+                case OP_LE: {
+                    aInstructions[iIP] = OPQ_LE;
+                    break;
+                }
+                case OP_GETTABLE: {
+                    // Constant keys are served by the inline caches
+                    if ( aArgsC[iIP] >= 0 ) {
+                        aInstructions[iIP] = OPQ_GETINDEX;
+                    }
+                    break;
+                }
+                case OP_SETTABLE: {
+                    if ( aArgsB[iIP] >= 0 ) {
+                        aInstructions[iIP] = OPQ_SETINDEX;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    // Arithmetic instruction iInstruction on any operands: numbers,
+    // strings convertible to numbers or values with a metamethod
+    private static final Object Arith ( lua_State thread, CallInfo callInfo, int iIP, int iInstruction, Object B, Object C, int iArgB, int iArgC ) {
+        Double v1;
+        Double v2;
+        // Fast path: both operands are numbers already
+        if ( B instanceof Double && C instanceof Double ) {
+            v1 = ( Double ) B;
+            v2 = ( Double ) C;
+        }
+        else {
+            v1 = LuaBaseLib.ConvertToDouble ( B );
+            v2 = LuaBaseLib.ConvertToDouble ( C );
+        }
+
+        if ( v1 != null && v2 != null ) {
+            double doubleB = v1.doubleValue ();
+            double doubleC = v2.doubleValue ();
+            double doubleD = 0;
+
+            switch ( iInstruction ) {
+                case OP_ADD:
+                     {
+                        doubleD = doubleB + doubleC;
+                    }
+                    break;
+                case OP_SUB:
+                     {
+                        doubleD = doubleB - doubleC;
+                    }
+                    break;
+                case OP_MUL:
+                     {
+                        doubleD = doubleB * doubleC;
+                    }
+                    break;
+                case OP_DIV:
+                     {
+                        doubleD = doubleB / doubleC;
+                    }
+                    break;
+                case OP_MOD:
+                     {
+                        doubleD = ( doubleB ) - Math.floor ( ( doubleB ) / ( doubleC ) ) * ( doubleC );
+                    }
+                    break;
+                case OP_POW:
+                     {
+                        doubleD = thread.GetGlobalState ().GetMath ().Pow ( doubleB, doubleC );
+                    }
+                    break;
+            }
+            return NewNumber ( doubleD );
+        }
+
+        callInfo.SetIP ( iIP );
+        int iOperation = OperationFromInstruction ( iInstruction );
+        Function function = ( Function ) thread.GetMetaTableObjectByObjects ( B, C, iOperation );
+
+        if ( function == null ) {
+            int iIndexB = iArgB < 0 ? -1 : iArgB;
+            int iIndexC = iArgC < 0 ? -1 : iArgC;
+            if ( LuaBaseLib.ConvertToDouble ( B ) == null ) {
+                C = B;
+                iIndexC = iIndexB;
+            }
+            LuaAPI.luaG_typeerror ( thread, iIndexC, C, "perform arithmetic on" );
+        }
+
+        return thread.CallMetaTable ( function, B, C );
+    }
+
+    private static final Object GetRK ( CallInfo callInfo, Object[] aConstants, int iArg ) {
+        if ( iArg < 0 ) {
+            return aConstants[ -1 - iArg];
+        }
+        return callInfo.GetValue ( iArg );
+    }
+
+    // Prepares the coroutine passed to coroutine.resume or to a
+    // coroutine.wrap function for running in the Execute loop of the resumer,
+    // the way LuaAPI.lua_resume would for running it in a nested one. Returns
+    // null when the coroutine needs the regular call: it cannot be resumed,
+    // runs on its own Java thread, its body is a Java function or it yielded
+    // inside a hook.
+    private static final lua_State ResumeInline ( lua_State thread, boolean bWrap ) {
+        final lua_State co;
+        final int iArgsQuantity;
+        if ( bWrap == true ) {
+            co = LuaAPI.lua_tothread ( thread, LuaAPI.lua_upvalueindex ( 1 ) );
+            iArgsQuantity = LuaAPI.lua_gettop ( thread );
+        }
+        else {
+            co = LuaAPI.lua_tothread ( thread, 1 );
+            iArgsQuantity = LuaAPI.lua_gettop ( thread ) - 1;
+        }
+
+        if ( co == null || co.GetCoroutineThread () != null || LuaBaseLib.costatus ( thread, co ) != LuaBaseLib.CO_SUS ) {
+            return null;
+        }
+        if ( LuaAPI.lua_checkstack ( co, iArgsQuantity ) == false ) {
+            return null;
+        }
+
+        final CallInfo ci = co.GetCurrentCallInfo ();
+        if ( co.GetStatus () == 0 ) {
+            final Object object = ci.GetValue ( 0 );
+            if ( co.GetCallInfosStackTop () != 1 || ( object instanceof Function ) == false || ( ( Function ) object ).IsLuaFunction () == false ) {
+                return null;
+            }
+        }
+        else if ( ci.GetFunction ().IsJavaFunction () == false ) {
+            return null;
+        }
+
+        LuaAPI.lua_xmove ( thread, co, iArgsQuantity );
+        // Switching costs no Java stack, so only the Java calls the resumer
+        // is nested in count against LUAI_MAXCCALLS
+        co.setNCCalls ( thread.getNCCalls () );
+        co.setBaseCcalls ( co.getNCCalls () );
+
+        if ( co.GetStatus () == 0 ) {
+            final Function function = ( Function ) ci.GetValue ( 0 );
+            co.PushCallInfo ( new CallInfo ( co, function, ci.GetLocalObjectsStackBase () + 1, ci.GetLocalObjectsStackBase (), LuaAPI.LUA_MULTRET, ci.GetTop () - ci.GetLocalObjectsStackBase () - 1 ) );
+        }
+        else {
+            co.SetStatus ( 0 );
+            LuaAPI.luaD_poscall ( co, co.GetObjectsStackTop () - iArgsQuantity );
+        }
+        return co;
+    }
+
+    // Moves what a coroutine run by ResumeInline yielded or returned, or its
+    // error message, to its resumer and completes the resume call there. A
+    // failed coroutine.wrap call is left pending for the caller to raise the
+    // error. Returns the count of Lua calls the resumer had running.
+    private static final int FinishResume ( lua_State co, boolean bSuccess ) {
+        final lua_State resumer = co.GetResumer ();
+        final int iResumerCalls = co.GetResumerCalls ();
+        co.SetResumer ( null, 0 );
+
+        final CallInfo callInfo = resumer.GetCurrentCallInfo ();
+        final boolean bWrap = callInfo.GetFunction ().GetJavaFunction () instanceof LuaBaseLib.luaB_auxwrap;
+
+        int iResultsQuantity = bSuccess == true ? LuaAPI.lua_gettop ( co ) : 1;
+        if ( bWrap == false ) {
+            LuaAPI.lua_pushboolean ( resumer, bSuccess );
+        }
+        LuaAPI.lua_xmove ( co, resumer, iResultsQuantity );
+
+        if ( bWrap == true && bSuccess == false ) {
+            return iResumerCalls;
+        }
+        if ( bWrap == false ) {
+            iResultsQuantity ++;
+        }
+
+        callInfo.AdjustResults ( iResultsQuantity );
+        resumer.PopCallInfo ();
+
+        final CallInfo currentCallInfo = resumer.GetCurrentCallInfo ();
+        final LuaFunction luaFunction = currentCallInfo.GetFunction ().GetLuaFunction ();
+        if ( luaFunction.GetArgsC ()[currentCallInfo.GetIP () - 1] != 0 ) {
+            currentCallInfo.SetTop ( luaFunction.GetMaxStackSize () );
+        }
+        return iResumerCalls;
+    }
+
+    // Called at a backward jump, a call or a return once the instruction
+    // budget of the state has run out. Raises an error when the budget is exhausted and returns true
+    // when the slice of a scheduled coroutine is over and Execute has to leave
+    // it suspended; it can only be when no Java call is in between.
+    private static final boolean Preempt ( lua_State thread, CallInfo callInfo, int iIP, int iSwitches ) {
+        callInfo.SetIP ( iIP );
+
+        final int iFuel = thread.GetGlobalState ().Refuel ();
+        if ( iFuel == global_State.FUEL_EXHAUSTED ) {
+            LuaAPI.luaG_runerror ( thread, "instruction budget exhausted" );
+        }
+        if ( iFuel == global_State.FUEL_SLICE_ENDED && thread.IsPreemptible () == true && iSwitches == 0 && thread.getNCCalls () == thread.getBaseCcalls () ) {
+            thread.SetStatus ( LuaBaseLib.LUA_YIELD );
+            return true;
+        }
+        return false;
+    }
+
     public static void Execute ( lua_State thread, int iExecutedCalls ) {
 
         CallInfo currentCallInfo = thread.GetCurrentCallInfo ();
         Function currentFunction = currentCallInfo.GetFunction ();
         LuaFunction currentLuaFunction = currentFunction.GetLuaFunction ();
 
+        // The IP lives in a local and is stored to the CallInfo only before an
+        // instruction which may call out, raise an error or leave the function
+        int iIP = currentCallInfo.GetIP ();
+        int[] aInstructions = currentLuaFunction.GetInstructions ();
+        int[] aArgsA = currentLuaFunction.GetArgsA ();
+        int[] aArgsB = currentLuaFunction.GetArgsB ();
+        int[] aArgsC = currentLuaFunction.GetArgsC ();
+        Object[] aConstants = currentLuaFunction.GetConstants ();
+
+        // Coroutines resumed from here run in this loop; thread is the one
+        // running and the switched-in ones link back through GetResumer
+        int iSwitches = 0;
+
+        if ( currentLuaFunction.IncrementHotness () == true ) {
+            Quicken ( thread, currentLuaFunction );
+            aInstructions = currentLuaFunction.GetInstructions ();
+        }
+
         while ( true ) {
             try {
-
-                int iOpCode = currentLuaFunction.GetOpCode ( currentCallInfo.GetIP () );
-                currentCallInfo.SetIP ( currentCallInfo.GetIP () + 1 );   // Increment IP
-
-                int iInstruction = GetInstruction ( iOpCode );
-
-                int A = GetA8 ( iOpCode );
+                final int iInstruction = aInstructions[iIP];
+                final int A = aArgsA[iIP];
+                final int iArgB = aArgsB[iIP];
+                final int iArgC = aArgsC[iIP];
+                iIP ++;
 
                 switch ( iInstruction ) {
                     case OP_MOVE: {
-                        final Object value = currentCallInfo.GetValue ( GetB9 ( iOpCode ) );
+                        final Object value = currentCallInfo.GetValue ( iArgB );
                         currentCallInfo.SetValue ( A, value );
                         break;
                     }
                     case OP_LOADK: {
-                        final int indexBx = GetBx ( iOpCode );
-                        final Object value = currentLuaFunction.GetConstant ( indexBx );
-                        currentCallInfo.SetValue ( A, value );
+                        currentCallInfo.SetValue ( A, aConstants[iArgB] );
                         break;
                     }
                     case OP_LOADBOOL: {
-                        final Boolean value = GetB9 ( iOpCode ) == 0 ? Boolean.FALSE : Boolean.TRUE;
+                        final Boolean value = iArgB == 0 ? Boolean.FALSE : Boolean.TRUE;
                         currentCallInfo.SetValue ( A, value );
-                        if ( GetC9 ( iOpCode ) != 0 ) {
-                            currentCallInfo.SetIP ( currentCallInfo.GetIP () + 1 );
+                        if ( iArgC != 0 ) {
+                            iIP ++;
                         }
                         break;
                     }
                     case OP_LOADNIL: {
-                        final int indexB9 = GetB9 ( iOpCode );
-                        currentCallInfo.ClearStack ( A, indexB9 );
+                        currentCallInfo.ClearStack ( A, iArgB );
                         break;
                     }
 
                     case OP_GETUPVAL: {
-                        final int indexB9 = GetB9 ( iOpCode );
-                        final Object value = currentFunction.GetUpValue ( indexB9 ).GetValue ();
+                        final Object value = currentFunction.GetUpValue ( iArgB ).GetValue ();
                         currentCallInfo.SetValue ( A, value );
                         break;
                     }
-
                     case OP_GETGLOBAL: {
-                        final int indexBx = GetBx ( iOpCode );
-                        final Object key = currentLuaFunction.GetConstant ( indexBx );
-                        final Object value = thread.GetTable ( currentFunction.GetEnvironment (), key );
+                        currentCallInfo.SetIP ( iIP );
+                        final Object key = aConstants[iArgB];
+                        final Object value = InlineCache.Lookup ( thread, currentLuaFunction, iIP - 1, currentFunction.GetEnvironment (), key );
                         currentCallInfo.SetValue ( A, value );
                         break;
                     }
+                    case OPQ_GETINDEX: {
+                        final Object table = currentCallInfo.GetValue ( iArgB );
+                        final Object key = currentCallInfo.GetValue ( iArgC );
+                        if ( table instanceof Table && key instanceof Double ) {
+                            final Object value = ( ( Table ) table ).GetValue ( key );
+                            if ( LuaAPI.IsNilOrNull ( value ) == false || ( ( Table ) table ).GetMetaTable () == null ) {
+                                currentCallInfo.SetValue ( A, value );
+                                break;
+                            }
+                        }
+                        // Other keys and misses which may have __index take the generic path
+                    }
                     case OP_GETTABLE: {
-                        final int indexB9 = GetB9 ( iOpCode );
-                        final Object key = GetRCC ( currentCallInfo, currentLuaFunction, iOpCode );
-                        final Object value = thread.GetTable ( indexB9, key );
+                        currentCallInfo.SetIP ( iIP );
+                        final Object key = GetRK ( currentCallInfo, aConstants, iArgC );
+                        final Object table = currentCallInfo.GetValue ( iArgB );
+                        final Object value;
+                        if ( table instanceof Table && iArgC < 0 ) {
+                            value = InlineCache.Lookup ( thread, currentLuaFunction, iIP - 1, ( Table ) table, key );
+                        }
+                        else {
+                            value = thread.GetTable ( iArgB, key );
+                        }
                         currentCallInfo.SetValue ( A, value );
                         break;
                     }
                     case OP_SETGLOBAL: {
-                        final int indexBx = GetBx ( iOpCode );
+                        currentCallInfo.SetIP ( iIP );
                         final Table table = currentFunction.GetEnvironment ();
-                        final Object key = currentLuaFunction.GetConstant ( indexBx );
+                        final Object key = aConstants[iArgB];
                         final Object value = currentCallInfo.GetValue ( A );
                         thread.SetTable ( table, key, value );
                         break;
                     }
 
                     case OP_SETUPVAL: {
-                        final int indexB9 = GetB9 ( iOpCode );
                         final Object value = currentCallInfo.GetValue ( A );
-                        currentFunction.GetUpValue ( indexB9 ).SetValue ( value );
+                        currentFunction.GetUpValue ( iArgB ).SetValue ( value );
                         break;
                     }
-                    case OP_SETTABLE: {
+                    case OPQ_SETINDEX: {
                         final Object table = currentCallInfo.GetValue ( A );
-                        final Object key = GetRCB ( currentCallInfo, currentLuaFunction, iOpCode );
-                        final Object value = GetRCC ( currentCallInfo, currentLuaFunction, iOpCode );
+                        final Object key = currentCallInfo.GetValue ( iArgB );
+                        if ( table instanceof Table && key instanceof Double && ( ( Table ) table ).GetMetaTable () == null ) {
+                            currentCallInfo.SetIP ( iIP );
+                            ( ( Table ) table ).SetValue ( key, GetRK ( currentCallInfo, aConstants, iArgC ), thread );
+                            break;
+                        }
+                        // Other keys and tables with a metatable take the generic path
+                    }
+                    case OP_SETTABLE: {
+                        currentCallInfo.SetIP ( iIP );
+                        final Object key = GetRK ( currentCallInfo, aConstants, iArgB );
+                        final Object value = GetRK ( currentCallInfo, aConstants, iArgC );
                         thread.SetTable ( A, key, value );
                         break;
                     }
                     case OP_NEWTABLE: {
-                        int iArraySize = luaO_fb2int ( GetB9 ( iOpCode ) );
-                        int iHashSize = luaO_fb2int ( GetC9 ( iOpCode ) );
+                        int iArraySize = luaO_fb2int ( iArgB );
+                        int iHashSize = luaO_fb2int ( iArgC );
                         currentCallInfo.SetValue ( A, new Table ( iArraySize, iHashSize ) );
                         break;
                     }
                     case OP_SELF: {
-                        final int B = GetB9 ( iOpCode );
-                        final Object object = currentCallInfo.GetValue ( B );
+                        currentCallInfo.SetIP ( iIP );
+                        final Object object = currentCallInfo.GetValue ( iArgB );
                         currentCallInfo.SetValue ( A + 1, object );
 
-                        final Object value = thread.GetTable ( B, GetRCC ( currentCallInfo, currentLuaFunction, iOpCode ) );
+                        final Object key = GetRK ( currentCallInfo, aConstants, iArgC );
+                        final Object value;
+                        if ( object instanceof Table && iArgC < 0 ) {
+                            value = InlineCache.Lookup ( thread, currentLuaFunction, iIP - 1, ( Table ) object, key );
+                        }
+                        else {
+                            value = thread.GetTable ( iArgB, key );
+                        }
                         currentCallInfo.SetValue ( A, value );
                         break;
                     }
+                    case OPQ_ADD: {
+                        final Object B = GetRK ( currentCallInfo, aConstants, iArgB );
+                        final Object C = GetRK ( currentCallInfo, aConstants, iArgC );
+                        if ( B instanceof Double && C instanceof Double ) {
+                            currentCallInfo.SetValue ( A, NewNumber ( ( ( Double ) B ).doubleValue () + ( ( Double ) C ).doubleValue () ) );
+                        }
+                        else {
+                            currentCallInfo.SetValue ( A, Arith ( thread, currentCallInfo, iIP, OP_ADD, B, C, iArgB, iArgC ) );
+                        }
+                        break;
+                    }
+                    case OPQ_SUB: {
+                        final Object B = GetRK ( currentCallInfo, aConstants, iArgB );
+                        final Object C = GetRK ( currentCallInfo, aConstants, iArgC );
+                        if ( B instanceof Double && C instanceof Double ) {
+                            currentCallInfo.SetValue ( A, NewNumber ( ( ( Double ) B ).doubleValue () - ( ( Double ) C ).doubleValue () ) );
+                        }
+                        else {
+                            currentCallInfo.SetValue ( A, Arith ( thread, currentCallInfo, iIP, OP_SUB, B, C, iArgB, iArgC ) );
+                        }
+                        break;
+                    }
+                    case OPQ_MUL: {
+                        final Object B = GetRK ( currentCallInfo, aConstants, iArgB );
+                        final Object C = GetRK ( currentCallInfo, aConstants, iArgC );
+                        if ( B instanceof Double && C instanceof Double ) {
+                            currentCallInfo.SetValue ( A, NewNumber ( ( ( Double ) B ).doubleValue () * ( ( Double ) C ).doubleValue () ) );
+                        }
+                        else {
+                            currentCallInfo.SetValue ( A, Arith ( thread, currentCallInfo, iIP, OP_MUL, B, C, iArgB, iArgC ) );
+                        }
+                        break;
+                    }
+                    case OPQ_DIV: {
+                        final Object B = GetRK ( currentCallInfo, aConstants, iArgB );
+                        final Object C = GetRK ( currentCallInfo, aConstants, iArgC );
+                        if ( B instanceof Double && C instanceof Double ) {
+                            currentCallInfo.SetValue ( A, NewNumber ( ( ( Double ) B ).doubleValue () / ( ( Double ) C ).doubleValue () ) );
+                        }
+                        else {
+                            currentCallInfo.SetValue ( A, Arith ( thread, currentCallInfo, iIP, OP_DIV, B, C, iArgB, iArgC ) );
+                        }
+                        break;
+                    }
                     case OP_ADD:
                     case OP_SUB:
                     case OP_MUL:
                     case OP_DIV:
                     case OP_MOD:
                     case OP_POW: {
-                        Object B = GetRCB ( currentCallInfo, currentLuaFunction, iOpCode );
-                        Object C = GetRCC ( currentCallInfo, currentLuaFunction, iOpCode );
-
-                        int iIndexB = IsConstant ( GetB9 ( iOpCode ) ) ? -1 : GetB9 ( iOpCode );
-                        int iIndexC = IsConstant ( GetB9 ( iOpCode ) ) ? -1 : GetC9 ( iOpCode );
-
-                        Object result = null;
-                        Double v1 = LuaBaseLib.ConvertToDouble ( B );
-                        Double v2 = LuaBaseLib.ConvertToDouble ( C );
-
-                        if ( v1 != null && v2 != null ) {
-                            double doubleB = v1.doubleValue ();
-                            double doubleC = v2.doubleValue ();
-                            double doubleD = 0;
-
-                            switch ( iInstruction ) {
-                                case OP_ADD:
-                                     {
-                                        doubleD = doubleB + doubleC;
-                                    }
-                                    break;
-                                case OP_SUB:
-                                     {
-                                        doubleD = doubleB - doubleC;
-                                    }
-                                    break;
-                                case OP_MUL:
-                                     {
-                                        doubleD = doubleB * doubleC;
-                                    }
-                                    break;
-                                case OP_DIV:
-                                     {
-                                        doubleD = doubleB / doubleC;
-                                    }
-                                    break;
-                                case OP_MOD:
-                                     {
-                                        doubleD = ( doubleB ) - Math.floor ( ( doubleB ) / ( doubleC ) ) * ( doubleC );
-                                    }
-                                    break;
-                                case OP_POW:
-                                     {
-                                        doubleD = LuaMathLib.pow ( doubleB, doubleC );
-                                    }
-                                    break;
-                            }
-                            result = new Double ( doubleD );
-                        }
-                        else {
-                            int iOperation = OperationFromInstruction ( iInstruction );
-                            Function function = ( Function ) lua_State.GetMetaTableObjectByObjects ( B, C, iOperation );
-
-                            if ( function == null ) {
-                                if ( LuaBaseLib.ConvertToDouble ( B ) == null ) {
-                                    C = B;
-                                    iIndexC = iIndexB;
-                                }
-                                LuaAPI.luaG_typeerror ( thread, iIndexC, C, "perform arithmetic on" );
-                            }
-
-                            result = thread.CallMetaTable ( function, B, C );
-
-                        }
-
-                        currentCallInfo.SetValue ( A, result );
+                        final Object B = GetRK ( currentCallInfo, aConstants, iArgB );
+                        final Object C = GetRK ( currentCallInfo, aConstants, iArgC );
+                        currentCallInfo.SetValue ( A, Arith ( thread, currentCallInfo, iIP, iInstruction, B, C, iArgB, iArgC ) );
                         break;
                     }
                     case OP_UNM: {
-                        final int indexB9 = GetB9 ( iOpCode );
-                        Object value = currentCallInfo.GetValue ( indexB9 );
+                        Object value = currentCallInfo.GetValue ( iArgB );
                         Double doubleValue = LuaBaseLib.ConvertToDouble ( value );
                         Object result = null;
                         if ( doubleValue == null ) {
-                            Function function = ( Function ) lua_State.GetMetaTableObjectByObject ( value, TM_UNM );
+                            currentCallInfo.SetIP ( iIP );
+                            Function function = ( Function ) thread.GetMetaTableObjectByObject ( value, TM_UNM );
                             result = thread.CallMetaTable ( function, value, null );
                         }
                         else {
-                            result = new Double (  - doubleValue.doubleValue () );
+                            result = NewNumber (  - doubleValue.doubleValue () );
                         }
 
                         currentCallInfo.SetValue ( A, result );
                         break;
                     }
                     case OP_NOT: {
-                        final int indexB9 = GetB9 ( iOpCode );
-                        Object value = currentCallInfo.GetValue ( indexB9 );
+                        Object value = currentCallInfo.GetValue ( iArgB );
                         boolean b = value == null | ( value instanceof Boolean && ( ( Boolean ) value ).equals ( Boolean.FALSE ) );
-                        currentCallInfo.SetValue ( A, new Boolean ( b ) );
+                        currentCallInfo.SetValue ( A, b ? Boolean.TRUE : Boolean.FALSE );
                         break;
                     }
                     case OP_LEN: {
-                        final int indexB9 = GetB9 ( iOpCode );
-                        Object value = currentCallInfo.GetValue ( indexB9 );
+                        Object value = currentCallInfo.GetValue ( iArgB );
                         Object result;
                         if ( value instanceof Table ) {
-                            result = new Double ( ( ( Table ) value ).GetBoundary () );
+                            result = NewNumber ( ( ( Table ) value ).GetBoundary () );
                         }
                         else if ( value instanceof String ) {
 
-                            result = new Double ( ( ( String ) value ).length () );
+                            result = NewNumber ( ( ( String ) value ).length () );
                         }
                         else {
-                            Function function = ( Function ) lua_State.GetMetaTableObjectByObject ( value, TM_LEN );
+                            currentCallInfo.SetIP ( iIP );
+                            Function function = ( Function ) thread.GetMetaTableObjectByObject ( value, TM_LEN );
                             result = thread.CallMetaTable ( function, value, null );
                         }
                         currentCallInfo.SetValue ( A, result );
                         break;
                     }
                     case OP_CONCAT: {
-                        int B = GetB9 ( iOpCode );
-                        int C = GetC9 ( iOpCode );
-                        currentCallInfo.Concat ( C - B + 1, C, A );
+                        currentCallInfo.SetIP ( iIP );
+                        currentCallInfo.Concat ( iArgC - iArgB + 1, iArgC, A );
                         break;
                     }
                     case OP_JMP: {
-                        currentCallInfo.SetIP ( currentCallInfo.GetIP () + GetSBx ( iOpCode ) );
+                        iIP += iArgB;
+                        if ( iArgB < 0 ) {
+                            if ( currentLuaFunction.IncrementHotness () == true ) {
+                                Quicken ( thread, currentLuaFunction );
+                                aInstructions = currentLuaFunction.GetInstructions ();
+                            }
+                            if ( thread.GetGlobalState ().Charge ( - iArgB ) == false && Preempt ( thread, currentCallInfo, iIP, iSwitches ) == true ) {
+                                return;
+                            }
+                        }
                         break;
                     }
                     case OP_EQ: {
-                        final Object objectL = GetRCB ( currentCallInfo, currentLuaFunction, iOpCode );
-                        final Object objectR = GetRCC ( currentCallInfo, currentLuaFunction, iOpCode );
+                        currentCallInfo.SetIP ( iIP );
+                        final Object objectL = GetRK ( currentCallInfo, aConstants, iArgB );
+                        final Object objectR = GetRK ( currentCallInfo, aConstants, iArgC );
                         boolean bA = A != 0 ? true : false;
 
                         if ( ( LuaAPI.lua_typebyobject ( objectL ) == LuaAPI.lua_typebyobject ( objectR ) &&
                             LuaAPI.luaV_equal ( thread, objectL, objectR ) ) == bA ) {
-                            iOpCode = currentLuaFunction.GetOpCode ( currentCallInfo.GetIP () );
-                            currentCallInfo.SetIP ( currentCallInfo.GetIP () + GetSBx ( iOpCode ) );
+                            final int iJump = aArgsB[iIP];
+                            iIP += iJump + 1;
+                            if ( iJump < 0 && thread.GetGlobalState ().Charge ( - iJump ) == false && Preempt ( thread, currentCallInfo, iIP, iSwitches ) == true ) {
+                                return;
+                            }
+                        }
+                        else {
+                            iIP ++;
+                        }
+                        break;
+                    }
+                    case OPQ_LT:
+                    case OPQ_LE: {
+                        final Object objectL = GetRK ( currentCallInfo, aConstants, iArgB );
+                        final Object objectR = GetRK ( currentCallInfo, aConstants, iArgC );
+                        final boolean bResult;
+                        if ( objectL instanceof Double && objectR instanceof Double ) {
+                            final double doubleL = ( ( Double ) objectL ).doubleValue ();
+                            final double doubleR = ( ( Double ) objectR ).doubleValue ();
+                            bResult = iInstruction == OPQ_LT ? doubleL < doubleR : doubleL <= doubleR;
+                        }
+                        else {
+                            currentCallInfo.SetIP ( iIP );
+                            bResult = iInstruction == OPQ_LT ? LuaAPI.luaV_lessthan ( thread, objectL, objectR ) : LuaAPI.luaV_lessequal ( thread, objectL, objectR );
+                        }
+
+                        if ( bResult == ( A != 0 ) ) {
+                            final int iJump = aArgsB[iIP];
+                            iIP += iJump + 1;
+                            if ( iJump < 0 && thread.GetGlobalState ().Charge ( - iJump ) == false && Preempt ( thread, currentCallInfo, iIP, iSwitches ) == true ) {
+                                return;
+                            }
+                        }
+                        else {
+                            iIP ++;
                         }
-                        currentCallInfo.SetIP ( currentCallInfo.GetIP () + 1 );
                         break;
                     }
                     case OP_LT: {
-                        final Object objectL = GetRCB ( currentCallInfo, currentLuaFunction, iOpCode );
-                        final Object objectR = GetRCC ( currentCallInfo, currentLuaFunction, iOpCode );
+                        currentCallInfo.SetIP ( iIP );
+                        final Object objectL = GetRK ( currentCallInfo, aConstants, iArgB );
+                        final Object objectR = GetRK ( currentCallInfo, aConstants, iArgC );
                         boolean bA = A != 0 ? true : false;
 
                         if ( LuaAPI.luaV_lessthan ( thread, objectL, objectR ) == bA ) {
-                            iOpCode = currentLuaFunction.GetOpCode ( currentCallInfo.GetIP () );
-                            currentCallInfo.SetIP ( currentCallInfo.GetIP () + GetSBx ( iOpCode ) );
+                            final int iJump = aArgsB[iIP];
+                            iIP += iJump + 1;
+                            if ( iJump < 0 && thread.GetGlobalState ().Charge ( - iJump ) == false && Preempt ( thread, currentCallInfo, iIP, iSwitches ) == true ) {
+                                return;
+                            }
+                        }
+                        else {
+                            iIP ++;
                         }
-                        currentCallInfo.SetIP ( currentCallInfo.GetIP () + 1 );
                         break;
                     }
                     case OP_LE: {
-                        final Object objectL = GetRCB ( currentCallInfo, currentLuaFunction, iOpCode );
-                        final Object objectR = GetRCC ( currentCallInfo, currentLuaFunction, iOpCode );
+                        currentCallInfo.SetIP ( iIP );
+                        final Object objectL = GetRK ( currentCallInfo, aConstants, iArgB );
+                        final Object objectR = GetRK ( currentCallInfo, aConstants, iArgC );
                         boolean bA = A != 0 ? true : false;
 
                         if ( LuaAPI.luaV_lessequal ( thread, objectL, objectR ) == bA ) {
-                            iOpCode = currentLuaFunction.GetOpCode ( currentCallInfo.GetIP () );
-                            currentCallInfo.SetIP ( currentCallInfo.GetIP () + GetSBx ( iOpCode ) );
+                            final int iJump = aArgsB[iIP];
+                            iIP += iJump + 1;
+                            if ( iJump < 0 && thread.GetGlobalState ().Charge ( - iJump ) == false && Preempt ( thread, currentCallInfo, iIP, iSwitches ) == true ) {
+                                return;
+                            }
+                        }
+                        else {
+                            iIP ++;
                         }
-                        currentCallInfo.SetIP ( currentCallInfo.GetIP () + 1 );
                         break;
                     }
                     case OP_TEST: {
-                        boolean bC = GetC9 ( iOpCode ) != 0 ? true : false;
+                        boolean bC = iArgC != 0 ? true : false;
 
                         Object value = currentCallInfo.GetValue ( A );
 
                         if ( ( ( value == null ) || ( ( value instanceof Boolean ) && ( ( Boolean ) value ).equals ( Boolean.FALSE ) ) ) != bC ) {
-                            iOpCode = currentLuaFunction.GetOpCode ( currentCallInfo.GetIP () );
-                            currentCallInfo.SetIP ( currentCallInfo.GetIP () + GetSBx ( iOpCode ) );
+                            final int iJump = aArgsB[iIP];
+                            iIP += iJump + 1;
+                            if ( iJump < 0 && thread.GetGlobalState ().Charge ( - iJump ) == false && Preempt ( thread, currentCallInfo, iIP, iSwitches ) == true ) {
+                                return;
+                            }
+                        }
+                        else {
+                            iIP ++;
                         }
-
-                        currentCallInfo.SetIP ( currentCallInfo.GetIP () + 1 );
                         break;
                     }
                     case OP_TESTSET: {
-                        boolean bC = GetC9 ( iOpCode ) != 0 ? true : false;
-                        Object value = currentCallInfo.GetValue ( GetB9 ( iOpCode ) );
+                        boolean bC = iArgC != 0 ? true : false;
+                        Object value = currentCallInfo.GetValue ( iArgB );
                         if ( ( value == null || ( value instanceof Boolean && ( ( Boolean ) value ).equals ( Boolean.FALSE ) ) ) != bC ) {
-                            iOpCode = currentLuaFunction.GetOpCode ( currentCallInfo.GetIP () );
-                            currentCallInfo.SetIP ( currentCallInfo.GetIP () + GetSBx ( iOpCode ) );
+                            final int iJump = aArgsB[iIP];
+                            iIP += iJump + 1;
                             currentCallInfo.SetValue ( A, value );
+                            if ( iJump < 0 && thread.GetGlobalState ().Charge ( - iJump ) == false && Preempt ( thread, currentCallInfo, iIP, iSwitches ) == true ) {
+                                return;
+                            }
+                        }
+                        else {
+                            iIP ++;
                         }
-                        currentCallInfo.SetIP ( currentCallInfo.GetIP () + 1 );
                         break;
                     }
                     case OP_CALL:
                     case OP_TAILCALL: {
-                        int B = GetB9 ( iOpCode );
-                        int C = GetC9 ( iOpCode );
-                        int iResultsQuantity = GetC9 ( iOpCode ) - 1;
+                        currentCallInfo.SetIP ( iIP );
+
+                        int iResultsQuantity = iArgC - 1;
 
-                        boolean bRestoreTop = C != 0;
+                        boolean bRestoreTop = iArgC != 0;
 
-                        int iArgsQuantity = B - 1;
+                        int iArgsQuantity = iArgB - 1;
                         if ( iArgsQuantity != -1 ) {
                             currentCallInfo.SetTop ( A + iArgsQuantity + 1 );
                         }
@@ -597,7 +952,7 @@ class LVM {
 
                         Object object = currentCallInfo.GetValue ( A );
                         if (  ! ( object instanceof Function ) ) {
-                            Object tmFunction = lua_State.GetMetaTableObjectByObject ( object, TM_CALL );
+                            Object tmFunction = thread.GetMetaTableObjectByObject ( object, TM_CALL );
                             if ( tmFunction != null ) {
                                 object = tmFunction;
                             }
@@ -615,16 +970,13 @@ class LVM {
                         if ( object instanceof Function ) {
                             Function function = ( Function ) object;
 
-                            CallInfo callInfo = new CallInfo (
-                                thread,
+                            CallInfo callInfo = thread.PushCallInfo (
                                 function,
                                 currentCallInfo.GetLocalObjectsStackBase () + A + 1,
                                 currentCallInfo.GetLocalObjectsStackBase () + A,
                                 iResultsQuantity,
                                 iArgsQuantity );
 
-                            thread.PushCallInfo ( callInfo );
-
                             currentCallInfo = callInfo;
                             currentFunction = function;
 
@@ -632,122 +984,72 @@ class LVM {
                                 LuaFunction luaFunction = function.GetLuaFunction ();
 
                                 currentLuaFunction = luaFunction;
+                                if ( luaFunction.IncrementHotness () == true ) {
+                                    Quicken ( thread, luaFunction );
+                                }
 
                                 iExecutedCalls ++;
-                            }
-                            else {
-                                JavaFunction javaFunction = function.GetJavaFunction ();
-
-                                currentLuaFunction = null;
 
-                                int iReturnValuesQuantity = javaFunction.Call ( thread );
-                                if ( iReturnValuesQuantity < 0 ) //yielding?
-                                {
+                                // Recursion has no backward jumps, so calls are charged too;
+                                // the callee can be suspended before its first instruction
+                                if ( thread.GetGlobalState ().Charge ( 1 ) == false && Preempt ( thread, callInfo, 0, iSwitches ) == true ) {
                                     return;
                                 }
-
-                                currentCallInfo.AdjustResults ( iReturnValuesQuantity );
-
-                                thread.PopCallInfo ();
-
-                                currentCallInfo = thread.GetCurrentCallInfo ();
-                                currentFunction = currentCallInfo.GetFunction ();
-                                currentLuaFunction = currentFunction.GetLuaFunction ();
-
-                                if ( bRestoreTop == true ) {
-                                    currentCallInfo.SetTop ( currentLuaFunction.GetMaxStackSize () );
-                                }
-                            }
-                        }
-                        else {
-                            LuaAPI.luaG_typeerror ( thread, A, null, "call" );
-                        }
-                        break;
-                    }
-
-                    case 99://OP_TAILCALL:
-                    {
-                        int B = GetB9 ( iOpCode );
-
-                        thread.CloseUpValues ( currentCallInfo.GetLocalObjectsStackBase () );
-
-                        int iArgsQuantity = B - 1;
-                        if ( iArgsQuantity == -1 ) {
-                            iArgsQuantity = currentCallInfo.GetTop () - A - 1;
-                        }
-
-                        Object object = currentCallInfo.GetValue ( A );
-                        if (  ! ( object instanceof Function ) ) {
-                            object = lua_State.GetMetaTableObjectByObject ( object, TM_CALL );
-
-                            currentCallInfo.PushValue ( null );	// new extra argumnet
-
-                            iArgsQuantity ++;
-                            for ( int iArg = currentCallInfo.GetTop () - 1; iArg > A; iArg -- ) {
-                                currentCallInfo.SetValue ( iArg, currentCallInfo.GetValue ( iArg - 1 ) );
-                            }
-
-                            currentCallInfo.SetValue ( A, object );
-                        }
-
-                        thread.CopyStack ( currentCallInfo.GetLocalObjectsStackBase () + A, currentCallInfo.GetReturnBase (), iArgsQuantity + 1 ); // B - args count + 1 func
-
-                        thread.SetObjectsStackTop ( currentCallInfo.GetReturnBase () + iArgsQuantity + 1 );
-
-                        if ( object instanceof Function ) {
-                            Function function = ( Function ) object;
-
-                            CallInfo callInfo = new CallInfo (
-                                thread,
-                                function,
-                                currentCallInfo.GetReturnBase () + 1,
-                                currentCallInfo.GetReturnBase (),
-                                currentCallInfo.GetResultsWanted (),
-                                iArgsQuantity );
-
-                            callInfo.SetTailCalls ( currentCallInfo.GetTailCalls () + 1 );
-
-                            thread.GetCallInfosStack ()[thread.GetCallInfosStackTop () - 1] = callInfo;
-
-                            if ( function.IsLuaFunction () ) {
-                                LuaFunction luaFunction = function.GetLuaFunction ();
-
-                                currentCallInfo = callInfo;
-                                currentFunction = function;
-                                currentLuaFunction = luaFunction;
                             }
                             else {
                                 JavaFunction javaFunction = function.GetJavaFunction ();
 
-                                currentCallInfo = callInfo;
-                                currentFunction = function;
                                 currentLuaFunction = null;
 
-                                int iReturnValuesQuantity = javaFunction.Call ( thread );
+                                lua_State co = null;
+                                if ( javaFunction instanceof LuaBaseLib.luaB_coresume ) {
+                                    co = ResumeInline ( thread, false );
+                                }
+                                else if ( javaFunction instanceof LuaBaseLib.luaB_auxwrap ) {
+                                    co = ResumeInline ( thread, true );
+                                }
 
-                                if ( iReturnValuesQuantity < 0 ) //yielding?
-                                {
-                                    return;
+                                if ( co != null ) {
+                                    co.SetResumer ( thread, iExecutedCalls );
+                                    thread = co;
+                                    iExecutedCalls = co.GetCallInfosStackTop () - 1;
+                                    iSwitches ++;
                                 }
+                                else {
+                                    int iReturnValuesQuantity = javaFunction.Call ( thread );
+                                    if ( iReturnValuesQuantity < 0 ) //yielding?
+                                    {
+                                        if ( iSwitches == 0 ) {
+                                            return;
+                                        }
+                                        co = thread;
+                                        thread = co.GetResumer ();
+                                        iExecutedCalls = FinishResume ( co, true );
+                                        iSwitches --;
+                                    }
+                                    else {
+                                        currentCallInfo.AdjustResults ( iReturnValuesQuantity );
 
-                                currentCallInfo.AdjustResults ( iReturnValuesQuantity );
+                                        thread.PopCallInfo ();
 
-                                thread.PopCallInfo ();
+                                        if ( bRestoreTop == true ) {
+                                            final CallInfo callerCallInfo = thread.GetCurrentCallInfo ();
+                                            callerCallInfo.SetTop ( callerCallInfo.GetFunction ().GetLuaFunction ().GetMaxStackSize () );
+                                        }
+                                    }
+                                }
 
                                 currentCallInfo = thread.GetCurrentCallInfo ();
                                 currentFunction = currentCallInfo.GetFunction ();
-                                if ( currentFunction != null ) {
-                                    currentLuaFunction = currentFunction.GetLuaFunction ();
-                                }
-                                else {
-                                    currentLuaFunction = null;
-                                }
-
-                                if (  -- iExecutedCalls <= 0 ) {
-                                    return;
-                                }
+                                currentLuaFunction = currentFunction.GetLuaFunction ();
                             }
 
+                            iIP = currentCallInfo.GetIP ();
+                            aInstructions = currentLuaFunction.GetInstructions ();
+                            aArgsA = currentLuaFunction.GetArgsA ();
+                            aArgsB = currentLuaFunction.GetArgsB ();
+                            aArgsC = currentLuaFunction.GetArgsC ();
+                            aConstants = currentLuaFunction.GetConstants ();
                         }
                         else {
                             LuaAPI.luaG_typeerror ( thread, A, null, "call" );
@@ -755,9 +1057,15 @@ class LVM {
                         break;
                     }
                     case OP_RETURN: {
+                        // Charges the instructions up to here once, the backward jumps
+                        // have charged the repeated ones; when suspended the return
+                        // is run again on resume
+                        if ( thread.GetGlobalState ().Charge ( iIP ) == false && Preempt ( thread, currentCallInfo, iIP - 1, iSwitches ) == true ) {
+                            return;
+                        }
 
                         int iFirstResult = A;
-                        int iResultsQuantity = GetB9 ( iOpCode ) - 1;
+                        int iResultsQuantity = iArgB - 1;
 
                         thread.CloseUpValues ( currentCallInfo.GetLocalObjectsStackBase () );
 
@@ -776,7 +1084,18 @@ class LVM {
                         thread.PopCallInfo ();
 
                         if (  -- iExecutedCalls <= 0 ) {
-                            return;
+                            if ( iSwitches == 0 ) {
+                                return;
+                            }
+                            // The body of a switched-in coroutine has returned
+                            final lua_State co = thread;
+                            thread = co.GetResumer ();
+                            iExecutedCalls = FinishResume ( co, true );
+                            iSwitches --;
+
+                            currentCallInfo = thread.GetCurrentCallInfo ();
+                            currentFunction = currentCallInfo.GetFunction ();
+                            currentLuaFunction = currentFunction.GetLuaFunction ();
                         }
                         else {
                             iResultsQuantity = currentCallInfo.GetResultsWanted () - LuaAPI.LUA_MULTRET;
@@ -789,41 +1108,39 @@ class LVM {
                                     currentCallInfo.SetTop ( currentCallInfo.GetFunction ().GetLuaFunction ().GetMaxStackSize () );
                                 }
                             }
-                            break;
                         }
+
+                        iIP = currentCallInfo.GetIP ();
+                        aInstructions = currentLuaFunction.GetInstructions ();
+                        aArgsA = currentLuaFunction.GetArgsA ();
+                        aArgsB = currentLuaFunction.GetArgsB ();
+                        aArgsC = currentLuaFunction.GetArgsC ();
+                        aConstants = currentLuaFunction.GetConstants ();
+                        break;
                     }
                     case OP_FORLOOP: {
-                        Double doubleIter = LuaBaseLib.ConvertToDouble ( currentCallInfo.GetValue ( A ) );
-                        if ( doubleIter == null ) {
-                            LuaAPI.luaG_runerror ( thread, "\"for\" initial value must be a number" );
-                        }
-                        double iter = doubleIter.doubleValue ();
-
-                        Double doubleEnd = LuaBaseLib.ConvertToDouble ( currentCallInfo.GetValue ( A + 1 ) );
-                        if ( doubleEnd == null ) {
-                            LuaAPI.luaG_runerror ( thread, "\"for\" end value must be a number" );
-                        }
-                        double end = doubleEnd.doubleValue ();
-
-                        Double doubleStep = LuaBaseLib.ConvertToDouble ( currentCallInfo.GetValue ( A + 2 ) );
-                        if ( doubleStep == null ) {
-                            LuaAPI.luaG_runerror ( thread, "\"for\" step value must be a number" );
-                        }
-                        double step = doubleStep.doubleValue ();
-
-                        iter += step;
-                        Double iterDouble = new Double ( iter );
+                        // OP_FORPREP has already converted the control values to numbers
+                        double step = ( ( Double ) currentCallInfo.GetValue ( A + 2 ) ).doubleValue ();
+                        double iter = ( ( Double ) currentCallInfo.GetValue ( A ) ).doubleValue () + step;
+                        double end = ( ( Double ) currentCallInfo.GetValue ( A + 1 ) ).doubleValue ();
 
                         if ( ( step > 0 ) ? iter <= end : iter >= end ) {
-                            currentCallInfo.SetIP ( currentCallInfo.GetIP () + GetSBx ( iOpCode ) );
+                            Double iterDouble = NewNumber ( iter );
+                            iIP += iArgB;
                             currentCallInfo.SetValue ( A, iterDouble );
                             currentCallInfo.SetValue ( A + 3, iterDouble );
+                            if ( currentLuaFunction.IncrementHotness () == true ) {
+                                Quicken ( thread, currentLuaFunction );
+                                aInstructions = currentLuaFunction.GetInstructions ();
+                            }
+                            if ( thread.GetGlobalState ().Charge ( - iArgB ) == false && Preempt ( thread, currentCallInfo, iIP, iSwitches ) == true ) {
+                                return;
+                            }
                         }
                         break;
                     }
                     case OP_FORPREP: {
-                        // FIXME:
-                        int B = GetSBx ( iOpCode );
+                        currentCallInfo.SetIP ( iIP );
 
                         Double doubleIter = LuaBaseLib.ConvertToDouble ( currentCallInfo.GetValue ( A ) );
                         if ( doubleIter == null ) {
@@ -831,47 +1148,100 @@ class LVM {
                         }
                         double iter = doubleIter.doubleValue ();
 
+                        Double doubleEnd = LuaBaseLib.ConvertToDouble ( currentCallInfo.GetValue ( A + 1 ) );
+                        if ( doubleEnd == null ) {
+                            LuaAPI.luaG_runerror ( thread, "\"for\" limit must be a number" );
+                        }
+
                         Double doubleStep = LuaBaseLib.ConvertToDouble ( currentCallInfo.GetValue ( A + 2 ) );
                         if ( doubleStep == null ) {
-                            LuaAPI.luaG_runerror ( thread, "\"for\" step value must be a number" );
+                            LuaAPI.luaG_runerror ( thread, "\"for\" step must be a number" );
                         }
                         double step = doubleStep.doubleValue ();
 
-                        currentCallInfo.SetValue ( A, new Double ( iter - step ) );
-                        currentCallInfo.SetIP ( currentCallInfo.GetIP () + B );
+                        currentCallInfo.SetValue ( A + 1, doubleEnd );
+                        currentCallInfo.SetValue ( A + 2, doubleStep );
+                        currentCallInfo.SetValue ( A, NewNumber ( iter - step ) );
+                        iIP += iArgB;
                         break;
                     }
 
+                    case OPQ_TFORLOOP: {
+                        final Object generator = currentCallInfo.GetValue ( A );
+                        final Object state = currentCallInfo.GetValue ( A + 1 );
+                        if ( generator instanceof Function && state instanceof Table ) {
+                            final JavaFunction javaFunction = ( ( Function ) generator ).GetJavaFunction ();
+                            final Table table = ( Table ) state;
+                            Object key = null;
+                            Object value = null;
+                            boolean bIsInline = true;
+
+                            if ( javaFunction instanceof LuaBaseLib.luaB_next ) {
+                                key = table.GetNext ( currentCallInfo.GetValue ( A + 2 ) );
+                                if ( key != null ) {
+                                    value = table.GetNextValue ();
+                                }
+                            }
+                            else if ( javaFunction instanceof LuaBaseLib.ipairsaux && currentCallInfo.GetValue ( A + 2 ) instanceof Double ) {
+                                int iIndex = ( ( Double ) currentCallInfo.GetValue ( A + 2 ) ).intValue () + 1;
+                                value = table.GetValueNum ( iIndex );
+                                if ( value != null ) {
+                                    key = NewNumber ( iIndex );
+                                }
+                            }
+                            else {
+                                bIsInline = false;
+                            }
+
+                            if ( bIsInline == true ) {
+                                currentCallInfo.SetValue ( A + 3, key );
+                                for ( int iResult = 1; iResult < iArgC; iResult ++ ) {
+                                    currentCallInfo.SetValue ( A + 3 + iResult, iResult == 1 ? value : null );
+                                }
+                                currentCallInfo.SetTop ( A + 3 + iArgC );
+
+                                if ( key != null ) {
+                                    currentCallInfo.SetValue ( A + 2, key );
+                                }
+                                else {
+                                    iIP ++;
+                                }
+                                break;
+                            }
+                        }
+                        // Other iterators take the generic path
+                    }
                     case OP_TFORLOOP: {
-                        final int C = GetC9 ( iOpCode );
+                        currentCallInfo.SetIP ( iIP );
 
                         currentCallInfo.SetTop ( A + 6 );
                         currentCallInfo.CopyStack ( A, A + 3, 3 );
 
-                        thread.Call ( 2, GetC9 ( iOpCode ) );
+                        thread.Call ( 2, iArgC );
 
-                        currentCallInfo.SetTop ( A + 3 + C );
+                        currentCallInfo.SetTop ( A + 3 + iArgC );
 
                         Object aObj3 = currentCallInfo.GetValue ( A + 3 );
                         if ( LuaAPI.IsNilOrNull ( aObj3 ) == false ) {
                             currentCallInfo.SetValue ( A + 2, aObj3 );
                         }
                         else {
-                            currentCallInfo.SetIP ( currentCallInfo.GetIP () + 1 );
+                            iIP ++;
                         }
                         break;
                     }
 
                     case OP_SETLIST: {
-                        int B = GetB9 ( iOpCode );
-                        int C = GetC9 ( iOpCode );
+                        int B = iArgB;
+                        int C = iArgC;
 
                         if ( B == 0 ) {
                             B = currentCallInfo.GetTop () - A - 1;
                         }
                         if ( C == 0 ) {
-                            C = currentLuaFunction.GetOpCode ( currentCallInfo.GetIP () );
-                            currentCallInfo.SetIP ( currentCallInfo.GetIP () + 1 );
+                            // The next word is a raw number, not an instruction
+                            C = currentLuaFunction.GetOpCode ( iIP );
+                            iIP ++;
                         }
 
                         int iOffset = ( C - 1 ) * FIELDS_PER_FLUSH;
@@ -883,9 +1253,8 @@ class LVM {
                         }
 
                         for ( int i = 1; i <= B; i ++ ) {
-                            final Object key = new Double ( iOffset + i );
                             final Object value = currentCallInfo.GetValue ( A + i );
-                            table.SetValue ( key, value, thread );
+                            table.SetValueNum ( iOffset + i, value, thread );
                         }
                         break;
                     }
@@ -894,17 +1263,14 @@ class LVM {
                         break;
                     }
                     case OP_CLOSURE: {
-                        final int indexBx = GetBx ( iOpCode );
-                        LuaFunction luaFunction = currentLuaFunction.GetLuaFunction ( indexBx );
+                        LuaFunction luaFunction = currentLuaFunction.GetLuaFunction ( iArgB );
                         Function function = new Function ( luaFunction, currentFunction.GetEnvironment () );
 
                         final int iUpValuesQuantity = luaFunction.GetUpValuesQuantity ();
                         for ( int iUpValue = 0; iUpValue < iUpValuesQuantity; iUpValue ++ ) {
-                            final int iNextOpCode = currentLuaFunction.GetOpCode ( currentCallInfo.GetIP () );
-                            currentCallInfo.SetIP ( currentCallInfo.GetIP () + 1 );
-                            final int iNextInstruction = GetInstruction ( iNextOpCode );
-
-                            final int iNextB = GetB9 ( iNextOpCode );
+                            final int iNextInstruction = aInstructions[iIP];
+                            final int iNextB = aArgsB[iIP];
+                            iIP ++;
 
                             if ( iNextInstruction == OP_GETUPVAL ) {
                                 function.SetUpValue ( iUpValue, currentFunction.GetUpValue ( iNextB ) );
@@ -918,18 +1284,59 @@ class LVM {
                         break;
                     }
                     case OP_VARARG: {
-                        int B = GetB9 ( iOpCode ) - 1;
-                        currentCallInfo.PushVarArgs ( A, B );
+                        currentCallInfo.SetIP ( iIP );
+                        currentCallInfo.PushVarArgs ( A, iArgB - 1 );
                         break;
                     }
 
                     default: {
+                        currentCallInfo.SetIP ( iIP );
                         throw new LuaRuntimeException ( "invalid operation code '" + iInstruction + "'" );
                     }
                 }
             }
-            catch ( LuaRuntimeException e ) {
-                throw e;
+            catch ( RuntimeException e ) {
+                if ( iSwitches == 0 ) {
+                    throw e;
+                }
+
+                // An error nobody caught inside a switched-in coroutine kills
+                // it and is returned by its resume call; a failed wrap call
+                // raises it again in the resumer
+                RuntimeException error = e;
+                while ( true ) {
+                    final lua_State co = thread;
+                    co.SetStatus ( -1 );
+                    if ( ( error instanceof LuaRuntimeException ) == false ) {
+                        LuaAPI.lua_pushstring ( co, "a java exception occurred within the coroutine" );
+                    }
+                    thread = co.GetResumer ();
+                    iExecutedCalls = FinishResume ( co, false );
+                    iSwitches --;
+
+                    if ( thread.GetCurrentCallInfo ().GetFunction ().IsJavaFunction () == false ) {
+                        break;
+                    }
+                    try {
+                        LuaBaseLib.auxwraperror ( thread );
+                    }
+                    catch ( RuntimeException wrapError ) {
+                        if ( iSwitches == 0 ) {
+                            throw wrapError;
+                        }
+                        error = wrapError;
+                    }
+                }
+
+                currentCallInfo = thread.GetCurrentCallInfo ();
+                currentFunction = currentCallInfo.GetFunction ();
+                currentLuaFunction = currentFunction.GetLuaFunction ();
+                iIP = currentCallInfo.GetIP ();
+                aInstructions = currentLuaFunction.GetInstructions ();
+                aArgsA = currentLuaFunction.GetArgsA ();
+                aArgsB = currentLuaFunction.GetArgsB ();
+                aArgsC = currentLuaFunction.GetArgsC ();
+                aConstants = currentLuaFunction.GetConstants ();
             }
         }
     }
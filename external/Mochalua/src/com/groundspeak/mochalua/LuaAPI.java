@@ -83,6 +83,18 @@ public class LuaAPI {
     public static final int LUA_MASKRET = ( 1 << LUA_HOOKRET );
     public static final int LUA_MASKLINE = ( 1 << LUA_HOOKLINE );
     public static final int LUA_MASKCOUNT = ( 1 << LUA_HOOKCOUNT );
+    /*
+     ** Math profiles, see lua_setmathprofile
+     */
+    public static final int LUA_MATHPROFILE_SOFTWARE = 0;
+    public static final int LUA_MATHPROFILE_JDK = 1;
+    /*
+     ** Prototype cache figures, see lua_getprototypecache
+     */
+    public static final int LUA_PCSIZE = 0;
+    public static final int LUA_PCHITS = 1;
+    public static final int LUA_PCMISSES = 2;
+    private static final String JDK_MATH_CLASS = "com.groundspeak.mochalua.JdkMath";
     public static Object m_NilObject = new Object ();
 
     public static final boolean IsNilOrNull ( Object object ) {
@@ -110,8 +122,8 @@ public class LuaAPI {
     //	    The panic function can access the error message at the top of the
     //	    stack.
     public static JavaFunction lua_atpanic ( lua_State thread, JavaFunction panicf ) {
-        JavaFunction oldPanicFunction = LVM.GetAtPanicFunction ();
-        LVM.SetAtPanicFunction ( panicf );
+        JavaFunction oldPanicFunction = thread.GetGlobalState ().GetAtPanicFunction ();
+        thread.GetGlobalState ().SetAtPanicFunction ( panicf );
         return oldPanicFunction;
     }
 
@@ -142,7 +154,9 @@ public class LuaAPI {
     //	    programs, such as a daemon or a web server, might need to release
     //	    states as soon as they are not needed, to avoid growing too large.
     public static final void lua_close ( lua_State thread ) {
-        thread = null;
+        thread.GetGlobalState ().CloseCoroutineThreads ();
+        thread.GetGlobalState ().GetFinalizers ().Collect ( thread, true );
+        thread.GetGlobalState ().CloseTempFiles ();
     }
 
     public static int checkint ( lua_State thread, int topop ) {
@@ -609,7 +623,7 @@ public class LuaAPI {
             pushValue = ( ( UserData ) object ).GetEnvironment ();
         }
         else if ( object instanceof lua_State ) {
-            pushValue = ( ( lua_State ) object ).GetEnvironment ();
+            pushValue = ( ( lua_State ) object ).GetBody ().GetEnvironment ();
         }
 
         currentCallInfo.PushValue ( pushValue );
@@ -660,7 +674,7 @@ public class LuaAPI {
                 break;
             }
             default: {
-                mt = LVM.GetMetaTable ( lua_typebyobject ( obj ) );
+                mt = thread.GetGlobalState ().GetMetaTable ( lua_typebyobject ( obj ) );
                 break;
             }
         }
@@ -879,7 +893,7 @@ public class LuaAPI {
     //	    function. The second argument, ud, is an opaque pointer that Lua
     //	    simply passes to the allocator in every call.
     public static final lua_State lua_newstate () {
-        return new lua_State ( true );
+        return new lua_State ( new global_State (), true );
     }
 
     // lua_newtable
@@ -890,6 +904,126 @@ public class LuaAPI {
         lua_createtable ( thread, 0, 0 );
     }
 
+    // lua_setbudget
+    // void lua_setbudget (lua_State *L, long count);
+    //	    Mochalua extension. Limits the state and all of its coroutines to
+    //	    about count more instructions; past that every loop iteration,
+    //	    call and return raises "instruction budget exhausted".
+    //	    Instructions are counted at backward jumps by the length of the
+    //	    loop and at returns by the instructions before them, each Lua call
+    //	    counts as one. A negative count removes the limit.
+    public static void lua_setbudget ( lua_State thread, long count ) {
+        thread.GetGlobalState ().SetBudget ( count );
+    }
+
+    // lua_getbudget
+    // long lua_getbudget (lua_State *L);
+    //	    Mochalua extension. Returns the instructions left in the budget set
+    //	    by lua_setbudget, or -1 when there is no limit.
+    public static long lua_getbudget ( lua_State thread ) {
+        return thread.GetGlobalState ().GetBudget ();
+    }
+
+    // lua_getinstructioncount
+    // long lua_getinstructioncount (lua_State *L);
+    //	    Mochalua extension. Returns the instructions the state has run so
+    //	    far, counted the way lua_setbudget counts them.
+    public static long lua_getinstructioncount ( lua_State thread ) {
+        return thread.GetGlobalState ().GetInstructionCount ();
+    }
+
+    // lua_setthreadedcoroutines
+    // void lua_setthreadedcoroutines (lua_State *L, int enable);
+    //	    Mochalua extension. While enabled, coroutine.create and
+    //	    coroutine.wrap run each new coroutine on a Java thread of its own,
+    //	    so it can yield from inside Java functions (pcall, metamethods,
+    //	    sort comparators) and Java library calls may block in it. Off by
+    //	    default. The thread of a coroutine left suspended stays parked until
+    //	    the coroutine is found to be garbage, at a full collection or when
+    //	    more coroutine threads are started, or until lua_close. In the Java
+    //	    SE build of the jar-jdk target these are daemon threads.
+    public static void lua_setthreadedcoroutines ( lua_State thread, boolean enable ) {
+        thread.GetGlobalState ().SetThreadedCoroutines ( enable );
+    }
+
+    // lua_setprototypecache
+    // void lua_setprototypecache (int entries);
+    //	    Mochalua extension. Sets how many precompiled chunks are kept in the
+    //	    process wide prototype cache, least recently loaded ones are dropped
+    //	    first. States loading the same chunk share its code, constants and
+    //	    debug information and only get closures of their own. 0 turns the
+    //	    cache off.
+    public static void lua_setprototypecache ( int iEntries ) {
+        PrototypeCache.GetInstance ().SetMaxEntries ( iEntries );
+    }
+
+    // lua_getprototypecache
+    // int lua_getprototypecache (int what);
+    //	    Mochalua extension. Returns a figure of the prototype cache:
+    //	    LUA_PCSIZE, the chunks it holds; LUA_PCHITS and LUA_PCMISSES, the
+    //	    loads which found their chunk in it and the ones which didn't,
+    //	    counted since the process started. Loads with the cache turned off
+    //	    are not counted.
+    public static int lua_getprototypecache ( int iWhat ) {
+        final PrototypeCache prototypeCache = PrototypeCache.GetInstance ();
+        switch ( iWhat ) {
+            case LUA_PCSIZE: {
+                return prototypeCache.GetSize ();
+            }
+            case LUA_PCHITS: {
+                return prototypeCache.GetHits ();
+            }
+            case LUA_PCMISSES: {
+                return prototypeCache.GetMisses ();
+            }
+            default: {
+                return -1;
+            }
+        }
+    }
+
+    // lua_setmathprofile
+    // int lua_setmathprofile (lua_State *L, int profile);
+    //	    Mochalua extension. Selects the implementation of the math library
+    //	    functions CLDC lacks and of the ^ operator for the state and all its
+    //	    coroutines. LUA_MATHPROFILE_SOFTWARE, the default, only needs CLDC 1.1.
+    //	    LUA_MATHPROFILE_JDK uses java.lang.Math on Java SE 8 or later and is
+    //	    only available in the Java SE build of the jar-jdk target. Each
+    //	    profile has its own math.random generator, seeded anew. Returns 1 if
+    //	    the profile was selected and 0 if it isn't available.
+    public static int lua_setmathprofile ( lua_State thread, int iProfile ) {
+        MathProfile math;
+        switch ( iProfile ) {
+            case LUA_MATHPROFILE_SOFTWARE: {
+                math = new SoftwareMath ();
+                break;
+            }
+            case LUA_MATHPROFILE_JDK: {
+                try {
+                    math = ( MathProfile ) Class.forName ( JDK_MATH_CLASS ).newInstance ();
+                }
+                catch ( ClassNotFoundException ex ) {
+                    return 0;
+                }
+                catch ( InstantiationException ex ) {
+                    return 0;
+                }
+                catch ( IllegalAccessException ex ) {
+                    return 0;
+                }
+                catch ( NoClassDefFoundError ex ) {
+                    return 0;
+                }
+                break;
+            }
+            default: {
+                return 0;
+            }
+        }
+        thread.GetGlobalState ().SetMath ( math );
+        return 1;
+    }
+
     // lua_newthread
     // lua_State *lua_newthread (lua_State *L);
     //	    Creates a new thread, pushes it on the stack, and returns a pointer
@@ -899,7 +1033,7 @@ public class LuaAPI {
     //	    There is no explicit function to close or to destroy a thread.
     //	    Threads are subject to garbage collection, like any Lua object.
     public static lua_State lua_newthread ( lua_State thread ) {
-        lua_State newThread = new lua_State ( false );
+        lua_State newThread = new lua_State ( thread.GetGlobalState (), false );
         newThread.SetErrorFunction ( null );
         newThread.SetEnvironment ( thread.GetEnvironment () );
         thread.GetCurrentCallInfo ().PushValue ( newThread );
@@ -920,6 +1054,8 @@ public class LuaAPI {
     //	    the metamethod and marks the userdata as finalized. When this
     //	    userdata is collected again then Lua frees its corresponding memory.
     public static Object lua_newuserdata ( lua_State thread, Object object, int iSize ) {
+        thread.GetGlobalState ().GetFinalizers ().Step ( thread );
+
         Table env = null;
         if ( thread.GetCurrentCallInfo ().GetFunction () != null ) {
             env = thread.GetCurrentCallInfo ().GetFunction ().GetEnvironment ();
@@ -949,7 +1085,7 @@ public class LuaAPI {
         Object nextKey = table.GetNext ( key );
         if ( nextKey != null ) {
             currentCallInfo.PushValue ( nextKey );
-            currentCallInfo.PushValue ( table.GetValue ( nextKey ) );
+            currentCallInfo.PushValue ( table.GetNextValue () );
             return true;
         }
         return false;
@@ -1046,11 +1182,14 @@ public class LuaAPI {
 
         int iOldTop = lua_gettop ( thread );
         int iOldCallInfoTop = thread.GetCallInfosStackTop ();
+        int iOldCcalls = thread.getNCCalls ();
 
         try {
             lua_call ( thread, nargs, nresults );
         }
         catch ( LuaRuntimeException ex ) {
+            thread.setNCCalls ( iOldCcalls );
+
             while ( thread.GetCallInfosStackTop () - iOldCallInfoTop - 1 > 0 ) {
                 thread.PopCallInfo ();
             }
@@ -1241,7 +1380,7 @@ public class LuaAPI {
     // void lua_pushinteger (lua_State *L, lua_Integer n);
     //	    Pushes a number with value n onto the stack.
     public static final void lua_pushinteger ( lua_State thread, int n ) {
-        thread.GetCurrentCallInfo ().PushValue ( new Double ( n ) );
+        thread.GetCurrentCallInfo ().PushValue ( LVM.NewNumber ( n ) );
     }
 
     // lua_pushlightuserdata
@@ -1291,7 +1430,7 @@ public class LuaAPI {
     // void lua_pushnumber (lua_State *L, lua_Number n);
     //	    Pushes a number with value n onto the stack.
     public static final void lua_pushnumber ( lua_State thread, double n ) {
-        thread.GetCurrentCallInfo ().PushValue ( new Double ( n ) );
+        thread.GetCurrentCallInfo ().PushValue ( LVM.NewNumber ( n ) );
     }
 
     // lua_pushstring
@@ -1310,7 +1449,7 @@ public class LuaAPI {
     //	    Pushes the thread represented by L onto the stack. Returns 1 if this
     //	    thread is the main thread of its state.
     public static final boolean lua_pushthread ( lua_State thread ) {
-        thread.GetCurrentCallInfo ().PushValue ( thread );
+        thread.GetCurrentCallInfo ().PushValue ( thread.GetHandle () );
 
         // TODO: return mainThread == thread
         return thread.GetMainThreadFlag ();
@@ -1345,6 +1484,10 @@ public class LuaAPI {
                 case LUA_TBOOLEAN: {
                     return ( ( Boolean ) t1 ).equals ( t2 );
                 }
+                case LUA_TSTRING: {
+                    // Strings aren't interned, so compare their contents
+                    return t1.equals ( t2 );
+                }
                 case LUA_TLIGHTUSERDATA: {
                     return t1 == t2;
                 }
@@ -1544,34 +1687,7 @@ public class LuaAPI {
 
                     //int iReturnValuesQuantity = ci.GetFunction().GetJavaFunction().Call( thread );
                     //iReturnValuesQuantity = iResultsQuantity;
-
-
-                    int wanted, i;
-                    wanted = ci.GetResultsWanted ();
-                    //L->base = (ci - 1)->base;  /* restore base */
-                    int res = ci.GetReturnBase ();
-                    /* move results to correct place */
-                    //thread.CopyStack(thread.GetObjectsStackTop() - wanted, res, wanted);
-                    //thread.SetObjectsStackTop(res + (wanted == LUA_MULTRET ? 0 : wanted));
-
-
-                    for ( i = wanted; i != 0 && index < thread.GetObjectsStackTop (); i -- ) {
-                        Object o1 = thread.GetValue ( index ++ );
-                        thread.SetValue ( res ++, o1 );
-                    //setobjs2s(L, res++, index++);
-                    }
-                    while ( i -- > 0 ) {
-                        thread.SetValue ( res ++, null );
-                    }
-                    thread.SetObjectsStackTop ( res );/* and correct top if not multiple results */
-
-                    /*if(wanted != -1)
-                    {
-                    thread.SetObjectsStackTop( thread.GetCurrentCallInfo().GetTop());/* and correct top if not multiple results */
-                    /*}*/
-                    thread.PopCallInfo ();
-
-
+                    luaD_poscall ( thread, index );
 
                     /*                      ci = L->ci--;
                     res = ci->func;  /* res == final position of 1st result
@@ -1603,6 +1719,23 @@ public class LuaAPI {
         }
     }
 
+    // Finishes the Java call a coroutine yielded from, moving the values
+    // passed to resume from index on into the results the call wanted
+    static void luaD_poscall ( lua_State thread, int index ) {
+        CallInfo ci = thread.GetCurrentCallInfo ();
+        int wanted = ci.GetResultsWanted ();
+        int res = ci.GetReturnBase ();
+        int i;
+        for ( i = wanted; i != 0 && index < thread.GetObjectsStackTop (); i -- ) {
+            thread.SetValue ( res ++, thread.GetValue ( index ++ ) );
+        }
+        while ( i -- > 0 ) {
+            thread.SetValue ( res ++, null );
+        }
+        thread.SetObjectsStackTop ( res );
+        thread.PopCallInfo ();
+    }
+
     public static int lua_resume ( lua_State thread, int nargs ) {
         int status = 0;
         if ( thread.GetStatus () != LuaBaseLib.LUA_YIELD && ( thread.GetStatus () != 0 /*|| L->ci != L->base_ci*/ ) ) {
@@ -1654,7 +1787,7 @@ public class LuaAPI {
             userData.SetEnvironment ( ( Table ) currentCallInfo.GetValue ( currentCallInfo.GetTop () - 1 ) );
         }
         else if ( o instanceof lua_State ) {
-            lua_State threadValue = ( lua_State ) o;
+            lua_State threadValue = ( ( lua_State ) o ).GetBody ();
             threadValue.SetEnvironment ( ( Table ) currentCallInfo.GetValue ( currentCallInfo.GetTop () - 1 ) );
         }
         else {
@@ -1718,10 +1851,15 @@ public class LuaAPI {
             }
             case LUA_TUSERDATA: {
                 ( ( UserData ) obj ).SetMetaTable ( mt );
+                // As in Lua 5.1, __gc is looked up when the userdata is
+                // collected, so it may be added to the metatable later
+                if ( mt != null ) {
+                    thread.GetGlobalState ().GetFinalizers ().Register ( ( UserData ) obj );
+                }
                 break;
             }
             default: {
-                LVM.SetMetaTable ( lua_typebyobject ( obj ), mt );
+                thread.GetGlobalState ().SetMetaTable ( lua_typebyobject ( obj ), mt );
                 break;
             }
         }
@@ -1929,7 +2067,7 @@ public class LuaAPI {
     public static final lua_State lua_tothread ( lua_State thread, int index ) {
         Object object = thread.GetObjectValue ( index );
         if ( object instanceof lua_State ) {
-            return ( lua_State ) object;
+            return ( ( lua_State ) object ).GetBody ();
         }
         return null;
     }
@@ -2050,6 +2188,9 @@ public class LuaAPI {
     public static int lua_yield ( lua_State thread, int nresults ) {
         //luai_userstateyield(L, nresults);
         //lua_lock(L);
+        if ( thread.GetCoroutineThread () != null ) {
+            return thread.GetCoroutineThread ().Yield ();
+        }
         if ( ( thread.getNCCalls () > thread.getBaseCcalls () ) || ( ( thread.getNCCalls () == 0 ) && ( thread.getNCCalls () == thread.getBaseCcalls () ) ) ) {
             luaG_runerror ( thread, "attempt to yield across metamethod/J-call boundary" );
         }
@@ -2084,7 +2225,7 @@ public class LuaAPI {
     // void luaL_addchar (luaL_Buffer *B, char c);
     //	    Adds the character c to the buffer B (see luaL_Buffer).
     public static void luaL_addchar ( luaL_Buffer B, char c ) {
-        B.m_strValue += c;
+        B.AddChar ( c );
     }
 
     // luaL_addlstring
@@ -2092,9 +2233,7 @@ public class LuaAPI {
     //	    Adds the string pointed to by s with length l to the buffer B (see
     //	    luaL_Buffer). The string may contain embedded zeros.
     public static void luaL_addlstring ( luaL_Buffer B, String s, int l ) {
-        for ( int i = 0; i < l; i ++ ) {
-            luaL_addchar ( B, s.charAt ( i ) );
-        }
+        B.AddString ( s, l );
     }
 
     // luaL_addsize
@@ -2122,7 +2261,8 @@ public class LuaAPI {
     //	    called with an extra element on the stack, which is the value to be
     //	    added to the buffer.
     public static void luaL_addvalue ( lua_State thread, luaL_Buffer B ) {
-        B.m_strValue += lua_tostring ( thread, -1 );
+        String s = lua_tostring ( thread, -1 );
+        B.AddString ( s, s.length () );
         lua_pop ( thread, 1 ); /* remove from stack */
     }
 
@@ -2155,7 +2295,7 @@ public class LuaAPI {
     //	    the buffer must be declared as a variable (see luaL_Buffer).
     public static final void luaL_buffinit ( lua_State thread, luaL_Buffer s ) {
         s.SetThread ( thread );
-        s.m_strValue = "";
+        s.Reset ();
     }
 
     public static final int abs_index ( lua_State thread, int i ) {
@@ -2749,7 +2889,7 @@ public class LuaAPI {
     //	    copying the string into this space you must call luaL_addsize with 
     //	    the size of the string to actually add it to the buffer. 
     public static String luaL_perpbuffer ( luaL_Buffer B ) {
-        return B.m_strValue;
+        return B.toString ();
     }
 
     // luaL_pushresult
@@ -2757,7 +2897,7 @@ public class LuaAPI {
     //	    Finishes the use of buffer B leaving the final string on the top of
     //	    the stack.
     public static final void luaL_pushresult ( luaL_Buffer B ) {
-        lua_pushstring ( B.GetThread (), B.m_strValue );
+        lua_pushstring ( B.GetThread (), B.toString () );
     }
     // luaL_ref
     // int luaL_ref (lua_State *L, int t);
@@ -2880,6 +3020,8 @@ public class LuaAPI {
                 System.gc ();
                 System.gc ();
                 System.gc ();
+                thread.GetGlobalState ().GetFinalizers ().Collect ( thread, false );
+                thread.GetGlobalState ().ReclaimCoroutineThreads ();
                 break;
             }
             case LUA_GCCOUNT: {
@@ -2992,6 +3134,7 @@ public class LuaAPI {
     }
 
     private static void luaI_openlib ( lua_State thread, String libname, luaL_Reg[] luaReg, int nup ) {
+        final SymbolTable symbols = thread.GetGlobalState ().GetSymbols ();
 
         if ( libname != null ) {
             int size = luaReg.length;
@@ -3016,7 +3159,7 @@ public class LuaAPI {
                 lua_pushvalue ( thread,  - nup );
             }
             lua_pushjavafunction ( thread, luaReg[k].GetJavaFunction (), nup );
-            lua_setfield ( thread,  - ( nup + 2 ), luaReg[k].GetFunctionName () );
+            lua_setfield ( thread,  - ( nup + 2 ), symbols.Intern ( luaReg[k].GetFunctionName () ) );
         }
         lua_pop ( thread, nup );
     }
@@ -3057,7 +3200,7 @@ public class LuaAPI {
             return luaV_strcmp ( ( String ) objectL, ( String ) objectR ) < 0;
         }
         else {
-            Function function = ( Function ) lua_State.GetEqualMetaTableObjectByObjects ( objectL, objectR, LVM.TM_LT );
+            Function function = ( Function ) thread.GetEqualMetaTableObjectByObjects ( objectL, objectR, LVM.TM_LT );
             if ( function != null ) {
                 Boolean result = ( Boolean ) thread.CallMetaTable ( function, objectL, objectR );
                 return result.booleanValue ();
@@ -3080,12 +3223,12 @@ public class LuaAPI {
             return luaV_strcmp ( ( String ) objectL, ( String ) objectR ) <= 0;
         }
         else {
-            Function function = ( Function ) lua_State.GetEqualMetaTableObjectByObjects ( objectL, objectR, LVM.TM_LE );
+            Function function = ( Function ) thread.GetEqualMetaTableObjectByObjects ( objectL, objectR, LVM.TM_LE );
             if ( function != null ) {
                 Boolean result = ( Boolean ) thread.CallMetaTable ( function, objectL, objectR );
                 return result.booleanValue ();
             }
-            function = ( Function ) lua_State.GetEqualMetaTableObjectByObjects ( objectR, objectL, LVM.TM_LT );
+            function = ( Function ) thread.GetEqualMetaTableObjectByObjects ( objectR, objectL, LVM.TM_LT );
             if ( function != null ) {
                 Boolean result = ( Boolean ) thread.CallMetaTable ( function, objectR, objectL );
                 return  ! result.booleanValue ();
@@ -3125,7 +3268,7 @@ public class LuaAPI {
 
         }
 
-        Function function = ( Function ) lua_State.GetEqualMetaTableObjectByObjects ( objectL, objectR, LVM.TM_EQ );
+        Function function = ( Function ) thread.GetEqualMetaTableObjectByObjects ( objectL, objectR, LVM.TM_EQ );
         if ( function == null ) {
             return false;
         }
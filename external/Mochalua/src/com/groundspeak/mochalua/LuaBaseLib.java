@@ -187,10 +187,10 @@ class LuaBaseLib {
 
     public static final class luaB_tonumber implements JavaFunction {
 
-        private static boolean errno;
-        private static String endptr = null;
+        private boolean errno;
+        private String endptr = null;
 
-        private static long strtoul ( String nptr, int base ) {
+        private long strtoul ( String nptr, int base ) {
             endptr = "s";
             errno = false;
 
@@ -746,17 +746,21 @@ class LuaBaseLib {
             lua_State co = LuaAPI.lua_tothread ( thread, LuaAPI.lua_upvalueindex ( 1 ) );
             int r = auxresume ( thread, co, LuaAPI.lua_gettop ( thread ) );
             if ( r < 0 ) {
-                if ( LuaAPI.lua_isstring ( thread, -1 ) ) /* error object is a string? */ {
-                    LuaAPI.luaL_where ( thread, 1 );  /* add extra info */
-                    LuaAPI.lua_insert ( thread, -2 );
-                    LuaAPI.lua_concat ( thread, 2 );
-                }
-                LuaAPI.lua_error ( thread );  /* propagate error */
+                auxwraperror ( thread );
             }
             return r;
         }
     }
 
+    static void auxwraperror ( lua_State thread ) {
+        if ( LuaAPI.lua_isstring ( thread, -1 ) ) /* error object is a string? */ {
+            LuaAPI.luaL_where ( thread, 1 );  /* add extra info */
+            LuaAPI.lua_insert ( thread, -2 );
+            LuaAPI.lua_concat ( thread, 2 );
+        }
+        LuaAPI.lua_error ( thread );  /* propagate error */
+    }
+
     public static final class luaB_cocreate implements JavaFunction {
 
         public int Call ( lua_State thread ) {
@@ -769,6 +773,11 @@ class LuaBaseLib {
                 return -1;
             }
             lua_State newThread = LuaAPI.lua_newthread ( thread );
+            if ( thread.GetGlobalState ().GetThreadedCoroutines () == true ) {
+                // Lua gets the handle of the coroutine instead of the state
+                LuaAPI.lua_pop ( thread, 1 );
+                thread.GetCurrentCallInfo ().PushValue ( CoroutineThread.Create ( newThread ) );
+            }
             LuaAPI.lua_pushvalue ( thread, 1 );
             LuaAPI.lua_xmove ( thread, newThread, 1 );
             return 1;
@@ -783,9 +792,9 @@ class LuaBaseLib {
                 return CO_SUS;
             case 0: {
 
-                /*if (LuaAPI.lua_getstack(co, 0, &ar) > 0)  /* does it have frames? */
-                /*return CO_NOR;  /* it is running */
-                /*else */                if ( LuaAPI.lua_gettop ( co ) == 0 )
+                if ( co.GetCallInfosStackTop () > 1 )  /* does it have frames? */
+                    return CO_NOR;  /* it is running */
+                else if ( LuaAPI.lua_gettop ( co ) == 0 )
                     return CO_DEAD;
                 else
                     return CO_SUS;  /* initial state */
@@ -805,8 +814,13 @@ class LuaBaseLib {
             return -1;  /* error flag */
         }
         LuaAPI.lua_xmove ( thread, co, narg );
-        co.setNCCalls ( thread.getNCCalls () );
-        status = LuaAPI.lua_resume ( co, narg );
+        if ( co.GetCoroutineThread () != null ) {
+            status = co.GetCoroutineThread ().Resume ( narg );
+        }
+        else {
+            co.setNCCalls ( thread.getNCCalls () );
+            status = LuaAPI.lua_resume ( co, narg );
+        }
         if ( status == 0 || status == LUA_YIELD ) {
             int nres = LuaAPI.lua_gettop ( co );
             if (  ! LuaAPI.lua_checkstack ( thread, nres ) )
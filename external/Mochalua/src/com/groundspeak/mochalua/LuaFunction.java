@@ -23,8 +23,6 @@
 //
 package com.groundspeak.mochalua;
 
-import java.io.DataInputStream;
-import java.io.IOException;
 import java.io.ByteArrayOutputStream;
 
 /**
@@ -35,9 +33,9 @@ class LuaFunction {
 
     public class LocalVariable {
 
-        private String m_strName;
-        private int m_iStartIP;
-        private int m_iEndIP;
+        private final String m_strName;
+        private final int m_iStartIP;
+        private final int m_iEndIP;
 
         public LocalVariable ( String strName, int iStartIP, int iEndIP ) {
             this.m_strName = strName;
@@ -57,10 +55,32 @@ class LuaFunction {
             return this.m_iEndIP;
         }
     }
+
+    // Debug information of a function. Never changed once built, so its
+    // final fields let it be read without the lock of the function.
+    private static final class Debug {
+
+        private final int[] m_aLines;
+        private final String[] m_strUpValuesNames;
+        private final LocalVariable[] m_LocalVariables;
+
+        public Debug ( int[] aLines, String[] strUpValuesNames, LocalVariable[] localVariables ) {
+            this.m_aLines = aLines;
+            this.m_strUpValuesNames = strUpValuesNames;
+            this.m_LocalVariables = localVariables;
+        }
+    }
     private static final int VARARG_HASARG = 1;
     private static final int VARARG_ISVARARG = 2;
     private static final int VARARG_NEEDSARG = 4;
     private int[] m_aOpcodes;
+    // Instructions split into operands by Decode, RK constants are stored as -1 - index
+    private int[] m_aInstructions;
+    private int[] m_aArgsA;
+    private int[] m_aArgsB;
+    private int[] m_aArgsC;
+    // Calls and back jumps executed so far, see LVM.Quicken
+    private int m_iHotness;
     private Object[] m_aConstants;
     private String m_strSource;
     private int m_iLineDefined;
@@ -71,24 +91,38 @@ class LuaFunction {
     private boolean m_bNeedsArg;
     private int m_iMaxStackSize;
     private LuaFunction[] m_LuaFunctions;
-    private int[] m_aDebugLines;
-    private String[] m_strUpValuesNames;
-    private LocalVariable[] m_LocalVariables;
+    // The chunk the function was loaded from and where its nested functions
+    // and its debug information start in it, see GetLuaFunction, LoadDebug
+    private ChunkReader m_Chunk;
+    private int[] m_aLuaFunctionOffsets;
+    private int m_iDebugOffset;
+    // Set on functions made from a PrototypeCache entry. They share its code,
+    // constants and debug information and keep their own caches and counters.
+    private LuaFunction m_Prototype;
+    // Symbols of the universe the function belongs to, null for prototypes
+    // which may be shared by several universes
+    private SymbolTable m_Symbols;
+    // Loaded by LoadDebug on first use
+    private Debug m_Debug;
+    // Inline caches of the table access instructions, indexed by IP
+    private InlineCache[] m_InlineCaches;
+    private byte[] m_InlineCacheMisses;
 
     public int GetLocalVairablesSize () {
-        return m_LocalVariables != null ? m_LocalVariables.length : 0;
+        final Debug debug = GetDebug ();
+        return debug.m_LocalVariables != null ? debug.m_LocalVariables.length : 0;
     }
 
     public LocalVariable GetLocalVariable ( int iIndex ) {
-        return m_LocalVariables[iIndex];
+        return GetDebug ().m_LocalVariables[iIndex];
     }
 
     public final int GetDebugLinesQuantity () {
-        return this.m_aDebugLines != null ? this.m_aDebugLines.length : 0;
+        return GetDebug ().m_aLines.length;
     }
 
     public final int GetDebugLine ( int iIndex ) {
-        return this.m_aDebugLines[iIndex];
+        return GetDebug ().m_aLines[iIndex];
     }
 
     public final int GetConstantsQuantity () {
@@ -96,7 +130,7 @@ class LuaFunction {
     }
 
     public final String GetUpValueName ( int iIndex ) {
-        return m_strUpValuesNames[iIndex];
+        return GetDebug ().m_strUpValuesNames[iIndex];
     }
 
     public final int GetLineDefined () {
@@ -128,105 +162,36 @@ class LuaFunction {
     }
 
     public final int GetUpValuesSize () {
-        return this.m_strUpValuesNames.length;
-    }
-
-    public static final int ReverseBytes ( int intToReverse ) {
-        int a = ( intToReverse >> 24 ) & 0x000000FF;
-        int b = ( intToReverse >> 8 ) & 0x0000FF00;
-        int c = ( intToReverse << 8 ) & 0x00FF0000;
-        int d = intToReverse << 24;
-
-        return d | c | b | a;
-
-    }
-
-    public static final long ReverseBytes ( long v ) {
-        long a1 = ReverseBytes ( ( int ) ( v >> 32 ) ) & 0xFFFFFFFFL;
-        long b1 = ReverseBytes ( ( int ) v ) & 0xFFFFFFFFL;
-
-        return ( b1 << 32 ) | a1;
-    }
-
-    public static final int ReadLuaInt ( DataInputStream dis, boolean bIsLittleEndian ) throws IOException {
-        if ( bIsLittleEndian == true ) {
-            return ReverseBytes ( dis.readInt () );
-        }
-        else {
-            return dis.readInt ();
-        }
-    }
-
-    public static final long ReadLuaLong ( DataInputStream dis, boolean bIsLittleEndian ) throws IOException {
-        if ( bIsLittleEndian == true ) {
-            return ReverseBytes ( dis.readLong () );
-        }
-        else {
-            return dis.readLong ();
-        }
-    }
-
-    public static String ReadLuaString ( DataInputStream dis, boolean bIsLittleEndian, int iSizeOfsize_t ) throws IOException {
-        int iStringLength = 0;
-
-        if ( iSizeOfsize_t == 4 ) {
-            iStringLength = ReadLuaInt ( dis, bIsLittleEndian );
-        }
-        else // 8
-        {
-            iStringLength = ( int ) ReadLuaLong ( dis, bIsLittleEndian );
-        }
-
-        if ( iStringLength == 0 ) {
-            return null;
-        }
-
-        iStringLength = iStringLength - 1;  // Null char is not needed
-
-        byte[] aStringData = new byte[ iStringLength ];
-
-        int iBytesRead = dis.read ( aStringData, 0, iStringLength );
-
-        dis.read (); // Read the null char
-
-        String returnString = new String ( aStringData );
-
-        aStringData = null;
-
-        return returnString;
+        return GetDebug ().m_strUpValuesNames.length;
     }
 
-    public LuaFunction ( DataInputStream dis, boolean bIsLittleEndian, int iSizeOfsize_t, String strSource ) throws IOException {
-        this.m_strSource = ReadLuaString ( dis, bIsLittleEndian, iSizeOfsize_t );
+    public LuaFunction ( ChunkReader chunk, String strSource ) {
+        this.m_strSource = chunk.ReadString ();
         if ( m_strSource == null ) {
             this.m_strSource = strSource;
         }
 
-        this.m_iLineDefined = ReadLuaInt ( dis, bIsLittleEndian );
-        this.m_iLastLineDefined = ReadLuaInt ( dis, bIsLittleEndian );
+        this.m_iLineDefined = chunk.ReadInt ();
+        this.m_iLastLineDefined = chunk.ReadInt ();
 
-        this.m_iUpValuesQuantity = dis.read ();
-        this.m_iParamsQuantity = dis.read ();
+        this.m_iUpValuesQuantity = chunk.ReadByte ();
+        this.m_iParamsQuantity = chunk.ReadByte ();
 
-        int bVararg = dis.read ();
+        int bVararg = chunk.ReadByte ();
         this.m_bIsVararg = ( bVararg & VARARG_ISVARARG ) != 0;
         this.m_bNeedsArg = ( bVararg & VARARG_NEEDSARG ) != 0;
 
-        this.m_iMaxStackSize = dis.read ();
+        this.m_iMaxStackSize = chunk.ReadByte ();
 
         // Load code
-        int iCodeSize = ReadLuaInt ( dis, bIsLittleEndian );
-
-        this.m_aOpcodes = new int[ iCodeSize ];
-        for ( int iOpCode = 0; iOpCode < iCodeSize; iOpCode ++ ) {
-            m_aOpcodes[iOpCode] = ReadLuaInt ( dis, bIsLittleEndian );
-        }
+        this.m_aOpcodes = new int[ chunk.ReadInt () ];
+        chunk.ReadInts ( this.m_aOpcodes );
 
         // Load constants
-        int iConstantsQuantity = ReadLuaInt ( dis, bIsLittleEndian );
+        int iConstantsQuantity = chunk.ReadInt ();
         this.m_aConstants = new Object[ iConstantsQuantity ];
         for ( int iConstant = 0; iConstant < iConstantsQuantity; iConstant ++ ) {
-            switch ( dis.read () ) {
+            switch ( chunk.ReadByte () ) {
                 case LuaAPI.LUA_TNIL:
                      {
                         this.m_aConstants[iConstant] = null;
@@ -234,17 +199,17 @@ class LuaFunction {
                     break;
                 case LuaAPI.LUA_TBOOLEAN:
                      {
-                        this.m_aConstants[iConstant] = new Boolean ( dis.read () != 0 );
+                        this.m_aConstants[iConstant] = chunk.ReadByte () != 0 ? Boolean.TRUE : Boolean.FALSE;
                     }
                     break;
                 case LuaAPI.LUA_TNUMBER:
                      {
-                        this.m_aConstants[iConstant] = new Double ( Double.longBitsToDouble ( ReadLuaLong ( dis, bIsLittleEndian ) ) );
+                        this.m_aConstants[iConstant] = new Double ( Double.longBitsToDouble ( chunk.ReadLong () ) );
                     }
                     break;
                 case LuaAPI.LUA_TSTRING:
                      {
-                        this.m_aConstants[iConstant] = ReadLuaString ( dis, bIsLittleEndian, iSizeOfsize_t );
+                        this.m_aConstants[iConstant] = chunk.ReadString ();
                     }
                     break;
                 default: {
@@ -253,42 +218,255 @@ class LuaFunction {
             }
         }
 
-        // Load prototypes
-        int iLuaFunctionsQuantity = ReadLuaInt ( dis, bIsLittleEndian );
+        // Prototypes and debug information are only located here and read
+        // when they are first used
+        int iLuaFunctionsQuantity = chunk.ReadInt ();
         this.m_LuaFunctions = new LuaFunction[ iLuaFunctionsQuantity ];
+        this.m_aLuaFunctionOffsets = new int[ iLuaFunctionsQuantity ];
         for ( int iLuaFunction = 0; iLuaFunction < iLuaFunctionsQuantity; iLuaFunction ++ ) {
-            this.m_LuaFunctions[iLuaFunction] = new LuaFunction ( dis, bIsLittleEndian, iSizeOfsize_t, this.m_strSource );
+            this.m_aLuaFunctionOffsets[iLuaFunction] = chunk.GetPosition ();
+            chunk.SkipFunction ();
+        }
+
+        this.m_iDebugOffset = chunk.GetPosition ();
+        chunk.SkipDebug ();
+
+        this.m_Chunk = chunk;
+    }
+
+    // Makes a function of a state out of a shared prototype
+    public LuaFunction ( LuaFunction prototype, SymbolTable symbols ) {
+        this.m_Prototype = prototype;
+        this.m_Symbols = symbols;
+        this.m_strSource = prototype.m_strSource;
+        this.m_iLineDefined = prototype.m_iLineDefined;
+        this.m_iLastLineDefined = prototype.m_iLastLineDefined;
+        this.m_iUpValuesQuantity = prototype.m_iUpValuesQuantity;
+        this.m_iParamsQuantity = prototype.m_iParamsQuantity;
+        this.m_bIsVararg = prototype.m_bIsVararg;
+        this.m_bNeedsArg = prototype.m_bNeedsArg;
+        this.m_iMaxStackSize = prototype.m_iMaxStackSize;
+        this.m_aOpcodes = prototype.m_aOpcodes;
+        this.m_aInstructions = prototype.m_aInstructions;
+        this.m_aArgsA = prototype.m_aArgsA;
+        this.m_aArgsB = prototype.m_aArgsB;
+        this.m_aArgsC = prototype.m_aArgsC;
+        this.m_aConstants = prototype.m_aConstants;
+        this.m_LuaFunctions = new LuaFunction[ prototype.m_LuaFunctions.length ];
+        InternConstants ();
+    }
+
+    // Makes the function use the symbols of its universe for its string
+    // constants. The constants of a prototype are only copied if another
+    // universe had different instances of them.
+    public final void SetSymbols ( SymbolTable symbols ) {
+        this.m_Symbols = symbols;
+        InternConstants ();
+    }
+
+    private void InternConstants () {
+        final Object[] aSharedConstants = this.m_Prototype != null ? this.m_Prototype.m_aConstants : null;
+        for ( int iConstant = 0; iConstant < this.m_aConstants.length; iConstant ++ ) {
+            final Object constant = this.m_aConstants[iConstant];
+            if ( constant instanceof String ) {
+                final String symbol = this.m_Symbols.Intern ( ( String ) constant );
+                if ( symbol != constant ) {
+                    if ( this.m_aConstants == aSharedConstants ) {
+                        this.m_aConstants = new Object[ aSharedConstants.length ];
+                        System.arraycopy ( aSharedConstants, 0, this.m_aConstants, 0, aSharedConstants.length );
+                    }
+                    this.m_aConstants[iConstant] = symbol;
+                }
+            }
         }
+    }
 
-        // Load debug
-        int iDebugLines = ReadLuaInt ( dis, bIsLittleEndian );
-        this.m_aDebugLines = new int[ iDebugLines ];
-        for ( int iLine = 0; iLine < iDebugLines; iLine ++ ) {
-            this.m_aDebugLines[iLine] = ReadLuaInt ( dis, bIsLittleEndian );
+    private Debug GetDebug () {
+        final Debug debug = this.m_Debug;
+        if ( debug != null ) {
+            return debug;
         }
+        return LoadDebug ();
+    }
+
+    private synchronized Debug LoadDebug () {
+        if ( this.m_Debug != null ) {
+            return this.m_Debug;
+        }
+
+        if ( this.m_Prototype != null ) {
+            this.m_Debug = this.m_Prototype.GetDebug ();
+            return this.m_Debug;
+        }
+
+        final ChunkReader chunk = this.m_Chunk.At ( this.m_iDebugOffset );
+
+        int iDebugLines = chunk.ReadInt ();
+        final int[] aDebugLines = new int[ iDebugLines ];
+        chunk.ReadInts ( aDebugLines );
 
         // Read local vairables
-        int iLocalVairablesQuantity = ReadLuaInt ( dis, bIsLittleEndian );
-        this.m_LocalVariables = new LocalVariable[ iLocalVairablesQuantity ];
+        int iLocalVairablesQuantity = chunk.ReadInt ();
+        final LocalVariable[] localVariables = new LocalVariable[ iLocalVairablesQuantity ];
         for ( int iLocVar = 0; iLocVar < iLocalVairablesQuantity; iLocVar ++ ) {
-            this.m_LocalVariables[iLocVar] = new LocalVariable (
-                ReadLuaString ( dis, bIsLittleEndian, iSizeOfsize_t ),
-                ReadLuaInt ( dis, bIsLittleEndian ),
-                ReadLuaInt ( dis, bIsLittleEndian ) );
+            localVariables[iLocVar] = new LocalVariable (
+                chunk.ReadString (),
+                chunk.ReadInt (),
+                chunk.ReadInt () );
         }
 
         // Read upvalues
-        int iUpValuesNames = ReadLuaInt ( dis, bIsLittleEndian );
-        this.m_strUpValuesNames = new String[ iUpValuesNames ];
+        int iUpValuesNames = chunk.ReadInt ();
+        final String[] strUpValuesNames = new String[ iUpValuesNames ];
         for ( int iUpValuesName = 0; iUpValuesName < iUpValuesNames; iUpValuesName ++ ) {
-            this.m_strUpValuesNames[iUpValuesName] = ReadLuaString ( dis, bIsLittleEndian, iSizeOfsize_t );
+            strUpValuesNames[iUpValuesName] = chunk.ReadString ();
         }
+
+        this.m_Debug = new Debug ( aDebugLines, strUpValuesNames, localVariables );
+        return this.m_Debug;
+    }
+
+    // Nested functions are made on first use. Prototypes are shared with
+    // states on other threads and a LuaFunction is no immutable object, so
+    // they are looked up under the lock.
+    public final synchronized LuaFunction GetLuaFunction ( int iIndex ) {
+        if ( this.m_LuaFunctions[iIndex] == null ) {
+            final LuaFunction luaFunction;
+            if ( this.m_Prototype != null ) {
+                luaFunction = new LuaFunction ( this.m_Prototype.GetLuaFunction ( iIndex ), this.m_Symbols );
+            }
+            else {
+                luaFunction = new LuaFunction ( this.m_Chunk.At ( this.m_aLuaFunctionOffsets[iIndex] ), this.m_strSource );
+                luaFunction.Decode ();
+                if ( this.m_Symbols != null ) {
+                    luaFunction.SetSymbols ( this.m_Symbols );
+                }
+            }
+            this.m_LuaFunctions[iIndex] = luaFunction;
+        }
+        return this.m_LuaFunctions[iIndex];
     }
 
     public final int GetOpCode ( int iIndex ) {
         return this.m_aOpcodes[iIndex];
     }
 
+    public final InlineCache GetInlineCache ( int iIP ) {
+        return this.m_InlineCaches != null ? this.m_InlineCaches[iIP] : null;
+    }
+
+    public final void SetInlineCache ( int iIP, InlineCache cache ) {
+        if ( this.m_InlineCaches == null ) {
+            this.m_InlineCaches = new InlineCache[ this.m_aOpcodes.length ];
+            this.m_InlineCacheMisses = new byte[ this.m_aOpcodes.length ];
+        }
+        this.m_InlineCaches[iIP] = cache;
+    }
+
+    public final int IncrementInlineCacheMisses ( int iIP ) {
+        return ++ this.m_InlineCacheMisses[iIP];
+    }
+
+    public final int[] GetInstructions () {
+        return this.m_aInstructions;
+    }
+
+    // Instructions which may be rewritten in place, see LVM.Quicken. The ones
+    // shared with the prototype are copied first.
+    public final int[] GetWritableInstructions () {
+        if ( this.m_Prototype != null && this.m_aInstructions == this.m_Prototype.m_aInstructions ) {
+            final int[] aInstructions = new int[ this.m_aInstructions.length ];
+            System.arraycopy ( this.m_aInstructions, 0, aInstructions, 0, aInstructions.length );
+            this.m_aInstructions = aInstructions;
+        }
+        return this.m_aInstructions;
+    }
+
+    public final int[] GetArgsA () {
+        return this.m_aArgsA;
+    }
+
+    public final int[] GetArgsB () {
+        return this.m_aArgsB;
+    }
+
+    public final int[] GetArgsC () {
+        return this.m_aArgsC;
+    }
+
+    public final Object[] GetConstants () {
+        return this.m_aConstants;
+    }
+
+    // Returns true exactly once, when the function becomes hot
+    public final boolean IncrementHotness () {
+        return ++ this.m_iHotness == LVM.HOT_THRESHOLD;
+    }
+
+    private static final int DecodeRK ( int iArg ) {
+        return LVM.IsConstant ( iArg ) ? -1 - LVM.GetConstantIndex ( iArg ) : iArg;
+    }
+
+    // Splits the instructions of the function once, so LVM.Execute doesn't
+    // have to extract the operands on every step. Nested functions are
+    // decoded when GetLuaFunction builds them.
+    public final void Decode () {
+        final int iSize = this.m_aOpcodes.length;
+        this.m_aInstructions = new int[ iSize ];
+        this.m_aArgsA = new int[ iSize ];
+        this.m_aArgsB = new int[ iSize ];
+        this.m_aArgsC = new int[ iSize ];
+
+        for ( int iIP = 0; iIP < iSize; iIP ++ ) {
+            final int iOpCode = this.m_aOpcodes[iIP];
+            final int iInstruction = LVM.GetInstruction ( iOpCode );
+
+            this.m_aInstructions[iIP] = iInstruction;
+            this.m_aArgsA[iIP] = LVM.GetA8 ( iOpCode );
+
+            switch ( iInstruction ) {
+                case LVM.OP_LOADK:
+                case LVM.OP_GETGLOBAL:
+                case LVM.OP_SETGLOBAL:
+                case LVM.OP_CLOSURE: {
+                    this.m_aArgsB[iIP] = LVM.GetBx ( iOpCode );
+                    break;
+                }
+                case LVM.OP_JMP:
+                case LVM.OP_FORLOOP:
+                case LVM.OP_FORPREP: {
+                    this.m_aArgsB[iIP] = LVM.GetSBx ( iOpCode );
+                    break;
+                }
+                case LVM.OP_GETTABLE:
+                case LVM.OP_SELF: {
+                    this.m_aArgsB[iIP] = LVM.GetB9 ( iOpCode );
+                    this.m_aArgsC[iIP] = DecodeRK ( LVM.GetC9 ( iOpCode ) );
+                    break;
+                }
+                case LVM.OP_SETTABLE:
+                case LVM.OP_ADD:
+                case LVM.OP_SUB:
+                case LVM.OP_MUL:
+                case LVM.OP_DIV:
+                case LVM.OP_MOD:
+                case LVM.OP_POW:
+                case LVM.OP_EQ:
+                case LVM.OP_LT:
+                case LVM.OP_LE: {
+                    this.m_aArgsB[iIP] = DecodeRK ( LVM.GetB9 ( iOpCode ) );
+                    this.m_aArgsC[iIP] = DecodeRK ( LVM.GetC9 ( iOpCode ) );
+                    break;
+                }
+                default: {
+                    this.m_aArgsB[iIP] = LVM.GetB9 ( iOpCode );
+                    this.m_aArgsC[iIP] = LVM.GetC9 ( iOpCode );
+                    break;
+                }
+            }
+        }
+    }
+
     public final int GetSizeOpCode () {
         return this.m_aOpcodes != null ? this.m_aOpcodes.length : 0;
     }
@@ -302,11 +480,8 @@ class LuaFunction {
     }
 
     public final int[] GetDebugLines () {
-        return this.m_aDebugLines;
-    }
-
-    public final LuaFunction GetLuaFunction ( int iIndex ) {
-        return this.m_LuaFunctions[iIndex];
+        final Debug debug = GetDebug ();
+        return debug.m_aLines;
     }
 
     public final int GetUpValuesQuantity () {
@@ -415,27 +590,28 @@ class LuaFunction {
         // Save prototypes
         WriteLuaInt ( baos, bIsLittleEndian, this.m_LuaFunctions.length );
         for ( int iLuaFunction = 0; iLuaFunction < this.m_LuaFunctions.length; iLuaFunction ++ ) {
-            this.m_LuaFunctions[iLuaFunction].Dump ( baos, iSizeOfsize_t, bIsLittleEndian, writer, this.m_strSource, userData );
+            GetLuaFunction ( iLuaFunction ).Dump ( baos, iSizeOfsize_t, bIsLittleEndian, writer, this.m_strSource, userData );
         }
 
         // Save debug
-        WriteLuaInt ( baos, bIsLittleEndian, this.m_aDebugLines.length );
-        for ( int iLine = 0; iLine < this.m_aDebugLines.length; iLine ++ ) {
-            WriteLuaInt ( baos, bIsLittleEndian, this.m_aDebugLines[iLine] );
+        final Debug debug = GetDebug ();
+        WriteLuaInt ( baos, bIsLittleEndian, debug.m_aLines.length );
+        for ( int iLine = 0; iLine < debug.m_aLines.length; iLine ++ ) {
+            WriteLuaInt ( baos, bIsLittleEndian, debug.m_aLines[iLine] );
         }
 
         // Save debug
-        WriteLuaInt ( baos, bIsLittleEndian, this.m_LocalVariables.length );
-        for ( int iLocVar = 0; iLocVar < this.m_LocalVariables.length; iLocVar ++ ) {
-            WriteLuaString ( baos, bIsLittleEndian, iSizeOfsize_t, this.m_LocalVariables[iLocVar].GetName () );
-            WriteLuaInt ( baos, bIsLittleEndian, this.m_LocalVariables[iLocVar].GetStartIP () );
-            WriteLuaInt ( baos, bIsLittleEndian, this.m_LocalVariables[iLocVar].GetEndIP () );
+        WriteLuaInt ( baos, bIsLittleEndian, debug.m_LocalVariables.length );
+        for ( int iLocVar = 0; iLocVar < debug.m_LocalVariables.length; iLocVar ++ ) {
+            WriteLuaString ( baos, bIsLittleEndian, iSizeOfsize_t, debug.m_LocalVariables[iLocVar].GetName () );
+            WriteLuaInt ( baos, bIsLittleEndian, debug.m_LocalVariables[iLocVar].GetStartIP () );
+            WriteLuaInt ( baos, bIsLittleEndian, debug.m_LocalVariables[iLocVar].GetEndIP () );
         }
 
         // Save upvalues
-        WriteLuaInt ( baos, bIsLittleEndian, this.m_strUpValuesNames.length );
-        for ( int iUpValue = 0; iUpValue < this.m_strUpValuesNames.length; iUpValue ++ ) {
-            WriteLuaString ( baos, bIsLittleEndian, iSizeOfsize_t, this.m_strUpValuesNames[iUpValue] );
+        WriteLuaInt ( baos, bIsLittleEndian, debug.m_strUpValuesNames.length );
+        for ( int iUpValue = 0; iUpValue < debug.m_strUpValuesNames.length; iUpValue ++ ) {
+            WriteLuaString ( baos, bIsLittleEndian, iSizeOfsize_t, debug.m_strUpValuesNames[iUpValue] );
         }
     }
 }
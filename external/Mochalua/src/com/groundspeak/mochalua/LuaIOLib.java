@@ -48,6 +48,8 @@ class LuaIOLib {
     public final static int _IONBF = 0x0004;
     //public final static int LIMIT = 10;
     public final static String[] fnames = { "input", "output" };
+    // Bytes read from a file at a time
+    private final static int READ_BUFFER_SIZE = 4096;
 
     static class FileStruct {
 
@@ -75,6 +77,61 @@ class LuaIOLib {
         private boolean isFlushed = true;
         private int lastOp = OP_NONE;
         public boolean bothRWMode = false;
+        // Bytes read ahead of inputStream in ACCESS_MODE_READ, bufferPosition
+        // is the position of readBuffer[readBufferStart] in the file
+        private byte[] readBuffer = null;
+        private int readBufferStart = 0;
+        private int readBufferEnd = 0;
+        // Reused for building the lines returned by readLine
+        private char[] lineBuffer = null;
+        // List of the temp files of the state if this is one
+        private Vector tempFiles = null;
+
+        private boolean fillReadBuffer () throws IOException {
+            if ( inputStream == null )
+                inputStream = connection.openInputStream ();
+            if ( inputStream == null )
+                return false;
+            if ( readBuffer == null )
+                readBuffer = new byte[ READ_BUFFER_SIZE ];
+
+            int n = inputStream.read ( readBuffer, 0, readBuffer.length );
+            readBufferStart = 0;
+            readBufferEnd = n > 0 ? n : 0;
+            return n > 0;
+        }
+
+        private int readByte () throws IOException {
+            if ( readBufferStart == readBufferEnd && fillReadBuffer () == false )
+                return -1;
+            bufferPosition ++;
+            return readBuffer[readBufferStart ++] & 0xFF;
+        }
+
+        // Moves to position in ACCESS_MODE_READ, inside the read buffer if it
+        // holds that position
+        private void seekRead ( int position ) throws IOException {
+            int delta = position - bufferPosition;
+            if ( delta >= -readBufferStart && delta <= readBufferEnd - readBufferStart ) {
+                readBufferStart += delta;
+            }
+            else {
+                inputStream.reset ();
+                inputStream.skip ( position );
+                readBufferStart = readBufferEnd = 0;
+            }
+            bufferPosition = position;
+        }
+
+        private char[] growLineBuffer ( int length ) {
+            if ( lineBuffer == null || lineBuffer.length < length ) {
+                char[] chars = new char[ Math.max ( length, lineBuffer == null ? 128 : lineBuffer.length * 2 ) ];
+                if ( lineBuffer != null )
+                    System.arraycopy ( lineBuffer, 0, chars, 0, lineBuffer.length );
+                lineBuffer = chars;
+            }
+            return lineBuffer;
+        }
 
         public int fread ( StringBuffer buf, int size, int count ) {
             if ( bothRWMode && lastOp == OP_WRITE ) {
@@ -87,20 +144,14 @@ class LuaIOLib {
                         return -1;
                     }
                     case ACCESS_MODE_READ: {
-                        if ( inputStream == null )
-                            inputStream = connection.openInputStream ();
-                        if ( inputStream == null )
-                            return -1;
-
                         int k = 0;
                         int i = 0;
                         lastOp = OP_READ;
                         for (; i < count * size; i ++ ) {
-                            k = inputStream.read ();
+                            k = readByte ();
                             if ( k == -1 )
                                 return -1;
                             buf.append ( ( char ) k );
-                            bufferPosition ++;
                         }
                         return i;
                     }
@@ -256,19 +307,13 @@ class LuaIOLib {
                     return -1;
                 }
                 case ACCESS_MODE_READ: {
-                    if ( inputStream == null )
-                        inputStream = connection.openInputStream ();
-                    if ( inputStream == null )
-                        throw new Exception ();
-
                     int k = 0;
                     lastOp = OP_READ;
                     StringBuffer sb = new StringBuffer ();
                     boolean isNonWSCharOccurred = false;
 
                     for (;;) {
-                        k = inputStream.read ();
-                        bufferPosition ++;
+                        k = readByte ();
                         switch ( k ) {
                             case ' ':
                             case '\n':
@@ -276,9 +321,9 @@ class LuaIOLib {
                                 if ( isNonWSCharOccurred == false ) {
                                     continue;
                                 }
+                                // Put the white space back
+                                readBufferStart --;
                                 bufferPosition --;
-                                inputStream.reset ();
-                                inputStream.skip ( bufferPosition );
 
                                 Double res = new Double ( ( ( Double ) Double.valueOf ( sb.toString () ) ).doubleValue () );
                                 if ( res != null ) {
@@ -364,19 +409,13 @@ class LuaIOLib {
                     }
                     case ACCESS_MODE_READ: {
                         lastOp = OP_READ;
-                        if ( inputStream == null )
-                            inputStream = connection.openInputStream ();
-                        if ( inputStream == null )
-                            return null;
-
                         int k = 0;
                         for ( int i = 0; i < num; i ++ ) {
-                            k = inputStream.read ();
+                            k = readByte ();
                             if ( k == -1 ) {
                                 return null;
                             }
                             str.append ( ( char ) k );
-                            bufferPosition ++;
                             if ( ( ( char ) k ) == '\n' )
                                 return str;
                         }
@@ -429,9 +468,7 @@ class LuaIOLib {
                                     inputStream = connection.openInputStream ();
                                 if ( inputStream == null )
                                     return 1;
-                                inputStream.reset ();
-                                inputStream.skip ( offset );
-                                bufferPosition = ( int ) ( offset );
+                                seekRead ( ( int ) offset );
                                 return 0;
                             }
                             case ACCESS_MODE_WRITE:
@@ -456,18 +493,11 @@ class LuaIOLib {
                                 if ( inputStream == null )
                                     return 1;
 
-                                bufferPosition += ( int ) ( offset );
-                                if ( bufferPosition < 0 )
-                                    bufferPosition = 0;
-                                if ( offset > 0 ) {
-                                    inputStream.skip ( offset );
-                                    return 0;
-                                }
-                                else {
-                                    inputStream.reset ();
-                                    inputStream.skip ( bufferPosition );
-                                    return 0;
-                                }
+                                int position = bufferPosition + ( int ) ( offset );
+                                if ( position < 0 )
+                                    position = 0;
+                                seekRead ( position );
+                                return 0;
                             }
                             case ACCESS_MODE_WRITE:
                             case ACCESS_MODE_APPEND:
@@ -496,19 +526,10 @@ class LuaIOLib {
                                 if ( inputStream == null )
                                     return 1;
 
-                                int fileSize = 0;
-                                byte c;
-                                int j = 0;
-                                inputStream.reset ();
-                                while ( ( j = inputStream.read () ) != -1 ) {
-                                    fileSize ++;
-                                }
-                                inputStream.reset ();
-
-                                bufferPosition = fileSize - ( int ) offset;
-                                if ( bufferPosition < 0 )
-                                    bufferPosition = 0;
-                                inputStream.skip ( bufferPosition );
+                                int position = ( int ) connection.fileSize () - ( int ) offset;
+                                if ( position < 0 )
+                                    position = 0;
+                                seekRead ( position );
                                 return 0;
                             }
                             case ACCESS_MODE_WRITE:
@@ -589,8 +610,11 @@ class LuaIOLib {
                 if ( buffer != null ) {
                     buffer = null;
                 }
-                if ( tempFiles != null && tempFiles.contains ( this ) ) {
+                readBuffer = null;
+                lineBuffer = null;
+                if ( tempFiles != null ) {
                     tempFiles.removeElement ( this );
+                    tempFiles = null;
                 }
                 System.gc ();
                 isClosed = true;
@@ -601,6 +625,128 @@ class LuaIOLib {
             }
         }
 
+        // Returns the next line without its end of line or null at the end
+        // of the file. The line is the only object made.
+        public String readLine () {
+            if ( bothRWMode && lastOp == OP_WRITE ) {
+                return null;
+            }
+            try {
+                switch ( accessMode ) {
+                    case ACCESS_MODE_READ: {
+                        lastOp = OP_READ;
+                        int length = 0;
+                        for (;;) {
+                            if ( readBufferStart == readBufferEnd && fillReadBuffer () == false ) {
+                                return length > 0 ? new String ( lineBuffer, 0, length ) : null;
+                            }
+
+                            final byte[] data = readBuffer;
+                            final int start = readBufferStart;
+                            final int last = readBufferEnd;
+                            int end = start;
+                            while ( end < last && data[end] != '\n' ) {
+                                end ++;
+                            }
+
+                            final char[] chars = growLineBuffer ( length + end - start );
+                            for ( int i = start; i < end; i ++ ) {
+                                chars[length ++] = ( char ) ( data[i] & 0xFF );
+                            }
+                            if ( end < last ) {
+                                readBufferStart = end + 1;
+                                bufferPosition += end + 1 - start;
+                                return new String ( chars, 0, length );
+                            }
+                            readBufferStart = end;
+                            bufferPosition += end - start;
+                        }
+                    }
+                    case ACCESS_MODE_READ_PLUS:
+                    case ACCESS_MODE_WRITE_PLUS:
+                    case ACCESS_MODE_APPEND_PLUS: {
+                        lastOp = OP_READ;
+                        final int last = buffer.length ();
+                        if ( bufferPosition >= last ) {
+                            return null;
+                        }
+
+                        int end = bufferPosition;
+                        while ( end < last && buffer.charAt ( end ) != '\n' ) {
+                            end ++;
+                        }
+
+                        final char[] chars = growLineBuffer ( end - bufferPosition );
+                        buffer.getChars ( bufferPosition, end, chars, 0 );
+                        final String line = new String ( chars, 0, end - bufferPosition );
+                        bufferPosition = end < last ? end + 1 : end;
+                        return line;
+                    }
+                }
+                return null;
+            }
+            catch ( Exception ex ) {
+                return null;
+            }
+        }
+
+        // Returns the rest of the file, or null if it can't be read. In
+        // ACCESS_MODE_READ the characters go straight into an array sized
+        // by the file size.
+        public String readAll () {
+            if ( bothRWMode && lastOp == OP_WRITE ) {
+                return null;
+            }
+            try {
+                switch ( accessMode ) {
+                    case ACCESS_MODE_READ: {
+                        lastOp = OP_READ;
+                        int size = 0;
+                        try {
+                            size = ( int ) connection.fileSize () - bufferPosition;
+                        }
+                        catch ( Exception ex ) {
+                        }
+
+                        char[] chars = new char[ Math.max ( size, 0 ) + 1 ];
+                        int length = 0;
+                        while ( readBufferStart < readBufferEnd || fillReadBuffer () == true ) {
+                            final int n = readBufferEnd - readBufferStart;
+                            if ( length + n > chars.length ) {
+                                char[] grown = new char[ Math.max ( length + n, chars.length * 2 ) ];
+                                System.arraycopy ( chars, 0, grown, 0, length );
+                                chars = grown;
+                            }
+                            final byte[] data = readBuffer;
+                            for ( int i = readBufferStart; i < readBufferEnd; i ++ ) {
+                                chars[length ++] = ( char ) ( data[i] & 0xFF );
+                            }
+                            bufferPosition += n;
+                            readBufferStart = readBufferEnd;
+                        }
+                        return new String ( chars, 0, length );
+                    }
+                    case ACCESS_MODE_READ_PLUS:
+                    case ACCESS_MODE_WRITE_PLUS:
+                    case ACCESS_MODE_APPEND_PLUS: {
+                        lastOp = OP_READ;
+                        final int last = buffer.length ();
+                        if ( bufferPosition >= last ) {
+                            return "";
+                        }
+                        final char[] chars = new char[ last - bufferPosition ];
+                        buffer.getChars ( bufferPosition, last, chars, 0 );
+                        bufferPosition = last;
+                        return new String ( chars );
+                    }
+                }
+                return null;
+            }
+            catch ( Exception ex ) {
+                return null;
+            }
+        }
+
         public int setvbuf ( int mode, int buffSize ) {
             if ( buffSize <= 0 && mode != _IONBF )
                 return 1;
@@ -610,17 +756,15 @@ class LuaIOLib {
         }
     }
     public static final String LUA_IOLIBNAME = "io";
-    private static Vector tempFiles = null;
-
-    public static void clearTempFilesVector () {
-        if ( tempFiles != null ) {
-            int size = tempFiles.size ();
-            for ( int i = 0; i < size; i ++ ) {
-                FileStruct file = ( FileStruct ) tempFiles.elementAt ( i );
-                file.fclose ();
+
+    // Closes and deletes the temp files left open in the list, see
+    // global_State.GetTempFiles
+    public static void closeTempFiles ( Vector tempFiles ) {
+        while ( tempFiles.size () > 0 ) {
+            FileStruct file = ( FileStruct ) tempFiles.elementAt ( tempFiles.size () - 1 );
+            if ( file.fclose () != 0 ) {
+                tempFiles.removeElement ( file );
             }
-            tempFiles.removeAllElements ();
-            tempFiles = null;
         }
     }
 
@@ -646,10 +790,8 @@ class LuaIOLib {
         root += System.currentTimeMillis () + ".txt";
         file = fopen ( file, root, "w+" );
         if ( file != null ) {
-            if ( tempFiles == null ) {
-                tempFiles = new Vector ();
-            }
-            tempFiles.addElement ( file );
+            file.tempFiles = thread.GetGlobalState ().GetTempFiles ();
+            file.tempFiles.addElement ( file );
         }
 
         return file;
@@ -819,37 +961,24 @@ class LuaIOLib {
     }
 
     static int read_line ( lua_State thread, FileStruct file ) {
-        StringBuffer p = new StringBuffer ();
-        for (;;) {
-            int l;
-            if ( file.fgets ( p, LuaAPI.LUAL_BUFFERSIZE ) == null )/* eof? */ {
-                LuaAPI.lua_pushstring ( thread, p.toString () );// luaL_pushresult(&b);  /* close buffer */
-
-                int res = 0;
-                if ( LuaAPI.lua_objlen ( thread, -1 ) > 0 ) /* check whether read something */
-
-                    res = 1;
-                return res;
-            }
-            //String c = p.toString();
-            //System.out.println(c);
-            l = p.length ();
+        String line = file.readLine ();
+        if ( line == null ) /* eof? */ {
+            LuaAPI.lua_pushstring ( thread, "" );
+            return 0;
+        }
+        LuaAPI.lua_pushstring ( thread, line );
+        return 1;
+    }
 
-            if ( l == 0 || p.charAt ( l - 1 ) != '\n' ) {
-                //luaL_addsize(&b, l);
-            }
-            else {
-                //luaL_addsize(&b, l - 1);  /* do not include `eol' */
-                String str = p.toString ();
-                int len = str.length ();
-                len -= 1;
-                if ( len < 0 )
-                    len = 0;
-                LuaAPI.lua_pushstring ( thread, str.substring ( 0, len ) );/* do not include `eol' */
-                //luaL_pushresult(&b);  /* close buffer */
-                return 1;  /* read at least an `eol' */
-            }
+    static int read_all ( lua_State thread, FileStruct file ) {
+        String all = file.readAll ();
+        if ( all == null ) {
+            read_chars ( thread, file, Integer.MAX_VALUE );  /* read MAX_SIZE_T chars */
+        }
+        else {
+            LuaAPI.lua_pushstring ( thread, all );
         }
+        return 1;  /* always success */
     }
 
     static int g_read ( lua_State thread, FileStruct file, int first ) {
@@ -886,8 +1015,7 @@ class LuaIOLib {
                             success = read_line ( thread, file );
                             break;
                         case 'a':  /* file */
-                            read_chars ( thread, file, Integer.MAX_VALUE );  /* read MAX_SIZE_T chars */
-                            success = 1; /* always success */
+                            success = read_all ( thread, file );
                             break;
                         default:
                             return LuaAPI.luaL_argerror ( thread, n, "invalid format" );
@@ -23,8 +23,6 @@
 //
 package com.groundspeak.mochalua;
 
-import java.util.Random;
-
 /**
  *
  * @author a.fornwald
@@ -35,9 +33,8 @@ class LuaMathLib {
 
     public static final String LUA_MATHLIBNAME = "math";
     private static final double RADIANS_PER_DEGREE = PI / 180.0;
-    private static Random m_Random = new Random ();
 
-    private static double arcsin ( double x0 ) {
+    public static double arcsin ( double x0 ) {
         if ( x0 <=  - 1.F ) {
             return  - PI / 2;
         }
@@ -70,7 +67,7 @@ class LuaMathLib {
         return y;
     }
 
-    private static double arctg ( double x0 ) {
+    public static double arctg ( double x0 ) {
         int sp = 0;
         double x, x2, y;
         x = x0;
@@ -196,7 +193,7 @@ class LuaMathLib {
         return log ( x ) / 2302585092994045684L;
     }
 
-    private static double exp ( double x0 ) {
+    public static double exp ( double x0 ) {
         double x = x0;
         if ( x0 < 0 ) {
             x =  - x0;
@@ -265,25 +262,51 @@ class LuaMathLib {
         return x % y;
     }
 
-    private static double cosh ( double x ) {
+    public static double cosh ( double x ) {
         return ( exp ( x ) + exp (  - x ) ) / 2;
     }
 
-    private static double sinh ( double x ) {
+    public static double sinh ( double x ) {
         return ( exp ( x ) - exp (  - x ) ) / 2;
     }
 
-    private static double tgh ( double x ) {
+    public static double tgh ( double x ) {
         return sinh ( x ) / cosh ( x );
     }
 
-    private static double arccos ( double x0 ) {
+    public static double arccos ( double x0 ) {
         return PI / 2 - arcsin ( x0 );
     }
     private static final int MASK = 0x7ff;
     private static final int SHIFT = ( 64 - 11 - 1 );
     private static final int BIAS = 1022;
 
+    public static double ldexp ( double d, int e ) {
+        long x;
+
+        if ( d == 0 ) {
+            return 0.0;
+        }
+
+        x = Double.doubleToLongBits ( d );
+
+        e = e + ( ( int ) ( x >> SHIFT ) & MASK );
+
+        if ( e <= 0 ) {
+            return 0;	/* underflow */
+        }
+        if ( e >= MASK ) {		/* overflow */
+            if ( d < 0 ) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        x &=  ~ ( ( long ) MASK << SHIFT );
+        x |= ( long ) e << SHIFT;
+        return Double.longBitsToDouble ( x );
+    }
+
     public static final class math_abs implements JavaFunction {
 
         public int Call ( lua_State thread ) {
@@ -295,7 +318,7 @@ class LuaMathLib {
     public static final class math_acos implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, arccos ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Acos ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
             return 1;
         }
     }
@@ -303,7 +326,7 @@ class LuaMathLib {
     public static final class math_asin implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, arcsin ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Asin ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
             return 1;
         }
     }
@@ -311,7 +334,7 @@ class LuaMathLib {
     public static final class math_atan2 implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, arctg2 ( LuaAPI.luaL_checknumber ( thread, 1 ), LuaAPI.luaL_checknumber ( thread, 2 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Atan2 ( LuaAPI.luaL_checknumber ( thread, 1 ), LuaAPI.luaL_checknumber ( thread, 2 ) ) );
             return 1;
         }
     }
@@ -319,7 +342,7 @@ class LuaMathLib {
     public static final class math_atan implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, arctg ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Atan ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
             return 1;
         }
     }
@@ -335,7 +358,7 @@ class LuaMathLib {
     public static final class math_cosh implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, cosh ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Cosh ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
             return 1;
         }
     }
@@ -359,7 +382,7 @@ class LuaMathLib {
     public static final class math_exp implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, exp ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Exp ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
             return 1;
         }
     }
@@ -413,35 +436,9 @@ class LuaMathLib {
 
     public static final class math_ldexp implements JavaFunction {
 
-        private static double ldexp ( double d, int e ) {
-            long x;
-
-            if ( d == 0 ) {
-                return 0.0;
-            }
-
-            x = Double.doubleToLongBits ( d );
-
-            e = e + ( ( int ) ( x >> SHIFT ) & MASK );
-
-            if ( e <= 0 ) {
-                return 0;	/* underflow */
-            }
-            if ( e >= MASK ) {		/* overflow */
-                if ( d < 0 ) {
-                    return Double.NEGATIVE_INFINITY;
-                }
-                return Double.POSITIVE_INFINITY;
-            }
-
-            x &=  ~ ( ( long ) MASK << SHIFT );
-            x |= ( long ) e << SHIFT;
-            return Double.longBitsToDouble ( x );
-        }
-
         public int Call ( lua_State thread ) {
             int e = LuaAPI.luaL_checkint ( thread, 2 );
-            LuaAPI.lua_pushnumber ( thread, ldexp ( LuaAPI.luaL_checknumber ( thread, 1 ), e ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Ldexp ( LuaAPI.luaL_checknumber ( thread, 1 ), e ) );
             return 1;
         }
     }
@@ -449,7 +446,7 @@ class LuaMathLib {
     public static final class math_log10 implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, log10 ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Log10 ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
             return 1;
         }
     }
@@ -457,7 +454,7 @@ class LuaMathLib {
     public static final class math_log implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, log ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Log ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
             return 1;
         }
     }
@@ -513,7 +510,7 @@ class LuaMathLib {
     public static final class math_pow implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, pow ( LuaAPI.luaL_checknumber ( thread, 1 ), LuaAPI.luaL_checknumber ( thread, 2 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Pow ( LuaAPI.luaL_checknumber ( thread, 1 ), LuaAPI.luaL_checknumber ( thread, 2 ) ) );
             return 1;
         }
     }
@@ -529,9 +526,7 @@ class LuaMathLib {
     public static final class math_random implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            final int RAND_MAX = 0x7fff;
-            int rand = Math.abs ( LuaMathLib.m_Random.nextInt ( RAND_MAX ) );
-            double r = ( double ) ( rand % RAND_MAX ) / ( double ) RAND_MAX;
+            double r = thread.GetGlobalState ().GetMath ().Random ();
             switch ( LuaAPI.lua_gettop ( thread ) ) {
                 case 0: {
                     /* no arguments */
@@ -564,7 +559,7 @@ class LuaMathLib {
     public static final class math_randomseed implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaMathLib.m_Random.setSeed ( LuaAPI.luaL_checkint ( thread, 1 ) );
+            thread.GetGlobalState ().GetMath ().SetRandomSeed ( LuaAPI.luaL_checkint ( thread, 1 ) );
             return 0;
         }
     }
@@ -572,7 +567,7 @@ class LuaMathLib {
     public static final class math_sinh implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, sinh ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Sinh ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
             return 1;
         }
     }
@@ -596,7 +591,7 @@ class LuaMathLib {
     public static final class math_tanh implements JavaFunction {
 
         public int Call ( lua_State thread ) {
-            LuaAPI.lua_pushnumber ( thread, tgh ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
+            LuaAPI.lua_pushnumber ( thread, thread.GetGlobalState ().GetMath ().Tanh ( LuaAPI.luaL_checknumber ( thread, 1 ) ) );
             return 1;
         }
     }
@@ -0,0 +1,286 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+import java.util.Vector;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Runs Lua tasks on a fixed pool of worker threads. Every task gets a
+// coroutine of its own which is resumed for one time slice at a time, in
+// round robin order. A slice ends when the task yields, or when it has used
+// up the instructions or milliseconds of the slice at a point where it can be
+// suspended: a loop of the task coroutine itself, outside of Java calls and
+// of coroutines it resumed. Tasks of one state never run at the same time.
+public class LuaScheduler {
+
+    public static final class Task {
+
+        private final lua_State m_State;
+        private final lua_State m_Coroutine;
+        private int m_iArgsQuantity;
+        private boolean m_bFinished;
+        private String m_strError;
+        // Fairness metrics
+        private long m_lSlices;
+        private long m_lPreemptions;
+        private long m_lInstructions;
+        private long m_lRunTime;
+        private long m_lWaitTime;
+        private long m_lMaxWaitTime;
+        private long m_lQueuedAt;
+
+        private Task ( lua_State state, lua_State coroutine, int iArgsQuantity ) {
+            this.m_State = state;
+            this.m_Coroutine = coroutine;
+            this.m_iArgsQuantity = iArgsQuantity;
+        }
+
+        public final lua_State GetState () {
+            return this.m_State;
+        }
+
+        // Holds the results of the task once it has finished
+        public final lua_State GetCoroutine () {
+            return this.m_Coroutine;
+        }
+
+        public final boolean IsFinished () {
+            return this.m_bFinished;
+        }
+
+        // The error message of a failed task, null otherwise
+        public final String GetError () {
+            return this.m_strError;
+        }
+
+        public final long GetSlices () {
+            return this.m_lSlices;
+        }
+
+        // Slices which ended by running out rather than by a yield
+        public final long GetPreemptions () {
+            return this.m_lPreemptions;
+        }
+
+        public final long GetInstructions () {
+            return this.m_lInstructions;
+        }
+
+        public final long GetRunTime () {
+            return this.m_lRunTime;
+        }
+
+        // Time spent ready to run but waiting for a worker
+        public final long GetWaitTime () {
+            return this.m_lWaitTime;
+        }
+
+        public final long GetMaxWaitTime () {
+            return this.m_lMaxWaitTime;
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        public void run () {
+            Task task;
+            while ( ( task = Take () ) != null ) {
+                RunSlice ( task );
+            }
+        }
+    }
+
+    private final long m_lSliceInstructions;
+    private final long m_lSliceMillis;
+    private final Vector m_Tasks;
+    private final Vector m_Ready;
+    private int m_iUnfinished;
+    private boolean m_bShutdown;
+
+    // A slice is lSliceInstructions instructions or lSliceMillis
+    // milliseconds, whichever ends first; 0 milliseconds leaves time open
+    public LuaScheduler ( int iWorkers, long lSliceInstructions, long lSliceMillis ) {
+        this.m_lSliceInstructions = lSliceInstructions;
+        this.m_lSliceMillis = lSliceMillis;
+        this.m_Tasks = new Vector ();
+        this.m_Ready = new Vector ();
+
+        for ( int iWorker = 0; iWorker < iWorkers; iWorker ++ ) {
+            new Thread ( new Worker () ).start ();
+        }
+    }
+
+    // Schedules the function below the iArgsQuantity arguments on the top of
+    // the stack of thread, popping them all
+    public final Task Spawn ( lua_State thread, int iArgsQuantity ) {
+        final Task task;
+        synchronized ( thread.GetGlobalState () ) {
+            final lua_State coroutine = LuaAPI.lua_newthread ( thread );
+            LuaAPI.lua_insert ( thread,  - ( iArgsQuantity + 2 ) );
+            LuaAPI.lua_xmove ( thread, coroutine, iArgsQuantity + 1 );
+            LuaAPI.lua_pop ( thread, 1 );
+            coroutine.SetPreemptible ( true );
+            task = new Task ( thread, coroutine, iArgsQuantity );
+        }
+
+        synchronized ( this ) {
+            this.m_Tasks.addElement ( task );
+            this.m_iUnfinished ++;
+            Ready ( task );
+        }
+        return task;
+    }
+
+    // Waits until every task spawned so far has finished
+    public final synchronized void Join () {
+        while ( this.m_iUnfinished > 0 ) {
+            try {
+                wait ();
+            }
+            catch ( InterruptedException e ) {
+            }
+        }
+    }
+
+    // Lets the workers end after their current slice
+    public final synchronized void Shutdown () {
+        this.m_bShutdown = true;
+        notifyAll ();
+    }
+
+    // Jain's fairness index of the instructions run by the unfinished tasks:
+    // 1 when all of them got the same share, down to 1/n when one got all
+    public final synchronized double GetFairnessIndex () {
+        double sum = 0;
+        double sumOfSquares = 0;
+        int iTasks = 0;
+        for ( int iTask = 0; iTask < this.m_Tasks.size (); iTask ++ ) {
+            final Task task = ( Task ) this.m_Tasks.elementAt ( iTask );
+            if ( task.m_bFinished == false ) {
+                sum += task.m_lInstructions;
+                sumOfSquares += ( double ) task.m_lInstructions * task.m_lInstructions;
+                iTasks ++;
+            }
+        }
+        if ( sumOfSquares == 0 ) {
+            return 1;
+        }
+        return sum * sum / ( iTasks * sumOfSquares );
+    }
+
+    public final synchronized Vector GetTasks () {
+        final Vector tasks = new Vector ( this.m_Tasks.size () );
+        for ( int iTask = 0; iTask < this.m_Tasks.size (); iTask ++ ) {
+            tasks.addElement ( this.m_Tasks.elementAt ( iTask ) );
+        }
+        return tasks;
+    }
+
+    private void Ready ( Task task ) {
+        task.m_lQueuedAt = System.currentTimeMillis ();
+        this.m_Ready.addElement ( task );
+        notifyAll ();
+    }
+
+    private synchronized Task Take () {
+        while ( this.m_Ready.isEmpty () == true && this.m_bShutdown == false ) {
+            try {
+                wait ();
+            }
+            catch ( InterruptedException e ) {
+            }
+        }
+        if ( this.m_bShutdown == true ) {
+            return null;
+        }
+
+        final Task task = ( Task ) this.m_Ready.elementAt ( 0 );
+        this.m_Ready.removeElementAt ( 0 );
+
+        final long lWaitTime = System.currentTimeMillis () - task.m_lQueuedAt;
+        task.m_lWaitTime += lWaitTime;
+        if ( lWaitTime > task.m_lMaxWaitTime ) {
+            task.m_lMaxWaitTime = lWaitTime;
+        }
+        return task;
+    }
+
+    private void RunSlice ( Task task ) {
+        final lua_State coroutine = task.m_Coroutine;
+        final global_State globalState = task.m_State.GetGlobalState ();
+
+        synchronized ( globalState ) {
+            final long lStartTime = System.currentTimeMillis ();
+            final long lStartInstructions = globalState.GetInstructionCount ();
+
+            globalState.BeginSlice ( this.m_lSliceInstructions, this.m_lSliceMillis );
+            int iStatus;
+            try {
+                iStatus = LuaAPI.lua_resume ( coroutine, task.m_iArgsQuantity );
+            }
+            catch ( Throwable e ) {
+                coroutine.SetStatus ( -1 );
+                LuaAPI.lua_pushstring ( coroutine, "a java exception occurred within the task" );
+                iStatus = -1;
+            }
+            globalState.EndSlice ();
+            task.m_iArgsQuantity = 0;
+
+            boolean bPreempted = false;
+            if ( iStatus == LuaBaseLib.LUA_YIELD ) {
+                if ( coroutine.GetCurrentCallInfo ().GetFunction ().IsJavaFunction () == true ) {
+                    // Values passed to coroutine.yield have nobody to go to
+                    LuaAPI.lua_settop ( coroutine, 0 );
+                }
+                else {
+                    bPreempted = true;
+                }
+            }
+
+            synchronized ( this ) {
+                task.m_lSlices ++;
+                task.m_lInstructions += globalState.GetInstructionCount () - lStartInstructions;
+                task.m_lRunTime += System.currentTimeMillis () - lStartTime;
+                if ( bPreempted == true ) {
+                    task.m_lPreemptions ++;
+                }
+
+                if ( iStatus == LuaBaseLib.LUA_YIELD ) {
+                    Ready ( task );
+                }
+                else {
+                    if ( iStatus != 0 ) {
+                        task.m_strError = LuaAPI.lua_tostring ( coroutine, -1 );
+                    }
+                    task.m_bFinished = true;
+                    this.m_iUnfinished --;
+                    notifyAll ();
+                }
+            }
+        }
+    }
+}
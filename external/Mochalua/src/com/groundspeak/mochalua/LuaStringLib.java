@@ -23,6 +23,9 @@
 //
 package com.groundspeak.mochalua;
 
+import java.util.Hashtable;
+import java.util.Vector;
+
 /**
  *
  * @author p.pavelko
@@ -45,7 +48,7 @@ class LuaStringLib {
 
     public static class Capture {
 
-        public StringPointer init;
+        public int init;
         public int len;
     }
 
@@ -57,7 +60,9 @@ class LuaStringLib {
                 capture[i] = new Capture ();
             }
         }
-        public StringPointer src_init;  /* init of source string */
+        public String src;  /* source string, positions are offsets into it */
+
+        public char[] pat;  /* pattern chars, terminated by `\0' */
 
         public int endIndex; /* end (`\0') of source string */
 
@@ -67,90 +72,37 @@ class LuaStringLib {
         public Capture[] capture;
     }
 
-    public static class StringPointer {
-
-        public static StringPointer copyStringPointer ( StringPointer sp ) {
-            StringPointer newSP = new StringPointer ();
-            newSP.setOriginalString ( sp.getOriginalString () );
-            newSP.setIndex ( sp.getIndex () );
-            return newSP;
-        }
-        private String string;
-        private int index = 0;
-
-        public StringPointer () {
-        }
-
-        public int getIndex () {
-            return index;
-        }
-
-        public void setIndex ( int ind ) {
-            index = ind;
-        }
-
-        public String getOriginalString () {
-            return string;
-        }
-
-        public void setOriginalString ( String orStr ) {
-            string = orStr;
-        }
-
-        public String getString () {
-            return string.substring ( index, string.length () );
-        }
-
-        public String getString ( int i ) {
-            return string.substring ( index + i, string.length () );
-        }
+    // Pattern prepared once and shared through the PatternCache of the state,
+    // so repeated find/match/gmatch/gsub calls don't rescan the pattern string.
+    public static final class Pattern {
 
-        public char getChar () {
-            if ( index >= string.length () )
-                return '\0';
-            else
-                return string.charAt ( index );
-        }
+        public final char[] pat;
+        public final int start;  /* 1 if the pattern is anchored with `^' */
 
-        public int length () {
-            return string.length () - index;
-        }
+        public final boolean isPlain;  /* no special characters */
 
-        public int postIncrStringI ( int num ) {
-            int oldIndex = index;
-            index += num;
-            return oldIndex;
-        }
-
-        public int preIncrStringI ( int num ) {
-            index += num;
-            return index;
-        }
-
-        public char postIncrString ( int num ) {
-            char c;
-            if ( index >= string.length () )
-                c = '\0';
-            else
-                c = string.charAt ( index );
-            index += num;
-            return c;
+        public Pattern ( String p ) {
+            int len = p.length ();
+            pat = new char[ len + 1 ];
+            p.getChars ( 0, len, pat, 0 );
+            pat[len] = '\0';
+            start = ( len > 0 && pat[0] == '^' ) ? 1 : 0;
+            boolean plain = true;
+            for ( int i = 0; i < len && plain; i ++ ) {
+                if ( SPECIALS.indexOf ( pat[i] ) != -1 ) {
+                    plain = false;
+                }
+            }
+            isPlain = plain;
         }
+    }
 
-        public char preIncrString ( int num ) {
-            index += num;
-            if ( index >= string.length () )
-                return '\0';
-            else
-                return string.charAt ( index );
-        }
+    private static Pattern GetPattern ( lua_State thread, String p ) {
+        return thread.GetGlobalState ().GetPatternCache ().Get ( p );
+    }
 
-        public char getChar ( int strIndex ) {
-            if ( index + strIndex >= string.length () )
-                return '\0';
-            else
-                return string.charAt ( index + strIndex );
-        }
+    private static char srcchar ( MatchState ms, int s ) {
+        return ( s < ms.endIndex ) ? ms.src.charAt ( s ) : '\0';
     }
 
     public static final int StringLength ( String strText ) {
@@ -235,77 +187,10 @@ class LuaStringLib {
         }
     }
 
-    private static String strpbrk ( StringPointer str1, String str2 ) {
-        char[] c = new char[ 1 ];
-        for ( int i = 0; i < str2.length (); i ++ ) {
-            c[0] = str2.charAt ( i );
-            String a = new String ( c );
-            if ( str1.getString ().indexOf ( a ) != -1 ) {
-                return a;
-            }
-        }
-        return null;
-    }
-
-    public static int memcmp ( StringPointer ptr1, StringPointer ptr2, int num ) {
-        for ( int i = 0; i < num; i ++ ) {
-            char a = ptr1.getChar ( i );
-            char b = ptr2.getChar ( i );
-            if ( a > b ) {
-                return 1;
-            }
-            else if ( a < b ) {
-                return -1;
-            }
-        }
-        return 0;
-    }
-
-    public static StringPointer memchr ( StringPointer ptr, char value, int num ) {
-        String str = ptr.getString ();
-        int index = str.indexOf ( value );
-        if ( index != -1 && index < num ) {
-            StringPointer retVal = StringPointer.copyStringPointer ( ptr );
-            retVal.postIncrString ( index );
-            return retVal;
-        }
-        else {
-            return null;
-        }
-    }
-
-    static StringPointer lmemfind ( StringPointer s1, int l1, StringPointer s2, int l2 ) {
-        if ( l2 == 0 ) {
-            return s1;  /* empty strings are everywhere */
-        }
-        else if ( l2 > l1 ) {
-            return null;  /* avoids a negative `l1' */
-        }
-        else {
-            StringPointer init;  /* to search for a `*s2' inside `s1' */
-            l2 --;  /* 1st char will be checked by `memchr' */
-            l1 = l1 - l2;  /* `s2' cannot be found after that */
-            while ( l1 > 0 && ( init = memchr ( s1, s2.getChar (), l1 ) ) != null ) {
-                init.postIncrString ( 1 ); /* 1st char is already checked */
-                StringPointer sp = StringPointer.copyStringPointer ( s2 );
-                sp.postIncrString ( 1 );
-                if ( memcmp ( init, sp, l2 ) == 0 ) {
-                    init.postIncrString ( -1 );
-                    return init;
-                }
-                else /* correct `l1' and `s1' to try again */ {
-                    l1 -= s1.length () - init.length ();
-                    s1 = StringPointer.copyStringPointer ( init );
-                }
-            }
-            return null;  /* not found */
-        }
-    }
-
-    public static void push_onecapture ( MatchState ms, int i, StringPointer s, StringPointer e ) {
+    public static void push_onecapture ( MatchState ms, int i, int s, int e ) {
         if ( i >= ms.level ) {
             if ( i == 0 ) /* ms->level == 0, too */ {
-                LuaAPI.lua_pushlstring ( ms.thread, s.getString (), s.length () - e.length () );  /* add whole match */
+                LuaAPI.lua_pushstring ( ms.thread, ms.src.substring ( s, e ) );  /* add whole match */
             }
             else {
                 LuaAPI.luaL_error ( ms.thread, "invalid capture index" );
@@ -317,17 +202,18 @@ class LuaStringLib {
                 LuaAPI.luaL_error ( ms.thread, "unfinished capture" );
             }
             if ( l == CAP_POSITION ) {
-                LuaAPI.lua_pushinteger ( ms.thread, ms.src_init.length () - ms.capture[i].init.length () + 1 );
+                LuaAPI.lua_pushinteger ( ms.thread, ms.capture[i].init + 1 );
             }
             else {
-                LuaAPI.lua_pushlstring ( ms.thread, ms.capture[i].init.getString (), l );
+                int init = ms.capture[i].init;
+                LuaAPI.lua_pushstring ( ms.thread, ms.src.substring ( init, init + l ) );
             }
         }
     }
 
-    public static int push_captures ( MatchState ms, StringPointer s, StringPointer e ) {
+    public static int push_captures ( MatchState ms, int s, int e ) {
         int i;
-        int nlevels = ( ms.level == 0 && s != null ) ? 1 : ms.level;
+        int nlevels = ( ms.level == 0 && s != -1 ) ? 1 : ms.level;
         LuaAPI.luaL_checkstack ( ms.thread, nlevels, "too many captures" );
         for ( i = 0; i < nlevels; i ++ ) {
             push_onecapture ( ms, i, s, e );
@@ -336,14 +222,10 @@ class LuaStringLib {
     }
 
     public static int str_find_aux ( lua_State thread, int find ) {
-        String sTemp = LuaAPI.luaL_checklstring ( thread, 1 );
-        int iStrLen1 = StringLength ( sTemp );
+        String s = LuaAPI.luaL_checklstring ( thread, 1 );
+        int iStrLen1 = StringLength ( s );
         String pTemp = LuaAPI.luaL_checklstring ( thread, 2 );
-        int iStrLen2 = StringLength ( pTemp );
-        StringPointer s = new StringPointer ();
-        s.setOriginalString ( sTemp );
-        StringPointer p = new StringPointer ();
-        p.setOriginalString ( pTemp );
+        Pattern pattern = GetPattern ( thread, pTemp );
 
         int init = posrelat ( LuaAPI.luaL_optinteger ( thread, 3, 1 ), iStrLen1 ) - 1;
         if ( init < 0 ) {
@@ -353,61 +235,55 @@ class LuaStringLib {
             init = iStrLen1;
         }
 
-        if ( find == 1 && ( LuaAPI.lua_toboolean ( thread, 4 ) || /* explicit request? */ strpbrk ( p, SPECIALS ) == null ) ) /* or no special characters? */ {
+        if ( find == 1 && ( LuaAPI.lua_toboolean ( thread, 4 ) || /* explicit request? */ pattern.isPlain ) ) /* or no special characters? */ {
             /* do a plain search */
-            StringPointer sp = StringPointer.copyStringPointer ( s );
-            sp.postIncrString ( init );
-            StringPointer s2 = lmemfind ( sp, iStrLen1 - init, p, iStrLen2 );
-            if ( s2 != null ) {
-                LuaAPI.lua_pushinteger ( thread, s.length () - s2.length () + 1 );
-                LuaAPI.lua_pushinteger ( thread, s.length () - s2.length () + iStrLen2 );
+            int s2 = s.indexOf ( pTemp, init );
+            if ( s2 != -1 ) {
+                LuaAPI.lua_pushinteger ( thread, s2 + 1 );
+                LuaAPI.lua_pushinteger ( thread, s2 + StringLength ( pTemp ) );
                 return 2;
             }
         }
         else {
             MatchState ms = new MatchState ();
-            int anchor = 0;
-            if ( p.getChar () == '^' ) {
-                anchor = 1;
-                p.postIncrString ( 1 );
-            }
-            StringPointer s1 = StringPointer.copyStringPointer ( s );
-            s1.postIncrString ( init );
+            int s1 = init;
+            int p = pattern.start;
+            boolean anchor = ( p == 1 );
 
             ms.thread = thread;
-            ms.src_init = StringPointer.copyStringPointer ( s );
+            ms.src = s;
+            ms.pat = pattern.pat;
             ms.endIndex = iStrLen1;
             do {
-                StringPointer res;
+                int res;
                 ms.level = 0;
-                if ( ( res = match ( ms, s1, p ) ) != null ) {
+                if ( ( res = match ( ms, s1, p ) ) != -1 ) {
                     if ( find == 1 ) {
-                        LuaAPI.lua_pushinteger ( thread, s.length () - s1.length () + 1 );  /* start */
-                        LuaAPI.lua_pushinteger ( thread, s.length () - res.length () );   /* end */
-                        return ( push_captures ( ms, null, null ) + 2 );
+                        LuaAPI.lua_pushinteger ( thread, s1 + 1 );  /* start */
+                        LuaAPI.lua_pushinteger ( thread, res );   /* end */
+                        return ( push_captures ( ms, -1, 0 ) + 2 );
                     }
                     else {
                         return push_captures ( ms, s1, res );
                     }
                 }
 
-            } while ( s1.postIncrStringI ( 1 ) < ms.endIndex && anchor == 0 );
+            } while ( s1 ++ < ms.endIndex && !anchor );
         }
         LuaAPI.lua_pushnil ( thread );  /* not found */
         return 1;
     }
 
-    public static StringPointer start_capture ( MatchState ms, StringPointer s, StringPointer p, int what ) {
-        StringPointer res;
+    public static int start_capture ( MatchState ms, int s, int p, int what ) {
+        int res;
         int level = ms.level;
         if ( level >= LUA_MAXCAPTURES ) {
             LuaAPI.luaL_error ( ms.thread, "too many captures" );
         }
-        ms.capture[level].init = StringPointer.copyStringPointer ( s );
-        ms.capture[level].init.setIndex ( s.getIndex () );
+        ms.capture[level].init = s;
         ms.capture[level].len = what;
         ms.level = level + 1;
-        if ( ( res = match ( ms, s, p ) ) == null ) /* match failed? */ {
+        if ( ( res = match ( ms, s, p ) ) == -1 ) /* match failed? */ {
             ms.level --;  /* undo capture */
         }
         return res;
@@ -423,11 +299,11 @@ class LuaStringLib {
         return LuaAPI.luaL_error ( ms.thread, "invalid pattern capture" );
     }
 
-    public static StringPointer end_capture ( MatchState ms, StringPointer s, StringPointer p ) {
+    public static int end_capture ( MatchState ms, int s, int p ) {
         int l = capture_to_close ( ms );
-        StringPointer res;
-        ms.capture[l].len = ms.capture[l].init.length () - s.length ();  /* close capture */
-        if ( ( res = match ( ms, s, p ) ) == null ) /* match failed? */ {
+        int res;
+        ms.capture[l].len = s - ms.capture[l].init;  /* close capture */
+        if ( ( res = match ( ms, s, p ) ) == -1 ) /* match failed? */ {
             ms.capture[l].len = CAP_UNFINISHED;  /* undo capture */
         }
         return res;
@@ -441,76 +317,70 @@ class LuaStringLib {
         return l;
     }
 
-    public static StringPointer match_capture ( MatchState ms, StringPointer s, int l ) {
+    public static int match_capture ( MatchState ms, int s, int l ) {
         int len;
         l = check_capture ( ms, l );
         len = ms.capture[l].len;
-        if ( ( ms.endIndex - s.length () ) >= len && memcmp ( ms.capture[l].init, s, len ) == 0 ) {
-            StringPointer sp = StringPointer.copyStringPointer ( s );
-            sp.postIncrString ( len );
-            return sp;
+        if ( ( ms.endIndex - s ) >= len && ms.src.regionMatches ( false, ms.capture[l].init, ms.src, s, len ) ) {
+            return s + len;
         }
         else {
-            return null;
+            return -1;
         }
     }
 
-    public static StringPointer matchbalance ( MatchState ms, StringPointer ss, StringPointer p ) {
-        StringPointer s = StringPointer.copyStringPointer ( ss );
-
-        if ( p.getChar () == 0 || p.getChar ( 1 ) == 0 ) {
+    public static int matchbalance ( MatchState ms, int s, int p ) {
+        char[] pat = ms.pat;
+        if ( pat[p] == '\0' || pat[p + 1] == '\0' ) {
             LuaAPI.luaL_error ( ms.thread, "unbalanced pattern" );
         }
-        if ( s.getChar () != p.getChar () ) {
-            return null;
+        if ( srcchar ( ms, s ) != pat[p] ) {
+            return -1;
         }
         else {
-            int b = p.getChar ();
-            int e = p.getChar ( 1 );
+            int b = pat[p];
+            int e = pat[p + 1];
             int cont = 1;
 
-            while ( s.preIncrStringI ( 1 ) < ms.endIndex ) {
-                if ( s.getChar () == e ) {
+            while ( ++ s < ms.endIndex ) {
+                char c = ms.src.charAt ( s );
+                if ( c == e ) {
                     if (  -- cont == 0 ) {
-                        StringPointer sp = StringPointer.copyStringPointer ( s );
-                        sp.postIncrString ( 1 );
-                        return sp;
+                        return s + 1;
                     }
                 }
-                else if ( s.getChar () == b ) {
+                else if ( c == b ) {
                     cont ++;
                 }
             }
         }
-        return null;  /* string ends out of balance */
+        return -1;  /* string ends out of balance */
     }
 
-    public static StringPointer classend ( MatchState ms, StringPointer pp ) {
-        StringPointer p = StringPointer.copyStringPointer ( pp );
-        switch ( p.postIncrString ( 1 ) ) {
+    public static int classend ( MatchState ms, int p ) {
+        char[] pat = ms.pat;
+        switch ( pat[p ++] ) {
             case L_ESC: {
-                if ( p.getChar () == '\0' ) {
+                if ( pat[p] == '\0' ) {
                     LuaAPI.luaL_error ( ms.thread, "malformed pattern (ends with '%%')" );
                 }
-                p.postIncrString ( 1 );
-                return p;
+                return p + 1;
             }
             case '[': {
-                if ( p.getChar () == '^' ) {
-                    p.postIncrString ( 1 );
+                if ( pat[p] == '^' ) {
+                    p ++;
                 }
                 do /* look for a `]' */ {
-                    if ( p.getChar () == '\0' ) {
+                    if ( pat[p] == '\0' ) {
                         LuaAPI.luaL_error ( ms.thread, "malformed pattern (missing ']')" );
                     }
-                    if ( p.postIncrString ( 1 ) == L_ESC && p.getChar () != '\0' ) {
-                        p.postIncrString ( 1 );  /* skip escapes (e.g. `%]') */
+                    if ( pat[p ++] == L_ESC && pat[p] != '\0' ) {
+                        p ++;  /* skip escapes (e.g. `%]') */
                     }
 
-                } while ( p.getChar () != ']' );
+                } while ( pat[p] != ']' );
 
-                p.postIncrString ( 1 );
-                return p;
+                return p + 1;
             }
             default: {
                 return p;
@@ -518,82 +388,69 @@ class LuaStringLib {
         }
     }
 
-    public static int singlematch ( int c, StringPointer p, StringPointer ep ) {
-        switch ( p.getChar () ) {
+    public static int singlematch ( int c, char[] pat, int p, int ep ) {
+        switch ( pat[p] ) {
             case '.':
                 return 1;  /* matches any char */
             case L_ESC:
-                return match_class ( c, p.getChar ( 1 ) );
-            case '[': {
-                StringPointer sp = StringPointer.copyStringPointer ( ep );
-                sp.postIncrString ( -1 );
-                return matchbracketclass ( c, p, sp );
-            }
+                return match_class ( c, pat[p + 1] );
+            case '[':
+                return matchbracketclass ( c, pat, p, ep - 1 );
             default:
-                return ( p.getChar () == c ) ? 1 : 0;
+                return ( pat[p] == c ) ? 1 : 0;
         }
     }
 
-    public static StringPointer min_expand ( MatchState ms, StringPointer ss, StringPointer p, StringPointer ep ) {
-        StringPointer sp = StringPointer.copyStringPointer ( ep );
-        StringPointer s = StringPointer.copyStringPointer ( ss );
-
-        sp.postIncrString ( 1 );
+    public static int min_expand ( MatchState ms, int s, int p, int ep ) {
         for (;;) {
-            StringPointer res = match ( ms, s, sp );
-            if ( res != null ) {
+            int res = match ( ms, s, ep + 1 );
+            if ( res != -1 ) {
                 return res;
             }
-            else if ( s.getIndex () < ms.endIndex && singlematch ( s.getChar (), p, ep ) == 1 ) {
-                s.postIncrString ( 1 );  /* try with one more repetition */
+            else if ( s < ms.endIndex && singlematch ( ms.src.charAt ( s ), ms.pat, p, ep ) == 1 ) {
+                s ++;  /* try with one more repetition */
             }
             else
-                return null;
+                return -1;
         }
     }
 
-    public static StringPointer max_expand ( MatchState ms, StringPointer s, StringPointer p, StringPointer ep ) {
+    public static int max_expand ( MatchState ms, int s, int p, int ep ) {
         int i = 0;  /* counts maximum expand for item */
-        while ( s.getIndex () + i < ms.endIndex && singlematch ( s.getChar ( i ), p, ep ) == 1 ) {
+        while ( s + i < ms.endIndex && singlematch ( ms.src.charAt ( s + i ), ms.pat, p, ep ) == 1 ) {
             i ++;
         }
         /* keeps trying to match with the maximum repetitions */
         while ( i >= 0 ) {
-            StringPointer sp1 = StringPointer.copyStringPointer ( s );
-            sp1.postIncrString ( i );
-            StringPointer sp2 = StringPointer.copyStringPointer ( ep );
-            sp2.postIncrString ( 1 );
-            StringPointer res = match ( ms, sp1, sp2 );
-            if ( res != null ) {
+            int res = match ( ms, s + i, ep + 1 );
+            if ( res != -1 ) {
                 return res;
             }
             i --;  /* else didn't match; reduce 1 repetition to try again */
         }
-        return null;
+        return -1;
     }
 
-    public static int matchbracketclass ( int c, StringPointer pp, StringPointer ecc ) {
-        StringPointer p = StringPointer.copyStringPointer ( pp );
-        StringPointer ec = StringPointer.copyStringPointer ( ecc );
+    public static int matchbracketclass ( int c, char[] pat, int p, int ec ) {
         int sig = 1;
-        if ( p.getChar ( 1 ) == '^' ) {
+        if ( pat[p + 1] == '^' ) {
             sig = 0;
-            p.postIncrString ( 1 );  /* skip the `^' */
+            p ++;  /* skip the `^' */
         }
-        while ( p.preIncrStringI ( 1 ) < ec.getIndex () ) {
-            if ( p.getChar () == L_ESC ) {
-                p.postIncrString ( 1 );
-                if ( match_class ( c, p.getChar () ) == 1 ) {
+        while ( ++ p < ec ) {
+            if ( pat[p] == L_ESC ) {
+                p ++;
+                if ( match_class ( c, pat[p] ) == 1 ) {
                     return sig;
                 }
             }
-            else if ( ( p.getChar ( 1 ) == '-' ) && ( p.getIndex () + 2 < ec.getIndex () ) ) {
-                p.postIncrString ( 2 );
-                if ( p.getChar ( -2 ) <= c && c <= p.getChar () ) {
+            else if ( ( pat[p + 1] == '-' ) && ( p + 2 < ec ) ) {
+                p += 2;
+                if ( pat[p - 2] <= c && c <= pat[p] ) {
                     return sig;
                 }
             }
-            else if ( p.getChar () == c ) {
+            else if ( pat[p] == c ) {
                 return sig;
             }
         }
@@ -603,138 +460,99 @@ class LuaStringLib {
             return 1;
     }
 
-    public static StringPointer match ( MatchState ms, StringPointer ss, StringPointer pp ) {
+    // Returns the end offset of the match in ms.src, or -1 when there is none.
+    public static int match ( MatchState ms, int s, int p ) {
+        char[] pat = ms.pat;
         //init: /* using goto's to optimize tail recursion */
-        StringPointer s = StringPointer.copyStringPointer ( ss );
-        StringPointer p = StringPointer.copyStringPointer ( pp );
-        boolean isContinue = true;
-        boolean isDefault = false;
-        while ( isContinue ) {
-            isContinue = false;
-            isDefault = false;
-            switch ( p.getChar () ) {
+        for (;;) {
+            switch ( pat[p] ) {
                 case '(': /* start capture */ {
-                    if ( p.getChar ( 1 ) == ')' ) /* position capture? */ {
-                        StringPointer p1 = StringPointer.copyStringPointer ( p );
-                        p1.postIncrString ( 2 );
-                        return start_capture ( ms, s, p1, CAP_POSITION );
+                    if ( pat[p + 1] == ')' ) /* position capture? */ {
+                        return start_capture ( ms, s, p + 2, CAP_POSITION );
                     }
                     else {
-                        StringPointer p1 = StringPointer.copyStringPointer ( p );
-                        p1.postIncrString ( 1 );
-                        return start_capture ( ms, s, p1, CAP_UNFINISHED );
+                        return start_capture ( ms, s, p + 1, CAP_UNFINISHED );
                     }
                 }
                 case ')': /* end capture */ {
-                    StringPointer p1 = StringPointer.copyStringPointer ( p );
-                    p1.postIncrString ( 1 );
-                    return end_capture ( ms, s, p1 );
+                    return end_capture ( ms, s, p + 1 );
                 }
                 case L_ESC: {
-                    switch ( p.getChar ( 1 ) ) {
-                        case 'b': /* balanced string? */ {
-                            StringPointer p1 = StringPointer.copyStringPointer ( p );
-                            p1.postIncrString ( 2 );
-                            s = matchbalance ( ms, s, p1 );
-                            if ( s == null ) {
-                                return null;
-                            }
-                            p.postIncrString ( 4 );
-                            isContinue = true;
-                            continue;/* else return match(ms, s, p+4); */
+                    if ( pat[p + 1] == 'b' ) /* balanced string? */ {
+                        s = matchbalance ( ms, s, p + 2 );
+                        if ( s == -1 ) {
+                            return -1;
                         }
-                        case 'f': /* frontier? */ {
-                            StringPointer ep = null;
-                            char previous;
-                            p.postIncrString ( 2 );
-                            if ( p.getChar () != '[' ) {
-                                LuaAPI.luaL_error ( ms.thread, "missing '[' after '%%f' in pattern" );
-                            }
-                            ep = classend ( ms, p );  /* points to what is next */
-                            previous = ( s.getIndex () == ms.src_init.getIndex () ) ? '\0' : s.getChar ( -1 );
-
-                            StringPointer ep1 = StringPointer.copyStringPointer ( ep );
-                            ep1.postIncrString ( -1 );
-                            if ( matchbracketclass ( previous, p, ep1 ) == 1 || matchbracketclass ( s.getChar (), p, ep1 ) == 0 ) {
-                                return null;
-                            }
-                            p = StringPointer.copyStringPointer ( ep );
-                            isContinue = true;
-                            continue;/* else return match(ms, s, ep); */
+                        p += 4;
+                        continue;/* else return match(ms, s, p+4); */
+                    }
+                    else if ( pat[p + 1] == 'f' ) /* frontier? */ {
+                        int ep;
+                        char previous;
+                        p += 2;
+                        if ( pat[p] != '[' ) {
+                            LuaAPI.luaL_error ( ms.thread, "missing '[' after '%%f' in pattern" );
                         }
-                        default: {
-                            if ( isdigit ( p.getChar ( 1 ) ) == 1 ) /* capture results (%0-%9)? */ {
-                                s = match_capture ( ms, s, p.getChar ( 1 ) );
-                                if ( s == null ) {
-                                    return null;
-                                }
-                                p.postIncrString ( 2 );
-                                isContinue = true;
-                                continue;/* else return match(ms, s, p+2) */
-                            }
-                            isDefault = true; /* case default */
+                        ep = classend ( ms, p );  /* points to what is next */
+                        previous = ( s == 0 ) ? '\0' : ms.src.charAt ( s - 1 );
+                        if ( matchbracketclass ( previous, pat, p, ep - 1 ) == 1 || matchbracketclass ( srcchar ( ms, s ), pat, p, ep - 1 ) == 0 ) {
+                            return -1;
                         }
+                        p = ep;
+                        continue;/* else return match(ms, s, ep); */
                     }
-                    break;
+                    else if ( isdigit ( pat[p + 1] ) == 1 ) /* capture results (%0-%9)? */ {
+                        s = match_capture ( ms, s, pat[p + 1] );
+                        if ( s == -1 ) {
+                            return -1;
+                        }
+                        p += 2;
+                        continue;/* else return match(ms, s, p+2) */
+                    }
+                    break;  /* case default */
                 }
                 case '\0': {  /* end of pattern */
                     return s;  /* match succeeded */
                 }
                 case '$': {
-                    if ( p.getChar ( 1 ) == '\0' ) /* is the `$' the last char in pattern? */ {
-                        return ( s.getIndex () == ms.endIndex ) ? s : null;  /* check end of string */
+                    if ( pat[p + 1] == '\0' ) /* is the `$' the last char in pattern? */ {
+                        return ( s == ms.endIndex ) ? s : -1;  /* check end of string */
                     }
-                }
-                default: /* it is a pattern item */ {
-                    isDefault = true;
+                    break;
                 }
             }
 
-            if ( isDefault ) /* it is a pattern item */ {
-                isDefault = false;
-                StringPointer ep = classend ( ms, p );  /* points to what is next */
-                int m = ( s.getIndex () < ms.endIndex && singlematch ( s.getChar (), p, ep ) == 1 ) ? 1 : 0;
-                switch ( ep.getChar () ) {
-                    case '?': /* optional */ {
-                        StringPointer res;
-                        StringPointer s1 = StringPointer.copyStringPointer ( s );
-                        s1.postIncrString ( 1 );
-                        StringPointer ep1 = StringPointer.copyStringPointer ( ep );
-                        ep1.postIncrString ( 1 );
-
-                        if ( m == 1 && ( ( res = match ( ms, s1, ep1 ) ) != null ) ) {
-                            return res;
-                        }
-                        p = StringPointer.copyStringPointer ( ep );
-                        p.postIncrString ( 1 );
-                        isContinue = true;
-                        continue;/* else return match(ms, s, ep+1); */
+            /* it is a pattern item */
+            int ep = classend ( ms, p );  /* points to what is next */
+            int m = ( s < ms.endIndex && singlematch ( ms.src.charAt ( s ), pat, p, ep ) == 1 ) ? 1 : 0;
+            switch ( pat[ep] ) {
+                case '?': /* optional */ {
+                    int res;
+                    if ( m == 1 && ( ( res = match ( ms, s + 1, ep + 1 ) ) != -1 ) ) {
+                        return res;
                     }
-                    case '*': /* 0 or more repetitions */ {
-                        return max_expand ( ms, s, p, ep );
-                    }
-                    case '+': /* 1 or more repetitions */ {
-                        StringPointer s1 = StringPointer.copyStringPointer ( s );
-                        s1.postIncrString ( 1 );
-                        return ( m == 1 ? max_expand ( ms, s1, p, ep ) : null );
-                    }
-                    case '-': /* 0 or more repetitions (minimum) */ {
-                        return min_expand ( ms, s, p, ep );
-                    }
-                    default: {
-                        if ( m == 0 ) {
-                            return null;
-                        }
-                        s.postIncrString ( 1 );
-
-                        p = StringPointer.copyStringPointer ( ep );
-                        isContinue = true;
-                        continue;/* else return match(ms, s+1, ep); */
+                    p = ep + 1;
+                    continue;/* else return match(ms, s, ep+1); */
+                }
+                case '*': /* 0 or more repetitions */ {
+                    return max_expand ( ms, s, p, ep );
+                }
+                case '+': /* 1 or more repetitions */ {
+                    return ( m == 1 ? max_expand ( ms, s + 1, p, ep ) : -1 );
+                }
+                case '-': /* 0 or more repetitions (minimum) */ {
+                    return min_expand ( ms, s, p, ep );
+                }
+                default: {
+                    if ( m == 0 ) {
+                        return -1;
                     }
+                    s ++;
+                    p = ep;
+                    continue;/* else return match(ms, s+1, ep); */
                 }
             }
         }
-        return null;
     }
 
     private static int isdigit ( char c ) {
@@ -908,132 +726,191 @@ class LuaStringLib {
         b.append ( '"' );
     }
 
+    // One piece of a compiled format string: either literal text or a
+    // single conversion with its own Printf. A scan error is kept in the
+    // item and raised when the conversion is reached, as scanformat did.
+    public static final class FormatItem {
+
+        public String literal;
+        public char conversion;
+        public Printf printf;
+        public boolean isPlain;  /* no flags, width or precision */
+
+        public boolean hasPrecision;
+        public String error;
+    }
+
     public static final class str_format implements JavaFunction {
 
-        static int g_iRetsmIndex = 0;
+        private static final int MAX_FORMATS = 32;
+        private Hashtable m_Formats = new Hashtable ();
+        private StringBuffer m_Buffer = new StringBuffer ();
 
-        private static String scanformat ( lua_State thread, String strfrmt, StringBuffer sb, int smIndex ) {
-            String p = strfrmt;
-            int sIndex = smIndex;
+        private int scanformat ( String strfrmt, int sIndex, FormatItem item ) {
+            int iStrLen = StringLength ( strfrmt );
             int pIndex = sIndex;
-            while ( p.charAt ( pIndex ) != '\0' && FLAGS.indexOf ( p.charAt ( pIndex ) ) != -1 ) {
+            while ( pIndex < iStrLen && FLAGS.indexOf ( strfrmt.charAt ( pIndex ) ) != -1 ) {
                 pIndex ++;  /* skip flags */
             }
-            //        if ((p - strfrmt) >= sizeof(FLAGS))
-            if ( ( strfrmt.substring ( sIndex, strfrmt.length () ).length () - p.substring ( pIndex, p.length () ).length () ) >= FLAGS.length () ) {
-                LuaAPI.luaL_error ( thread, "invalid format (repeated flags)" );
+            if ( pIndex - sIndex >= FLAGS.length () ) {
+                item.error = "invalid format (repeated flags)";
+                return pIndex;
             }
-            String d;
-
-            if ( isdigit ( p.charAt ( pIndex ) ) == 1 ) {
+            if ( pIndex < iStrLen && isdigit ( strfrmt.charAt ( pIndex ) ) == 1 ) {
                 pIndex ++;  /* skip width */
             }
-            if ( isdigit ( p.charAt ( pIndex ) ) == 1 ) {
+            if ( pIndex < iStrLen && isdigit ( strfrmt.charAt ( pIndex ) ) == 1 ) {
                 pIndex ++;  /* (2 digits at most) */
             }
-
-            if ( p.charAt ( pIndex ) == '.' ) {
+            if ( pIndex < iStrLen && strfrmt.charAt ( pIndex ) == '.' ) {
+                item.hasPrecision = true;
                 pIndex ++;
-                if ( isdigit ( p.charAt ( pIndex ) ) == 1 ) {
+                if ( pIndex < iStrLen && isdigit ( strfrmt.charAt ( pIndex ) ) == 1 ) {
                     pIndex ++;  /* skip precision */
                 }
-                if ( isdigit ( p.charAt ( pIndex ) ) == 1 ) {
+                if ( pIndex < iStrLen && isdigit ( strfrmt.charAt ( pIndex ) ) == 1 ) {
                     pIndex ++;  /* (2 digits at most) */
                 }
             }
-            if ( isdigit ( p.charAt ( pIndex ) ) == 1 ) {
-                LuaAPI.luaL_error ( thread, "invalid format (width or precision too long)" );
+            if ( pIndex < iStrLen && isdigit ( strfrmt.charAt ( pIndex ) ) == 1 ) {
+                item.error = "invalid format (width or precision too long)";
+                return pIndex;
+            }
+            if ( pIndex >= iStrLen ) {
+                item.error = "invalid option '%' to 'format'";
+                return pIndex;
             }
 
-            sb.append ( '%' );
-            int len = strfrmt.substring ( sIndex, strfrmt.length () ).length () - p.substring ( pIndex, p.length () ).length ();
-            sb.append ( strfrmt.substring ( sIndex, sIndex + len + 1 ) );
-            sb.append ( '\0' );
-            g_iRetsmIndex = pIndex;
-            return p;
+            char c = strfrmt.charAt ( pIndex );
+            item.conversion = c;
+            item.isPlain = ( pIndex == sIndex );
+            switch ( c ) {
+                case 'c':
+                case 'd':
+                case 'i':
+                case 'o':
+                case 'u':
+                case 'x':
+                case 'X':
+                case 'e':
+                case 'E':
+                case 'f':
+                case 'g':
+                case 'G':
+                case 's': {
+                    item.printf = new Printf ( "%" + strfrmt.substring ( sIndex, pIndex + 1 ) );
+                    break;
+                }
+                case 'q': {
+                    break;
+                }
+                default: /* also treat cases `pnLlh' */ {
+                    item.error = "invalid option '%" + c + "' to 'format'";
+                    break;
+                }
+            }
+            return pIndex + 1;
         }
 
-        public int Call ( lua_State thread ) {
-            int arg = 1;
-            String strfrmt = LuaAPI.luaL_checklstring ( thread, arg );
+        private FormatItem[] compile ( String strfrmt ) {
+            FormatItem[] items = ( FormatItem[] ) m_Formats.get ( strfrmt );
+            if ( items != null ) {
+                return items;
+            }
+
+            Vector vItems = new Vector ();
+            StringBuffer literal = new StringBuffer ();
             int iStrLen = StringLength ( strfrmt );
             int strfrmtIndex = 0;
-            StringBuffer b = new StringBuffer ();
             while ( strfrmtIndex < iStrLen ) {
                 if ( strfrmt.charAt ( strfrmtIndex ) != L_ESC ) {
-                    b.append ( strfrmt.charAt ( strfrmtIndex ++ ) );
+                    literal.append ( strfrmt.charAt ( strfrmtIndex ++ ) );
                 }
-                else if ( strfrmt.charAt (  ++ strfrmtIndex ) == L_ESC ) {
-                    b.append ( strfrmt.charAt ( strfrmtIndex ++ ) ); /* %% */
+                else if ( strfrmtIndex + 1 < iStrLen && strfrmt.charAt ( strfrmtIndex + 1 ) == L_ESC ) {
+                    literal.append ( L_ESC ); /* %% */
+                    strfrmtIndex += 2;
                 }
                 else /* format item */ {
-//                    char[] form = new char[MAX_FORMAT];  /* to store the format (`%...') */
-//                    char[] buff = new char[MAX_ITEM];  /* to store the formatted item */
-                    String buff = "";
-                    arg ++;
-
-                    StringBuffer form = new StringBuffer ();
-                    strfrmt = scanformat ( thread, strfrmt, form, strfrmtIndex );
-                    strfrmtIndex = g_iRetsmIndex;
-
-                    switch ( strfrmt.charAt ( strfrmtIndex ++ ) ) {
-                        case 'c': {
-                            buff = new Printf ( form.toString () ).sprintf ( new Integer ( ( int ) LuaAPI.luaL_checknumber ( thread, arg ) ) );
-                            //sprintf(buff, form.toString(), new Integer((int)LuaAPI.luaL_checknumber(thread, arg)));
-                            break;
-                        }
-                        case 'd':
-                        case 'i': {
-                            //addintlen(form);
-                            buff = new Printf ( form.toString () ).sprintf ( new Long ( ( long ) LuaAPI.luaL_checknumber ( thread, arg ) ) );
-                            //sprintf(buff, form.toString(), new Long((long)LuaAPI.luaL_checknumber(thread, arg)));
-                            break;
-                        }
-                        case 'o':
-                        case 'u':
-                        case 'x':
-                        case 'X': {
-                            //addintlen(form);
-                            buff = new Printf ( form.toString () ).sprintf ( new Long ( ( long ) LuaAPI.luaL_checknumber ( thread, arg ) ) );
-                            //sprintf(buff, form.toString(), new Long((long) LuaAPI.luaL_checknumber(thread, arg)));
-                            break;
-                        }
-                        case 'e':
-                        case 'E':
-                        case 'f':
-                        case 'g':
-                        case 'G': {
-                            buff = new Printf ( form.toString () ).sprintf ( new Double ( ( double ) LuaAPI.luaL_checknumber ( thread, arg ) ) );
-                            //sprintf(buff, form.toString(), new Double((double)LuaAPI.luaL_checknumber(thread, arg)));
-                            break;
-                        }
-                        case 'q': {
-                            addquoted ( thread, b, arg );
-                            continue;  /* skip the 'addsize' at the end */
-                        }
-                        case 's': {
-                            String s = LuaAPI.luaL_checklstring ( thread, arg );
-                            int iStrLen1 = StringLength ( s );
-                            int ind = form.toString ().indexOf ( '.' );
-                            if ( ind == -1 && iStrLen1 >= 100 ) {
-                                /* no precision and string is too long to be formatted;
-                                keep original string */
-                                b.append ( s );
-                                //luaL_addvalue(&b);
-                                continue;  /* skip the `addsize' at the end */
-                            }
-                            else {
-                                buff = new Printf ( form.toString () ).sprintf ( s );
-                                //sprintf(buff, form.toString(), s);
-                                break;
-                            }
+                    if ( literal.length () > 0 ) {
+                        FormatItem text = new FormatItem ();
+                        text.literal = literal.toString ();
+                        vItems.addElement ( text );
+                        literal.setLength ( 0 );
+                    }
+                    FormatItem item = new FormatItem ();
+                    strfrmtIndex = scanformat ( strfrmt, strfrmtIndex + 1, item );
+                    vItems.addElement ( item );
+                    if ( item.error != null ) {
+                        break;
+                    }
+                }
+            }
+            if ( literal.length () > 0 ) {
+                FormatItem text = new FormatItem ();
+                text.literal = literal.toString ();
+                vItems.addElement ( text );
+            }
+
+            items = new FormatItem[ vItems.size () ];
+            vItems.copyInto ( items );
+            if ( m_Formats.size () >= MAX_FORMATS ) {
+                m_Formats.clear ();
+            }
+            m_Formats.put ( strfrmt, items );
+            return items;
+        }
+
+        public int Call ( lua_State thread ) {
+            int arg = 1;
+            String strfrmt = LuaAPI.luaL_checklstring ( thread, arg );
+            FormatItem[] items = compile ( strfrmt );
+            StringBuffer b = m_Buffer;
+            b.setLength ( 0 );
+            for ( int i = 0; i < items.length; i ++ ) {
+                FormatItem item = items[i];
+                if ( item.literal != null ) {
+                    b.append ( item.literal );
+                    continue;
+                }
+                arg ++;
+                if ( item.error != null ) {
+                    return LuaAPI.luaL_error ( thread, item.error );
+                }
+                switch ( item.conversion ) {
+                    case 'c':
+                    case 'd':
+                    case 'i':
+                    case 'o':
+                    case 'u':
+                    case 'x':
+                    case 'X': {
+                        item.printf.sprintf ( b, ( long ) LuaAPI.luaL_checknumber ( thread, arg ) );
+                        break;
+                    }
+                    case 'e':
+                    case 'E':
+                    case 'f':
+                    case 'g':
+                    case 'G': {
+                        item.printf.sprintf ( b, LuaAPI.luaL_checknumber ( thread, arg ) );
+                        break;
+                    }
+                    case 'q': {
+                        addquoted ( thread, b, arg );
+                        break;
+                    }
+                    case 's': {
+                        String s = LuaAPI.luaL_checklstring ( thread, arg );
+                        if ( item.isPlain || (  ! item.hasPrecision && StringLength ( s ) >= 100 ) ) {
+                            /* no precision and string is too long to be formatted;
+                            keep original string */
+                            b.append ( s );
                         }
-                        default: /* also treat cases `pnLlh' */ {
-                            return LuaAPI.luaL_error ( thread, "invalid option '%%%c' to 'format'" );
+                        else {
+                            item.printf.sprintf ( b, s );
                         }
+                        break;
                     }
-                    b.append ( buff.toString () );
-                //luaL_addlstring(&b, buff, strlen(buff));
                 }
             }
             LuaAPI.lua_pushstring ( thread, b.toString () );
@@ -1053,25 +930,20 @@ class LuaStringLib {
 
         public int Call ( lua_State thread ) {
             MatchState ms = new MatchState ();
-            String sTemp = LuaAPI.lua_tolstring ( thread, LuaAPI.lua_upvalueindex ( 1 ) );
-            int iStrLen = StringLength ( sTemp );
+            String s = LuaAPI.lua_tolstring ( thread, LuaAPI.lua_upvalueindex ( 1 ) );
+            int iStrLen = StringLength ( s );
             String pTemp = LuaAPI.lua_tostring ( thread, LuaAPI.lua_upvalueindex ( 2 ) );
-            StringPointer s = new StringPointer ();
-            s.setOriginalString ( sTemp );
-            StringPointer p = new StringPointer ();
-            p.setOriginalString ( pTemp );
-            StringPointer src;
+            int src;
             ms.thread = thread;
-            ms.src_init = StringPointer.copyStringPointer ( s );
+            ms.src = s;
+            ms.pat = GetPattern ( thread, pTemp ).pat;
             ms.endIndex = iStrLen;
-            src = StringPointer.copyStringPointer ( s );
-            src.postIncrString ( LuaAPI.lua_tointeger ( thread, LuaAPI.lua_upvalueindex ( 3 ) ) );
-            for (; src.getIndex () <= ms.endIndex; src.postIncrString ( 1 ) ) {
-                StringPointer e;
+            for ( src = LuaAPI.lua_tointeger ( thread, LuaAPI.lua_upvalueindex ( 3 ) ); src <= ms.endIndex; src ++ ) {
+                int e;
                 ms.level = 0;
-                if ( ( e = match ( ms, src, p ) ) != null ) {
-                    int newstart = s.length () - e.length ();
-                    if ( e.getIndex () == src.getIndex () ) /* empty match? go at least one position */ {
+                if ( ( e = match ( ms, src, 0 ) ) != -1 ) {
+                    int newstart = e;
+                    if ( e == src ) /* empty match? go at least one position */ {
                         newstart ++;
                     }
                     LuaAPI.lua_pushinteger ( thread, newstart );
@@ -1209,34 +1081,28 @@ class LuaStringLib {
         }
     }
 
-    public static void add_s ( MatchState ms, luaL_Buffer b, StringPointer s, StringPointer e ) {
+    public static void add_s ( MatchState ms, luaL_Buffer b, int s, int e ) {
         int i;
-        String newsTemp = LuaAPI.lua_tolstring ( ms.thread, 3 );
-        int iStrLen = StringLength ( newsTemp );
-        StringPointer news = new StringPointer ();
-        news.setOriginalString ( newsTemp );
+        String news = LuaAPI.lua_tolstring ( ms.thread, 3 );
+        int iStrLen = StringLength ( news );
         for ( i = 0; i < iStrLen; i ++ ) {
-            if ( news.getChar ( i ) != L_ESC ) {
-                LuaAPI.luaL_addchar ( b, news.getChar ( i ) );
+            char c = news.charAt ( i );
+            if ( c != L_ESC ) {
+                LuaAPI.luaL_addchar ( b, c );
 //		b.append(news.getChar(i));
             }
             else {
-                i ++;  /* skip ESC */
-                if ( isdigit ( news.getChar ( i ) ) == 0 ) {
-                    LuaAPI.luaL_addchar ( b, news.getChar ( i ) );
+                c = ( ++ i < iStrLen ) ? news.charAt ( i ) : '\0';  /* skip ESC */
+                if ( isdigit ( c ) == 0 ) {
+                    LuaAPI.luaL_addchar ( b, c );
                 //b.append(news.getChar(i));
                 }
-                else if ( news.getChar ( i ) == '0' ) {
-                    String str = s.getString ();
-                    int len = s.length () - e.length ();
-                    if ( len > str.length () ) {
-                        len = str.length ();
-                    }
-                    LuaAPI.luaL_addlstring ( b, str, len );
+                else if ( c == '0' ) {
+                    b.AddString ( ms.src, s, e - s );
                 //b.append(str.substring(0, len));
                 }
                 else {
-                    push_onecapture ( ms, news.getChar ( i ) - '1', s, e );
+                    push_onecapture ( ms, c - '1', s, e );
                     LuaAPI.luaL_addvalue ( ms.thread, b );  /* add capture to accumulated result */
                 /*		    Object o = ms.thread.GetValue(ms.thread.GetObjectsStackTop()-1);
                 if(o  instanceof Double)
@@ -1262,7 +1128,7 @@ class LuaStringLib {
         }
     }
 
-    public static void add_value ( MatchState ms, luaL_Buffer b, StringPointer s, StringPointer e ) {
+    public static void add_value ( MatchState ms, luaL_Buffer b, int s, int e ) {
         lua_State thread = ms.thread;
         switch ( LuaAPI.lua_type ( thread, 3 ) ) {
             case LuaAPI.LUA_TNUMBER:
@@ -1285,7 +1151,7 @@ class LuaStringLib {
         }
         if (  ! LuaAPI.lua_toboolean ( thread, -1 ) ) /* nil or false? */ {
             LuaAPI.lua_pop ( thread, 1 );
-            LuaAPI.lua_pushlstring ( thread, s.getString (), s.length () - e.length () );  /* keep original text */
+            LuaAPI.lua_pushstring ( thread, ms.src.substring ( s, e ) );  /* keep original text */
 
         }
         else if (  ! LuaAPI.lua_isstring ( thread, -1 ) ) {
@@ -1302,21 +1168,16 @@ class LuaStringLib {
 
         public int Call ( lua_State thread ) {
 
-            String srcTemp = LuaAPI.luaL_checklstring ( thread, 1 );
-            int iStrLen = StringLength ( srcTemp );
+            String srcString = LuaAPI.luaL_checklstring ( thread, 1 );
+            int iStrLen = StringLength ( srcString );
             String pTemp = LuaAPI.luaL_checkstring ( thread, 2 );
             int tr = LuaAPI.lua_type ( thread, 3 );
             int max_s = LuaAPI.luaL_optint ( thread, 4, iStrLen + 1 );
 
-            StringPointer p = new StringPointer ();
-            p.setOriginalString ( pTemp );
-            StringPointer src = new StringPointer ();
-            src.setOriginalString ( srcTemp );
-            int anchor = 0;
-            if ( p.getChar () == '^' ) {
-                anchor = 1;
-                p.postIncrString ( 1 );
-            }
+            Pattern pattern = GetPattern ( thread, pTemp );
+            int p = pattern.start;
+            int src = 0;
+            boolean anchor = ( p == 1 );
 
             int n = 0;
             MatchState ms = new MatchState ();
@@ -1324,32 +1185,33 @@ class LuaStringLib {
             LuaAPI.luaL_argcheck ( thread, tr == LuaAPI.LUA_TNUMBER || tr == LuaAPI.LUA_TSTRING || tr == LuaAPI.LUA_TFUNCTION || tr == LuaAPI.LUA_TTABLE, 3, "string/function/table expected" );
             LuaAPI.luaL_buffinit ( thread, b );
             ms.thread = thread;
-            ms.src_init = StringPointer.copyStringPointer ( src );
-            ms.endIndex = src.length ();
+            ms.src = srcString;
+            ms.pat = pattern.pat;
+            ms.endIndex = iStrLen;
 
             while ( n < max_s ) {
-                StringPointer e = null;
+                int e;
                 ms.level = 0;
                 e = match ( ms, src, p );
-                if ( e != null ) {
+                if ( e != -1 ) {
                     n ++;
                     add_value ( ms, b, src, e );
                 }
-                if ( e != null && e.getIndex () > src.getIndex () ) /* non empty match? */ {
-                    src.setIndex ( e.getIndex () );  /* skip it */
+                if ( e != -1 && e > src ) /* non empty match? */ {
+                    src = e;  /* skip it */
                 }
-                else if ( src.getIndex () < ms.endIndex ) {
-                    LuaAPI.luaL_addchar ( b, src.postIncrString ( 1 ) );
+                else if ( src < ms.endIndex ) {
+                    LuaAPI.luaL_addchar ( b, srcString.charAt ( src ++ ) );
                 //b.append(src.postIncrString(1));
                 }
                 else {
                     break;
                 }
-                if ( anchor == 1 ) {
+                if ( anchor ) {
                     break;
                 }
             }
-            LuaAPI.luaL_addlstring ( b, src.getString (), ms.endIndex - src.getIndex () );
+            b.AddString ( srcString, src, ms.endIndex - src );
             LuaAPI.luaL_pushresult ( b );
             //b.append(src.getString());
             //LuaAPI.lua_pushstring(thread, b.toString());
@@ -194,124 +194,17 @@ class LuaTableLib {
 
         public int Call ( lua_State thread ) {
             int n = aux_getn ( thread, 1 );
-            if (  ! LuaAPI.lua_checkstack ( thread, 40 ) ) {
-                LuaAPI.luaL_error ( thread, "stack overflow ()" );
-            }
-            if (  ! LuaAPI.lua_isnoneornil ( thread, 2 ) )  /* is there a 2nd argument? */
-
+            Function comparator = null;
+            if (  ! LuaAPI.lua_isnoneornil ( thread, 2 ) ) /* is there a 2nd argument? */ {
                 LuaAPI.luaL_checktype ( thread, 2, LuaAPI.LUA_TFUNCTION );
+                comparator = ( Function ) thread.GetObjectValue ( 2 );
+            }
             LuaAPI.lua_settop ( thread, 2 );  /* make sure there is two arguments */
-            auxsort ( thread, 1, n );
+            TableSort.Sort ( thread, ( Table ) thread.GetObjectValue ( 1 ), 1, n, comparator );
             return 0;
         }
     }
 
-    public static void auxsort ( lua_State thread, int l, int u ) {
-        while ( l < u ) /* for tail recursion */ {
-            int i, j;
-            /* sort elements a[l], a[(l+u)/2] and a[u] */
-            LuaAPI.lua_rawgeti ( thread, 1, l );
-            LuaAPI.lua_rawgeti ( thread, 1, u );
-            if ( sort_comp ( thread, -1, -2 ) ) /* a[u] < a[l]? */ {
-                set2 ( thread, l, u );  /* swap a[l] - a[u] */
-            }
-            else {
-                LuaAPI.lua_pop ( thread, 2 );
-            }
-            if ( u - l == 1 ) {
-                break;  /* only 2 elements */
-            }
-            i = ( l + u ) / 2;
-            LuaAPI.lua_rawgeti ( thread, 1, i );
-            LuaAPI.lua_rawgeti ( thread, 1, l );
-            if ( sort_comp ( thread, -2, -1 ) ) /* a[i]<a[l]? */ {
-                set2 ( thread, i, l );
-            }
-            else {
-                LuaAPI.lua_pop ( thread, 1 );  /* remove a[l] */
-                LuaAPI.lua_rawgeti ( thread, 1, u );
-                if ( sort_comp ( thread, -1, -2 ) ) /* a[u]<a[i]? */ {
-                    set2 ( thread, i, u );
-                }
-                else {
-                    LuaAPI.lua_pop ( thread, 2 );
-                }
-            }
-            if ( u - l == 2 ) {
-                break;  /* only 3 elements */
-            }
-            LuaAPI.lua_rawgeti ( thread, 1, i );  /* Pivot */
-            LuaAPI.lua_pushvalue ( thread, -1 );
-            LuaAPI.lua_rawgeti ( thread, 1, u - 1 );
-            set2 ( thread, i, u - 1 );
-            /* a[l] <= P == a[u-1] <= a[u], only need to sort from l+1 to u-2 */
-            i = l;
-            j = u - 1;
-            for (;;) /* invariant: a[l..i] <= P <= a[j..u] */ {
-                /* repeat ++i until a[i] >= P */
-                LuaAPI.lua_rawgeti ( thread, 1,  ++ i );
-                while ( sort_comp ( thread, -1, -2 ) ) {
-                    if ( i > u ) {
-                        LuaAPI.luaL_error ( thread, "invalid order function for sorting" );
-                    }
-                    LuaAPI.lua_pop ( thread, 1 );  /* remove a[i] */
-                    LuaAPI.lua_rawgeti ( thread, 1,  ++ i );
-                }
-                /* repeat --j until a[j] <= P */
-                LuaAPI.lua_rawgeti ( thread, 1,  -- j );
-                while ( sort_comp ( thread, -3, -1 ) ) {
-                    if ( j < l ) {
-                        LuaAPI.luaL_error ( thread, "invalid order function for sorting" );
-                    }
-                    LuaAPI.lua_pop ( thread, 1 );  /* remove a[j] */
-                    LuaAPI.lua_rawgeti ( thread, 1,  -- j );
-                }
-                if ( j < i ) {
-                    LuaAPI.lua_pop ( thread, 3 );  /* pop pivot, a[i], a[j] */
-                    break;
-                }
-                set2 ( thread, i, j );
-            }
-            LuaAPI.lua_rawgeti ( thread, 1, u - 1 );
-            LuaAPI.lua_rawgeti ( thread, 1, i );
-            set2 ( thread, u - 1, i );  /* swap pivot (a[u-1]) with a[i] */
-            /* a[l..i-1] <= a[i] == P <= a[i+1..u] */
-            /* adjust so that smaller half is in [j..i] and larger one in [l..u] */
-            if ( i - l < u - i ) {
-                j = l;
-                i = i - 1;
-                l = i + 2;
-            }
-            else {
-                j = i + 1;
-                i = u;
-                u = j - 2;
-            }
-            auxsort ( thread, j, i );  /* call recursively the smaller one */
-        }  /* repeat the routine for the larger one */
-    }
-
-    public static void set2 ( lua_State thread, int i, int j ) {
-        LuaAPI.lua_rawseti ( thread, 1, i );
-        LuaAPI.lua_rawseti ( thread, 1, j );
-    }
-
-    static boolean sort_comp ( lua_State thread, int a, int b ) {
-        if (  ! LuaAPI.lua_isnil ( thread, 2 ) ) /* function? */ {
-            boolean res;
-            LuaAPI.lua_pushvalue ( thread, 2 );
-            LuaAPI.lua_pushvalue ( thread, a - 1 );  /* -1 to compensate function */
-            LuaAPI.lua_pushvalue ( thread, b - 2 );  /* -2 to compensate function and `a' */
-            LuaAPI.lua_call ( thread, 2, 1 );
-            res = LuaAPI.lua_toboolean ( thread, -1 );
-            LuaAPI.lua_pop ( thread, 1 );
-            return res;
-        }
-        else /* a < b? */ {
-            return LuaAPI.lua_lessthan ( thread, a, b );
-        }
-    }
-
     public static final class luaopen_table implements JavaFunction {
 
         public int Call ( lua_State thread ) {
@@ -0,0 +1,64 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// The math functions of a state which CLDC's Math doesn't have, used by the
+// math library and OP_POW. Each state has its own instance, see
+// LuaAPI.lua_setmathprofile, which also keeps its math.random generator.
+interface MathProfile {
+
+    public double Pow ( double a, double b );
+
+    public double Exp ( double x );
+
+    public double Log ( double x );
+
+    public double Log10 ( double x );
+
+    public double Asin ( double x );
+
+    public double Acos ( double x );
+
+    public double Atan ( double x );
+
+    // Arguments are in the order of math.atan2
+    public double Atan2 ( double y, double x );
+
+    public double Sinh ( double x );
+
+    public double Cosh ( double x );
+
+    public double Tanh ( double x );
+
+    public double Ldexp ( double d, int e );
+
+    // Uniformly distributed in [0, 1)
+    public double Random ();
+
+    public void SetRandomSeed ( long lSeed );
+}
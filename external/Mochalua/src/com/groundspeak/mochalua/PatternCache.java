@@ -0,0 +1,65 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Small least-recently-used cache of preprocessed string library patterns.
+class PatternCache {
+
+    private static final int MAX_ENTRIES = 16;
+    private Hashtable m_Patterns;
+    private Vector m_Order;
+
+    public PatternCache () {
+        this.m_Patterns = new Hashtable ( MAX_ENTRIES * 2 );
+        this.m_Order = new Vector ( MAX_ENTRIES );
+    }
+
+    public final LuaStringLib.Pattern Get ( String strPattern ) {
+        LuaStringLib.Pattern pattern = ( LuaStringLib.Pattern ) this.m_Patterns.get ( strPattern );
+        if ( pattern != null ) {
+            int iLast = this.m_Order.size () - 1;
+            if ( this.m_Order.elementAt ( iLast ) != strPattern ) {
+                this.m_Order.removeElement ( strPattern );
+                this.m_Order.addElement ( strPattern );
+            }
+            return pattern;
+        }
+
+        pattern = new LuaStringLib.Pattern ( strPattern );
+        if ( this.m_Order.size () >= MAX_ENTRIES ) {
+            this.m_Patterns.remove ( this.m_Order.elementAt ( 0 ) );
+            this.m_Order.removeElementAt ( 0 );
+        }
+        this.m_Patterns.put ( strPattern, pattern );
+        this.m_Order.addElement ( strPattern );
+        return pattern;
+    }
+}
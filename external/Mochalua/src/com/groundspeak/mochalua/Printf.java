@@ -58,6 +58,8 @@ class Printf {
                     break;
                 if ( c == 'o' )
                     break;
+                if ( c == 'u' )
+                    break;
                 if ( c == 'x' )
                     break;
                 if ( c == 'X' )
@@ -300,6 +302,48 @@ class Printf {
         return sb.toString ();
     }
 
+    public void sprintf ( StringBuffer sb, long x )
+        throws IllegalArgumentException {
+        for ( int i = 0; i < vFmt.size (); i ++ ) {
+            ConversionSpecification cs = ( ConversionSpecification ) vFmt.elementAt ( i );
+            char c = cs.getConversionCharacter ();
+            if ( c == '\0' )
+                sb.append ( cs.getLiteral () );
+            else if ( c == '%' )
+                sb.append ( '%' );
+            else
+                cs.appendInteger ( sb, x );
+        }
+    }
+
+    public void sprintf ( StringBuffer sb, double x )
+        throws IllegalArgumentException {
+        for ( int i = 0; i < vFmt.size (); i ++ ) {
+            ConversionSpecification cs = ( ConversionSpecification ) vFmt.elementAt ( i );
+            char c = cs.getConversionCharacter ();
+            if ( c == '\0' )
+                sb.append ( cs.getLiteral () );
+            else if ( c == '%' )
+                sb.append ( '%' );
+            else
+                sb.append ( cs.internalsprintf ( x ) );
+        }
+    }
+
+    public void sprintf ( StringBuffer sb, String x )
+        throws IllegalArgumentException {
+        for ( int i = 0; i < vFmt.size (); i ++ ) {
+            ConversionSpecification cs = ( ConversionSpecification ) vFmt.elementAt ( i );
+            char c = cs.getConversionCharacter ();
+            if ( c == '\0' )
+                sb.append ( cs.getLiteral () );
+            else if ( c == '%' )
+                sb.append ( '%' );
+            else
+                sb.append ( cs.internalsprintf ( x ) );
+        }
+    }
+
     private class ConversionSpecification {
 
         ConversionSpecification () {
@@ -326,7 +370,7 @@ class Printf {
                         if ( leadingZeros && leftJustify )
                             leadingZeros = false;
                         if ( precisionSet && leadingZeros ) {
-                            if ( conversionCharacter == 'd' || conversionCharacter == 'i' || conversionCharacter == 'o' || conversionCharacter == 'x' ) {
+                            if ( conversionCharacter == 'd' || conversionCharacter == 'i' || conversionCharacter == 'o' || conversionCharacter == 'u' || conversionCharacter == 'x' ) {
                                 leadingZeros = false;
                             }
                         }
@@ -551,6 +595,112 @@ class Printf {
             return s2;
         }
 
+        // Writes an integer conversion (d, i, o, u, x, X, c) straight into sb,
+        // using the full 64 bits of x and no intermediate String.
+        void appendInteger ( StringBuffer sb, long x )
+            throws IllegalArgumentException {
+            char[] ca = digits;
+            int n = ca.length;
+            boolean neg = false;
+            boolean signed = false;
+            String prefix = null;
+            switch ( conversionCharacter ) {
+                case 'd':
+                case 'i':
+                    signed = true;
+                    neg = x < 0;
+                    do {
+                        int d = ( int ) ( x % 10 );
+                        ca[ -- n] = ( char ) ( '0' + ( d < 0 ? -d : d ) );
+                        x /= 10;
+                    } while ( x != 0 );
+                    break;
+                case 'u':
+                    // Unsigned like o and x: a negative x is its 64-bit two's
+                    // complement, so peel the last digit off x >>> 1 first
+                    if ( x < 0 ) {
+                        long q = ( x >>> 1 ) / 5;
+                        ca[ -- n] = ( char ) ( '0' + ( int ) ( x - q * 10 ) );
+                        x = q;
+                    }
+                    do {
+                        ca[ -- n] = ( char ) ( '0' + ( int ) ( x % 10 ) );
+                        x /= 10;
+                    } while ( x != 0 );
+                    break;
+                case 'o':
+                case 'x':
+                case 'X': {
+                    int shift = ( conversionCharacter == 'o' ) ? 3 : 4;
+                    int mask = ( 1 << shift ) - 1;
+                    String chars = ( conversionCharacter == 'X' ) ? "0123456789ABCDEF" : "0123456789abcdef";
+                    if ( alternateForm && x != 0 ) {
+                        if ( conversionCharacter == 'o' )
+                            prefix = "0";
+                        else
+                            prefix = ( conversionCharacter == 'X' ) ? "0X" : "0x";
+                    }
+                    do {
+                        ca[ -- n] = chars.charAt ( ( int ) x & mask );
+                        x >>>= shift;
+                    } while ( x != 0 );
+                    break;
+                }
+                case 'c':
+                case 'C': {
+                    int nBlanks = fieldWidthSet ? fieldWidth - 1 : 0;
+                    if (  ! leftJustify )
+                        for ( ; nBlanks > 0; nBlanks -- )
+                            sb.append ( ' ' );
+                    sb.append ( ( char ) x );
+                    for ( ; nBlanks > 0; nBlanks -- )
+                        sb.append ( ' ' );
+                    return;
+                }
+                default:
+                    throw new IllegalArgumentException (
+                        "Cannot format a long with a format using a " +
+                        conversionCharacter + " conversion character." );
+            }
+            int nDigits = ca.length - n;
+            if ( precisionSet && precision == 0 && nDigits == 1 && ca[n] == '0' )
+                nDigits = 0;
+            int nLeadingZeros = ( precisionSet && precision > nDigits ) ? precision - nDigits : 0;
+            if ( nLeadingZeros > 0 && conversionCharacter == 'o' )
+                prefix = null;
+            char sign = '\0';
+            if ( neg )
+                sign = '-';
+            else if ( signed && leadingSign )
+                sign = '+';
+            else if ( signed && leadingSpace )
+                sign = ' ';
+            int nBlanks = 0;
+            if ( fieldWidthSet ) {
+                nBlanks = fieldWidth - nLeadingZeros - nDigits;
+                if ( sign != '\0' )
+                    nBlanks --;
+                if ( prefix != null )
+                    nBlanks -= prefix.length ();
+            }
+            boolean zeroPad = leadingZeros && ! leftJustify && ! precisionSet;
+            if (  ! leftJustify && ! zeroPad )
+                for ( ; nBlanks > 0; nBlanks -- )
+                    sb.append ( ' ' );
+            if ( sign != '\0' )
+                sb.append ( sign );
+            if ( prefix != null )
+                sb.append ( prefix );
+            if ( zeroPad )
+                for ( ; nBlanks > 0; nBlanks -- )
+                    sb.append ( '0' );
+            for ( ; nLeadingZeros > 0; nLeadingZeros -- )
+                sb.append ( '0' );
+            sb.append ( ca, ca.length - nDigits, nDigits );
+            for ( ; nBlanks > 0; nBlanks -- )
+                sb.append ( ' ' );
+        }
+
         private char[] fFormatDigits ( double x ) {
             // int defaultDigits=6;
             String sx, sxOut;
@@ -1982,12 +2132,12 @@ class Printf {
         }
 
         private boolean setConversionCharacter () {
-            /* idfgGoxXeEcs */
+            /* idfgGouxXeEcs */
             boolean ret = false;
             conversionCharacter = '\0';
             if ( pos < fmt.length () ) {
                 char c = fmt.charAt ( pos );
-                if ( c == 'i' || c == 'd' || c == 'f' || c == 'g' || c == 'G' || c == 'o' || c == 'x' || c == 'X' || c == 'e' || c == 'E' || c == 'c' || c == 's' || c == '%' ) {
+                if ( c == 'i' || c == 'd' || c == 'f' || c == 'g' || c == 'G' || c == 'o' || c == 'u' || c == 'x' || c == 'X' || c == 'e' || c == 'E' || c == 'c' || c == 's' || c == '%' ) {
                     conversionCharacter = c;
                     pos ++;
                     ret = true;
@@ -2212,6 +2362,7 @@ class Printf {
         private boolean optionall = false;
         private boolean optionalL = false;
         private char conversionCharacter = '\0';
+        private char[] digits = new char[ 22 ];
         private int pos = 0;
         private String fmt;
     }
@@ -0,0 +1,169 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Process wide least-recently-used cache of loaded chunks, keyed by their
+// content. Every state loading a cached chunk gets its own LuaFunction made
+// from the shared prototype, so code, constants and debug information exist
+// only once however many states run the chunk.
+class PrototypeCache {
+
+    // Bytes of a precompiled chunk compared by content. Keys in the cache
+    // carry the prototype of their chunk.
+    private static class Key {
+
+        private final byte[] m_Data;
+        private final int m_iHash;
+        private LuaFunction m_Prototype;
+
+        public Key ( byte[] aData ) {
+            this.m_Data = aData;
+            // FNV-1a
+            int iHash = 0x811C9DC5;
+            for ( int iByte = 0; iByte < aData.length; iByte ++ ) {
+                iHash = ( iHash ^ ( aData[iByte] & 0xFF ) ) * 0x01000193;
+            }
+            this.m_iHash = iHash;
+        }
+
+        public int hashCode () {
+            return this.m_iHash;
+        }
+
+        public boolean equals ( Object object ) {
+            if ( object == this ) {
+                return true;
+            }
+            if ( object instanceof Key == false ) {
+                return false;
+            }
+            final Key key = ( Key ) object;
+            if ( key.m_iHash != this.m_iHash || key.m_Data.length != this.m_Data.length ) {
+                return false;
+            }
+            for ( int iByte = 0; iByte < this.m_Data.length; iByte ++ ) {
+                if ( key.m_Data[iByte] != this.m_Data[iByte] ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    private static final int DEFAULT_MAX_ENTRIES = 32;
+    private static PrototypeCache m_Instance = new PrototypeCache ( DEFAULT_MAX_ENTRIES );
+    private int m_iMaxEntries;
+    private Hashtable m_Prototypes;
+    private Vector m_Order;
+    private int m_iHits;
+    private int m_iMisses;
+
+    private PrototypeCache ( int iMaxEntries ) {
+        this.m_iMaxEntries = iMaxEntries;
+        this.m_Prototypes = new Hashtable ( iMaxEntries * 2 + 1 );
+        this.m_Order = new Vector ( iMaxEntries );
+    }
+
+    public static final PrototypeCache GetInstance () {
+        return m_Instance;
+    }
+
+    // Returns the prototype of the chunk after the header, or null if it's
+    // not cached
+    public final synchronized LuaFunction Get ( byte[] aChunk ) {
+        if ( this.m_iMaxEntries == 0 ) {
+            return null;
+        }
+
+        final Key key = ( Key ) this.m_Prototypes.get ( new Key ( aChunk ) );
+        if ( key == null ) {
+            this.m_iMisses ++;
+            return null;
+        }
+
+        this.m_iHits ++;
+        // Keys in m_Order are the ones in m_Prototypes, no need to compare
+        // the chunks again
+        int iLast = this.m_Order.size () - 1;
+        if ( this.m_Order.elementAt ( iLast ) != key ) {
+            for ( int iKey = iLast - 1; iKey >= 0; iKey -- ) {
+                if ( this.m_Order.elementAt ( iKey ) == key ) {
+                    this.m_Order.removeElementAt ( iKey );
+                    break;
+                }
+            }
+            this.m_Order.addElement ( key );
+        }
+        return key.m_Prototype;
+    }
+
+    // The prototype must be decoded and must never run itself. Returns false
+    // if the cache is off or holds the chunk already.
+    public final synchronized boolean Put ( byte[] aChunk, LuaFunction prototype ) {
+        if ( this.m_iMaxEntries == 0 ) {
+            return false;
+        }
+
+        final Key key = new Key ( aChunk );
+        if ( this.m_Prototypes.containsKey ( key ) == true ) {
+            return false;
+        }
+
+        while ( this.m_Order.size () >= this.m_iMaxEntries ) {
+            this.m_Prototypes.remove ( this.m_Order.elementAt ( 0 ) );
+            this.m_Order.removeElementAt ( 0 );
+        }
+        key.m_Prototype = prototype;
+        this.m_Prototypes.put ( key, key );
+        this.m_Order.addElement ( key );
+        return true;
+    }
+
+    // 0 turns the cache off and drops everything in it
+    public final synchronized void SetMaxEntries ( int iMaxEntries ) {
+        this.m_iMaxEntries = iMaxEntries < 0 ? 0 : iMaxEntries;
+        while ( this.m_Order.size () > this.m_iMaxEntries ) {
+            this.m_Prototypes.remove ( this.m_Order.elementAt ( 0 ) );
+            this.m_Order.removeElementAt ( 0 );
+        }
+    }
+
+    public final synchronized int GetSize () {
+        return this.m_Order.size ();
+    }
+
+    public final synchronized int GetHits () {
+        return this.m_iHits;
+    }
+
+    public final synchronized int GetMisses () {
+        return this.m_iMisses;
+    }
+}
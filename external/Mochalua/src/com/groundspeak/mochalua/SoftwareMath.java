@@ -0,0 +1,99 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+import java.util.Random;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// The default math profile, LuaMathLib's own implementations which only
+// need CLDC 1.1.
+class SoftwareMath implements MathProfile {
+
+    private static final int RAND_MAX = 0x7fff;
+    private Random m_Random;
+
+    public SoftwareMath () {
+        this.m_Random = new Random ();
+    }
+
+    public double Pow ( double a, double b ) {
+        return LuaMathLib.pow ( a, b );
+    }
+
+    public double Exp ( double x ) {
+        return LuaMathLib.exp ( x );
+    }
+
+    public double Log ( double x ) {
+        return LuaMathLib.log ( x );
+    }
+
+    public double Log10 ( double x ) {
+        return LuaMathLib.log10 ( x );
+    }
+
+    public double Asin ( double x ) {
+        return LuaMathLib.arcsin ( x );
+    }
+
+    public double Acos ( double x ) {
+        return LuaMathLib.arccos ( x );
+    }
+
+    public double Atan ( double x ) {
+        return LuaMathLib.arctg ( x );
+    }
+
+    public double Atan2 ( double y, double x ) {
+        return LuaMathLib.arctg2 ( y, x );
+    }
+
+    public double Sinh ( double x ) {
+        return LuaMathLib.sinh ( x );
+    }
+
+    public double Cosh ( double x ) {
+        return LuaMathLib.cosh ( x );
+    }
+
+    public double Tanh ( double x ) {
+        return LuaMathLib.tgh ( x );
+    }
+
+    public double Ldexp ( double d, int e ) {
+        return LuaMathLib.ldexp ( d, e );
+    }
+
+    public double Random () {
+        int rand = Math.abs ( this.m_Random.nextInt ( RAND_MAX ) );
+        return ( double ) ( rand % RAND_MAX ) / ( double ) RAND_MAX;
+    }
+
+    public void SetRandomSeed ( long lSeed ) {
+        this.m_Random.setSeed ( lSeed );
+    }
+}
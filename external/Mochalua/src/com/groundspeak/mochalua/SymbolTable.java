@@ -0,0 +1,167 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+import java.lang.ref.WeakReference;
+import java.util.Hashtable;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// Canonical instances of the strings used as keys by one universe: the
+// constants of its loaded chunks, the names registered by its libraries and
+// the metamethod names. Table keys are compared by identity before equals,
+// so a field name read from bytecode finds the library's key at once.
+// Symbols are held weakly and dead entries are swept a few buckets per
+// insertion like weak tables, so the symbols of chunks gone don't pile up.
+class SymbolTable {
+
+    private static final class Entry {
+
+        private final int m_iHash;
+        private final WeakReference m_Symbol;
+        private Entry m_Next;
+
+        public Entry ( int iHash, String symbol, Entry next ) {
+            this.m_iHash = iHash;
+            this.m_Symbol = new WeakReference ( symbol );
+            this.m_Next = next;
+        }
+    }
+    // The metamethod names LVM looks up, shared by all universes and never
+    // modified after the class is initialised
+    private static final Hashtable m_EventSymbols = new Hashtable ( LVM.TM_N * 2 );
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int INITIAL_SIZE = 63;
+    // Number of buckets swept per insertion
+    private static final int SWEEP_STEP = 4;
+
+    static {
+        for ( int iEvent = 0; iEvent < LVM.TM_N; iEvent ++ ) {
+            final String strEvent = LVM.GetEventNameByEvent ( iEvent );
+            m_EventSymbols.put ( strEvent, strEvent );
+        }
+    }
+
+    private Entry[] m_Entries;
+    private int m_iCount;
+    private int m_iThreshold;
+    private int m_iSweepIndex;
+
+    public SymbolTable () {
+        CreateEntries ( INITIAL_SIZE );
+    }
+
+    private final void CreateEntries ( int iSize ) {
+        this.m_Entries = new Entry[ iSize ];
+        this.m_iThreshold = ( int ) ( iSize * LOAD_FACTOR );
+        this.m_iCount = 0;
+        this.m_iSweepIndex = 0;
+    }
+
+    // Returns the symbol equal to string, which becomes the symbol if there
+    // is none yet
+    public final synchronized String Intern ( String string ) {
+        final int iHash = string.hashCode ();
+        int iIndex = ( iHash & 0x7FFFFFFF ) % this.m_Entries.length;
+        for ( Entry entry = this.m_Entries[iIndex]; entry != null; entry = entry.m_Next ) {
+            if ( entry.m_iHash == iHash ) {
+                final String symbol = ( String ) entry.m_Symbol.get ();
+                if ( symbol != null && symbol.equals ( string ) ) {
+                    return symbol;
+                }
+            }
+        }
+
+        String symbol = ( String ) m_EventSymbols.get ( string );
+        if ( symbol == null ) {
+            symbol = string;
+        }
+
+        SweepStep ();
+        if ( this.m_iCount >= this.m_iThreshold ) {
+            // Don't grow the table before the dead entries are gone
+            for ( int iBucket = this.m_Entries.length; iBucket -- > 0;) {
+                SweepBucket ( iBucket );
+            }
+            if ( this.m_iCount >= this.m_iThreshold ) {
+                Rehash ( this.m_Entries.length * 2 + 1 );
+            }
+        }
+
+        iIndex = ( iHash & 0x7FFFFFFF ) % this.m_Entries.length;
+        this.m_Entries[iIndex] = new Entry ( iHash, symbol, this.m_Entries[iIndex] );
+        this.m_iCount ++;
+        return symbol;
+    }
+
+    // Sweeps a few buckets, so the cost of a full sweep is spread over the insertions
+    private final void SweepStep () {
+        for ( int iStep = SWEEP_STEP; iStep -- > 0;) {
+            if ( this.m_iSweepIndex >= this.m_Entries.length ) {
+                this.m_iSweepIndex = 0;
+            }
+            SweepBucket ( this.m_iSweepIndex ++ );
+        }
+    }
+
+    private final void SweepBucket ( int iIndex ) {
+        for ( Entry entry = this.m_Entries[iIndex], prev = null; entry != null; entry = entry.m_Next ) {
+            if ( entry.m_Symbol.get () == null ) {
+                if ( prev != null ) {
+                    prev.m_Next = entry.m_Next;
+                }
+                else {
+                    this.m_Entries[iIndex] = entry.m_Next;
+                }
+                this.m_iCount --;
+            }
+            else {
+                prev = entry;
+            }
+        }
+    }
+
+    private final void Rehash ( int iSize ) {
+        final Entry[] oldEntries = this.m_Entries;
+        CreateEntries ( iSize );
+        for ( int i = oldEntries.length; i -- > 0;) {
+            for ( Entry old = oldEntries[i]; old != null;) {
+                final Entry entry = old;
+                old = old.m_Next;
+
+                final int iIndex = ( entry.m_iHash & 0x7FFFFFFF ) % iSize;
+                entry.m_Next = this.m_Entries[iIndex];
+                this.m_Entries[iIndex] = entry;
+                this.m_iCount ++;
+            }
+        }
+    }
+
+    // Count of the symbols, including the ones collected but not swept yet
+    public final synchronized int GetSize () {
+        return this.m_iCount;
+    }
+}
@@ -29,7 +29,7 @@ import java.lang.ref.WeakReference;
  *
  * @author a.fornwald
  */
-class Table extends Collectable {
+class Table {
 
     public class Pair {
 
@@ -41,6 +41,9 @@ class Table extends Collectable {
         // For GetNext
         private Pair m_NextPairForNext;
         private Pair m_PrevPairForNext;
+        private boolean m_bInSequence;
+        // Set once the pair is unlinked from the hash part
+        private boolean m_bIsDead;
 
         public Pair ( Table table, int iHash, Object key, Object value, Pair nextPair ) {
             this.m_Table = table;
@@ -64,65 +67,20 @@ class Table extends Collectable {
         iCount++;
         }
         }
-        
+
         if( iCount > 1 )
         {
         throw new RuntimeException( "Error: key is already in the table." );
         }
-        
+
         return iCount;
         }*/
         private final void PutPairToSequence () {
-            Object key = GetKey ();
-            if ( m_Table.CanBeIndexToArray ( key ) == true ) {
-                int iKey = ( ( Double ) key ).intValue ();
-
-                // Check it a new element can be last
-                Pair m_LastKeyNumberInSequence = this.m_Table.m_LastKeyNumberInSequence;
-                if ( m_LastKeyNumberInSequence != null ) {
-                    int iLastKey = ( ( Double ) m_LastKeyNumberInSequence.GetKey () ).intValue ();
-                    if ( iKey > iLastKey ) {
-                        this.SetNextPairForNext ( m_LastKeyNumberInSequence.GetNextPairForNext () );
-                        this.SetPrevPairForNext ( m_LastKeyNumberInSequence );
-                        m_LastKeyNumberInSequence.SetNextPairForNext ( this );
-                        if ( this.GetNextPairForNext () == null ) {
-                            this.m_Table.m_SequenceTail = this;
-                        }
-                        if ( this.GetPrevPairForNext () == null ) {
-                            this.m_Table.m_SequenceHead = this;
-                        }
-                        this.m_Table.m_LastKeyNumberInSequence = this;
-                        return;
-                    }
-                }
-
-                for ( Pair pair = this.m_Table.m_SequenceHead, prev = null; pair != null; prev = pair, pair = pair.GetNextPairForNext () ) {
-                    boolean bCanBeIndexToArray = CanBeIndexToArray ( pair.GetKey () );
-                    if ( ( bCanBeIndexToArray == true && ( ( Double ) pair.GetKey () ).intValue () > iKey ) ||
-                        bCanBeIndexToArray == false ) {
-                        if ( prev == null ) {
-                            m_Table.m_SequenceHead = this;
-                            this.SetNextPairForNext ( pair );
-                            pair.SetPrevPairForNext ( this );
-                        }
-                        else {
-                            pair.SetPrevPairForNext ( this );
-                            prev.SetNextPairForNext ( this );
-                            this.SetNextPairForNext ( pair );
-                            this.SetPrevPairForNext ( prev );
-                        }
-
-                        if ( bCanBeIndexToArray == false ) // is this number is last
-                        {
-                            this.m_Table.m_LastKeyNumberInSequence = this;
-                        }
-                        return;
-                    }
-                }
-
-                this.m_Table.m_LastKeyNumberInSequence = this;
+            if ( this.m_bInSequence == true ) {
+                return;
             }
 
+            // Integer keys live in the array part, so the sequence only keeps insertion order
             if ( m_Table.m_SequenceTail != null ) {
                 m_Table.m_SequenceTail.SetNextPairForNext ( this );
                 this.SetPrevPairForNext ( m_Table.m_SequenceTail );
@@ -134,6 +92,7 @@ class Table extends Collectable {
 
             this.SetNextPairForNext ( null );
             m_Table.m_SequenceTail = this;
+            this.m_bInSequence = true;
         }
 
         public final void SetNextPairForNext ( Pair nextPairForNext ) {
@@ -153,10 +112,20 @@ class Table extends Collectable {
         }
 
         public final boolean KeyEquals ( Object key ) {
-            final int iHash = key.hashCode ();
-            if ( GetHash () == iHash && GetKey ().equals ( key ) ) {
+            return KeyEquals ( key, key.hashCode () );
+        }
+
+        // iHash is key.hashCode (), which callers have at hand already.
+        // Symbols match by identity without looking at the characters.
+        public final boolean KeyEquals ( Object key, int iHash ) {
+            if ( this.m_Key == key ) {
                 return true;
             }
+            if ( GetHash () == iHash ) {
+                // Collected weak keys stay in the chain until the next sweep
+                Object pairKey = GetKey ();
+                return pairKey != null && pairKey.equals ( key );
+            }
 
             return false;
         }
@@ -189,7 +158,11 @@ class Table extends Collectable {
             this.m_Value = value;
         }
 
-        private final Object GetValue () {
+        public final boolean IsDead () {
+            return this.m_bIsDead;
+        }
+
+        public final Object GetValue () {
             Object value = m_Value;
 
             if ( m_Table.GetIsWeakValuesMode () == true ) {
@@ -206,60 +179,68 @@ class Table extends Collectable {
         public final Pair GetNextPair () {
             return this.m_NextPair;
         }
-
-        private final Object Refer ( Object object ) {
-            if ( CanBeWeakReference ( object ) == false ) {
-                return object;
-            }
-
-            return new WeakReference ( object );
-        }
-
-        private final Object UnRefer ( Object object ) {
-            if ( CanBeWeakReference ( object ) == false ) {
-                return object;
-            }
-
-            return ( ( WeakReference ) object ).get ();
-        }
     }
-    private int m_iArraySize;
-    private int m_iHashSize;
+    private Object m_ArrayPart[];
     private Pair m_Pairs[];
     private boolean m_bIsWeakKeysMode;
     private boolean m_bIsWeakValuesMode;
     private Table m_MetaTable;
     private int m_iCount;
     private int m_iThreshold;
+    // Incremental sweep of weak tables
+    private int m_iSweepIndex;
+    // Last border found by GetBoundary in the hash part, kept up to date by
+    // appends. It's only a guess and is checked before being returned.
+    private int m_iBorderHint;
+    // Count of the values the array part starts with when all slots after
+    // them are nil, which makes it the border luaH_getn finds there, else -1.
+    // Not kept for weak values, which go away without a store.
+    private int m_iArrayBorder;
     // Sequence
     private Pair m_SequenceHead;
     private Pair m_SequenceTail;
-    // Acceleration vars
-    private Pair m_LastKeyNumberInSequence;
+    // Where the key GetNext returned last lives: its pair, or null and its
+    // index in the array part. A traversal passing that key back continues
+    // from there without looking it up again.
+    private Pair m_NextPair;
+    private int m_iNextIndex;
     // Change this value to get faster tables
     private static final float LOAD_FACTOR = 0.75f;
+    // Max size of the array part is 2^MAXBITS, as in ltable.c
+    private static final int MAXBITS = 26;
+    private static final int MAXASIZE = 1 << MAXBITS;
+    private static final Object[] EMPTY_ARRAY = new Object[ 0 ];
+    // Number of hash buckets swept per insertion into a weak table
+    private static final int SWEEP_STEP = 4;
 
     public Table ( int iArraySize, int iHashSize ) {
-        this.m_iArraySize = iArraySize;
-        this.m_iHashSize = iHashSize;
-
         this.m_bIsWeakKeysMode = false;
         this.m_bIsWeakValuesMode = false;
 
-        if ( iArraySize + iHashSize == 0 ) {
-            iHashSize = 1;
+        if ( iArraySize > 0 ) {
+            this.m_ArrayPart = new Object[ iArraySize ];
+        }
+        else {
+            this.m_ArrayPart = EMPTY_ARRAY;
         }
 
-        int iInitialSize = iArraySize + iHashSize;
-
-        this.m_Pairs = new Pair[ iInitialSize ];
-
-        this.m_iThreshold = ( int ) ( iInitialSize * LOAD_FACTOR );
+        CreateHashPart ( iHashSize );
 
+        this.m_iArrayBorder = 0;
         this.m_SequenceHead = null;
         this.m_SequenceTail = null;
+    }
+
+    private final void CreateHashPart ( int iHashCount ) {
+        int iSize = 1;
+        while ( ( int ) ( iSize * LOAD_FACTOR ) < iHashCount ) {
+            iSize = iSize * 2 + 1;
+        }
 
+        this.m_Pairs = new Pair[ iSize ];
+        this.m_iThreshold = ( int ) ( iSize * LOAD_FACTOR );
         this.m_iCount = 0;
+        this.m_iSweepIndex = 0;
     }
 
     public final boolean GetIsWeakKeysMode () {
@@ -274,47 +255,87 @@ class Table extends Collectable {
         CollectGarbage ();
 
         for ( int iIndex = this.m_Pairs.length; iIndex -- > 0;) {
-            for ( Pair pair = this.m_Pairs[iIndex], prev = null; pair != null; prev = pair, pair = pair.GetNextPair () ) {
+            for ( Pair pair = this.m_Pairs[iIndex]; pair != null; pair = pair.GetNextPair () ) {
                 if ( m_bIsWeakKeysMode != bIsWeakKeysMode ) {
                     if ( GetIsWeakKeysMode () == true ) {
-                        pair.m_Key = pair.UnRefer ( pair.m_Key );
+                        pair.m_Key = UnRefer ( pair.m_Key );
                     }
                     else {
-                        pair.m_Key = pair.Refer ( pair.m_Key );
+                        pair.m_Key = Refer ( pair.m_Key );
                     }
                 }
 
                 if ( m_bIsWeakValuesMode != bIsWeakValuesMode ) {
                     if ( GetIsWeakValuesMode () == true ) {
-                        pair.m_Value = pair.UnRefer ( pair.m_Value );
+                        pair.m_Value = UnRefer ( pair.m_Value );
                     }
                     else {
-                        pair.m_Value = pair.Refer ( pair.m_Value );
+                        pair.m_Value = Refer ( pair.m_Value );
                     }
                 }
             }
         }
 
+        if ( m_bIsWeakValuesMode != bIsWeakValuesMode ) {
+            for ( int iIndex = this.m_ArrayPart.length; iIndex -- > 0;) {
+                if ( GetIsWeakValuesMode () == true ) {
+                    this.m_ArrayPart[iIndex] = UnRefer ( this.m_ArrayPart[iIndex] );
+                }
+                else {
+                    this.m_ArrayPart[iIndex] = Refer ( this.m_ArrayPart[iIndex] );
+                }
+            }
+        }
+
         this.m_bIsWeakKeysMode = bIsWeakKeysMode;
         this.m_bIsWeakValuesMode = bIsWeakValuesMode;
 
         CollectGarbage ();
+        FindArrayBorder ();
     }
 
-    public final int GetArraySize () {
-        return this.m_iArraySize;
+    private final void FindArrayBorder () {
+        int iBorder = 0;
+        while ( iBorder < this.m_ArrayPart.length && this.m_ArrayPart[iBorder] != null ) {
+            iBorder ++;
+        }
+        for ( int iIndex = iBorder; iIndex < this.m_ArrayPart.length; iIndex ++ ) {
+            if ( this.m_ArrayPart[iIndex] != null ) {
+                iBorder = -1;
+                break;
+            }
+        }
+        this.m_iArrayBorder = iBorder;
     }
 
-    private final void SetArraySize ( int iNewArraySize ) {
-        this.m_iArraySize = iNewArraySize;
+    // Keeps m_iArrayBorder up to date for a store into slot iIndex
+    private final void UpdateArrayBorder ( int iIndex, boolean bIsNil ) {
+        final int iBorder = this.m_iArrayBorder;
+        if ( iBorder < 0 ) {
+            return;
+        }
+        if ( bIsNil == false ) {
+            if ( iIndex == iBorder ) {
+                this.m_iArrayBorder = iBorder + 1;
+            }
+            else if ( iIndex > iBorder ) {
+                this.m_iArrayBorder = -1;
+            }
+        }
+        else if ( iIndex == iBorder - 1 ) {
+            this.m_iArrayBorder = iBorder - 1;
+        }
+        else if ( iIndex < iBorder ) {
+            this.m_iArrayBorder = -1;
+        }
     }
 
-    public final int GetHashSize () {
-        return this.m_iHashSize;
+    public final int GetArraySize () {
+        return this.m_ArrayPart.length;
     }
 
-    private final void SetHashSize ( int iNewHashSize ) {
-        this.m_iHashSize = iNewHashSize;
+    public final int GetHashSize () {
+        return this.m_Pairs.length;
     }
 
     public final boolean CanBeWeakReference ( Object object ) {
@@ -324,6 +345,22 @@ class Table extends Collectable {
             object instanceof Boolean );
     }
 
+    private final Object Refer ( Object object ) {
+        if ( CanBeWeakReference ( object ) == false ) {
+            return object;
+        }
+
+        return new WeakReference ( object );
+    }
+
+    private final Object UnRefer ( Object object ) {
+        if ( CanBeWeakReference ( object ) == false ) {
+            return object;
+        }
+
+        return ( ( WeakReference ) object ).get ();
+    }
+
     public final void IsVaildKey ( Object key ) {
         if ( key == null ) {
             throw new LuaRuntimeException ( "table index is nil" );
@@ -333,9 +370,38 @@ class Table extends Collectable {
         }
     }
 
-    public final Pair GetPair ( Object key ) {
-        CollectGarbage ();
+    // Returns key as a 1-based array index or 0 if key isn't a positive integer
+    private static final int ArrayIndex ( Object key ) {
+        if ( key instanceof Double ) {
+            double dKey = ( ( Double ) key ).doubleValue ();
+            int iKey = ( int ) dKey;
+            if ( ( double ) iKey == dKey && iKey > 0 ) {
+                return iKey;
+            }
+        }
+        return 0;
+    }
+
+    private final Object GetArrayValue ( int iIndex ) {
+        Object value = this.m_ArrayPart[iIndex];
 
+        if ( this.m_bIsWeakValuesMode == true ) {
+            value = UnRefer ( value );
+        }
+
+        return value;
+    }
+
+    private final void SetArrayValue ( int iIndex, Object value ) {
+        if ( this.m_bIsWeakValuesMode == true ) {
+            value = Refer ( value );
+        }
+
+        this.m_ArrayPart[iIndex] = value;
+        UpdateArrayBorder ( iIndex, value == null );
+    }
+
+    public final Pair GetPair ( Object key ) {
         try {
             IsVaildKey ( key );
         }
@@ -346,7 +412,7 @@ class Table extends Collectable {
         final int iHash = key.hashCode ();
         final int iIndex = ( iHash & 0x7FFFFFFF ) % m_Pairs.length;
         for ( Pair pair = this.m_Pairs[iIndex]; pair != null; pair = pair.GetNextPair () ) {
-            if ( pair.KeyEquals ( key ) == true ) {
+            if ( pair.KeyEquals ( key, iHash ) == true ) {
                 return pair;
             }
         }
@@ -354,6 +420,14 @@ class Table extends Collectable {
     }
 
     public final Object GetValue ( Object key ) {
+        if ( key instanceof Double ) {
+            double dKey = ( ( Double ) key ).doubleValue ();
+            int iKey = ( int ) dKey;
+            if ( ( double ) iKey == dKey && iKey > 0 && iKey <= this.m_ArrayPart.length ) {
+                return GetArrayValue ( iKey - 1 );
+            }
+        }
+
         Pair pair = GetPair ( key );
         if ( pair != null ) {
             return pair.GetValue ();
@@ -362,12 +436,20 @@ class Table extends Collectable {
     }
 
     public final void Remove ( Object key ) {
+        int iArrayIndex = ArrayIndex ( key );
+        if ( iArrayIndex > 0 && iArrayIndex <= this.m_ArrayPart.length ) {
+            this.m_ArrayPart[iArrayIndex - 1] = null;
+            UpdateArrayBorder ( iArrayIndex - 1, true );
+            return;
+        }
+
         int iHash = key.hashCode ();
         int iIndex = ( iHash & 0x7FFFFFFF ) % m_Pairs.length;
         for ( Pair pair = this.m_Pairs[iIndex], prev = null; pair != null; prev = pair, pair = pair.GetNextPair () ) {
-            if ( pair.KeyEquals ( key ) == true ) {
+            if ( pair.KeyEquals ( key, iHash ) == true ) {
                 // this.m_Modifications++;
                 RemoveFromSequence ( pair );
+                pair.m_bIsDead = true;
 
                 if ( prev != null ) {
                     prev.SetNextPair ( pair.GetNextPair () );
@@ -384,15 +466,17 @@ class Table extends Collectable {
     public final void SetValue ( Object key, Object value, lua_State thread ) {
         IsVaildKey ( key );
 
+        int iArrayIndex = ArrayIndex ( key );
+        if ( iArrayIndex > 0 && iArrayIndex <= this.m_ArrayPart.length ) {
+            SetArrayValue ( iArrayIndex - 1, value );
+            return;
+        }
+
         int iHash = key.hashCode ();
         int iIndex = ( iHash & 0x7FFFFFFF ) % this.m_Pairs.length;
 
-        for ( Pair pair = this.m_Pairs[iIndex], prev = null; pair != null; prev = pair, pair = pair.GetNextPair () ) {
-            if ( pair.KeyEquals ( key ) == true ) {
-                Collectable.Increment ( value );
-
-                Collectable.Decrement ( thread, pair.GetValue () );
-
+        for ( Pair pair = this.m_Pairs[iIndex]; pair != null; pair = pair.GetNextPair () ) {
+            if ( pair.KeyEquals ( key, iHash ) == true ) {
                 if ( pair.GetValue () == null ) {
                     if ( value != null ) {
                         pair.SetValue ( value );
@@ -403,8 +487,6 @@ class Table extends Collectable {
                 pair.SetValue ( value );
 
                 if ( value == null ) {
-                    Collectable.Decrement ( thread, pair.GetKey () );
-                    Collectable.Decrement ( thread, pair.GetValue () );
                     RemoveFromSequence ( pair );
                 }
                 return;
@@ -416,29 +498,56 @@ class Table extends Collectable {
             return;
         }
 
-        //this.m_Modifications++;    
-        if ( this.m_iCount >= this.m_iThreshold ) {
-            Rehash ();
+        //this.m_Modifications++;
+        if ( this.m_bIsWeakKeysMode == true || this.m_bIsWeakValuesMode == true ) {
+            SweepStep ();
 
-            iIndex = ( iHash & 0x7FFFFFFF ) % this.m_Pairs.length;
+            // Don't grow the table before the dead entries are gone
+            if ( this.m_iCount >= this.m_iThreshold ) {
+                CollectGarbage ();
+            }
         }
 
+        if ( this.m_iCount >= this.m_iThreshold ) {
+            Rehash ( key );
 
-        Pair pair = this.m_Pairs[iIndex];
+            // The key may have moved to the array part
+            if ( iArrayIndex > 0 && iArrayIndex <= this.m_ArrayPart.length ) {
+                SetArrayValue ( iArrayIndex - 1, value );
+                return;
+            }
 
-        Collectable.Increment ( key );
-        Collectable.Increment ( value );
-        this.m_Pairs[iIndex] = new Pair ( this, iHash, key, value, pair );
+            iIndex = ( iHash & 0x7FFFFFFF ) % this.m_Pairs.length;
+        }
+
+        this.m_Pairs[iIndex] = new Pair ( this, iHash, key, value, this.m_Pairs[iIndex] );
 
         m_iCount ++;
+
+        if ( iArrayIndex > 0 && iArrayIndex == this.m_iBorderHint + 1 ) {
+            this.m_iBorderHint = iArrayIndex;
+        }
     }
 
     public final Object GetValueNum ( int iKey ) {
-        return GetValue ( new Double ( iKey ) );
+        if ( iKey > 0 && iKey <= this.m_ArrayPart.length ) {
+            return GetArrayValue ( iKey - 1 );
+        }
+
+        Pair pair = GetPair ( LVM.NewNumber ( iKey ) );
+        if ( pair != null ) {
+            return pair.GetValue ();
+        }
+        return null;
     }
 
     public final void SetValueNum ( int iKey, Object value, lua_State thread ) {
-        SetValue ( new Double ( iKey ), value, thread );
+        if ( iKey > 0 && iKey <= this.m_ArrayPart.length ) {
+            SetArrayValue ( iKey - 1, value );
+            return;
+        }
+
+        SetValue ( LVM.NewNumber ( iKey ), value, thread );
     }
 
     private final void CollectGarbage () {
@@ -447,62 +556,200 @@ class Table extends Collectable {
         }
 
         for ( int iIndex = this.m_Pairs.length; iIndex -- > 0;) {
-            for ( Pair pair = this.m_Pairs[iIndex], prev = null; pair != null; pair = pair.GetNextPair () ) {
-                if ( pair.GetKey () == null || pair.GetValue () == null ) {
-                    if ( GetIsWeakKeysMode () == true ) {
-                        RemoveFromSequence ( pair );
-                    }
+            SweepBucket ( iIndex );
+        }
+        this.m_iSweepIndex = 0;
+    }
 
-                    if ( prev != null ) {
-                        prev.SetNextPair ( pair.GetNextPair () );
-                        prev = pair;
-                    }
-                    else {
-                        this.m_Pairs[iIndex] = pair.GetNextPair ();
-                        prev = null;
-                    }
-                    this.m_iCount --;
+    // Sweeps a few buckets, so the cost of a full sweep is spread over the insertions
+    private final void SweepStep () {
+        for ( int iStep = SWEEP_STEP; iStep -- > 0;) {
+            if ( this.m_iSweepIndex >= this.m_Pairs.length ) {
+                this.m_iSweepIndex = 0;
+            }
+            SweepBucket ( this.m_iSweepIndex ++ );
+        }
+    }
+
+    private final void SweepBucket ( int iIndex ) {
+        for ( Pair pair = this.m_Pairs[iIndex], prev = null; pair != null; pair = pair.GetNextPair () ) {
+            if ( pair.GetKey () == null || pair.GetValue () == null ) {
+                RemoveFromSequence ( pair );
+                pair.m_bIsDead = true;
+
+                if ( prev != null ) {
+                    prev.SetNextPair ( pair.GetNextPair () );
+                }
+                else {
+                    this.m_Pairs[iIndex] = pair.GetNextPair ();
+                }
+                this.m_iCount --;
+            }
+            else {
+                prev = pair;
+            }
+        }
+    }
+
+    // Computes the optimal sizes of both parts, the same way luaH_resize does
+    private final void Rehash ( Object extraKey ) {
+        int[] nums = new int[ MAXBITS + 1 ];
+
+        int iArrayCount = NumUseArray ( nums );
+        int iTotalUse = iArrayCount;
+
+        for ( Pair pair = this.m_SequenceHead; pair != null; pair = pair.GetNextPairForNext () ) {
+            Object key = pair.GetKey ();
+            if ( key != null && pair.GetValue () != null ) {
+                iArrayCount += CountInt ( key, nums );
+                iTotalUse ++;
+            }
+        }
+
+        iArrayCount += CountInt ( extraKey, nums );
+        iTotalUse ++;
+
+        int iArraySize = ComputeSizes ( nums, iArrayCount );
+
+        int iArrayUse = 0;
+        for ( int iBit = 0, iTwoToBit = 1; iTwoToBit <= iArraySize; iBit ++, iTwoToBit *= 2 ) {
+            iArrayUse += nums[iBit];
+        }
+
+        Resize ( iArraySize, iTotalUse - iArrayUse );
+    }
+
+    private final int NumUseArray ( int[] nums ) {
+        int iArraySize = this.m_ArrayPart.length;
+        int iUse = 0;
+        int i = 1;
+
+        for ( int iBit = 0, iTwoToBit = 1; iBit <= MAXBITS; iBit ++, iTwoToBit *= 2 ) {
+            int iCount = 0;
+            int iLimit = iTwoToBit;
+            if ( iLimit > iArraySize ) {
+                iLimit = iArraySize;
+                if ( i > iLimit ) {
+                    break;
                 }
             }
+
+            for (; i <= iLimit; i ++ ) {
+                if ( GetArrayValue ( i - 1 ) != null ) {
+                    iCount ++;
+                }
+            }
+
+            nums[iBit] += iCount;
+            iUse += iCount;
+        }
+
+        return iUse;
+    }
+
+    private static final int CountInt ( Object key, int[] nums ) {
+        int iKey = ArrayIndex ( key );
+        if ( iKey > 0 && iKey <= MAXASIZE ) {
+            nums[CeilLog2 ( iKey )]++;
+            return 1;
+        }
+        return 0;
+    }
+
+    private static final int CeilLog2 ( int x ) {
+        int iLog = 0;
+        x --;
+        while ( x > 0 ) {
+            iLog ++;
+            x >>= 1;
         }
+        return iLog;
     }
 
-    public final void Rehash () {
-        int iOldSize = this.m_Pairs.length;
+    // The largest n such that more than half of the slots 1..n would be in use
+    private static final int ComputeSizes ( int[] nums, int iArrayCount ) {
+        int iCount = 0;
+        int iOptimalSize = 0;
+
+        for ( int iBit = 0, iTwoToBit = 1; iTwoToBit / 2 < iArrayCount; iBit ++, iTwoToBit *= 2 ) {
+            if ( nums[iBit] > 0 ) {
+                iCount += nums[iBit];
+                if ( iCount > iTwoToBit / 2 ) {
+                    iOptimalSize = iTwoToBit;
+                }
+            }
+            if ( iCount == iArrayCount ) {
+                break;
+            }
+        }
+
+        return iOptimalSize;
+    }
+
+    private final void Resize ( int iNewArraySize, int iHashCount ) {
+        Object oldArray[] = this.m_ArrayPart;
+        int iOldArraySize = oldArray.length;
         Pair oldPairs[] = this.m_Pairs;
 
-        int iNewSize = iOldSize * 2 + 1;
-        this.m_Pairs = new Pair[ iNewSize ];
+        if ( iNewArraySize != iOldArraySize ) {
+            this.m_ArrayPart = iNewArraySize > 0 ? new Object[ iNewArraySize ] : EMPTY_ARRAY;
+            System.arraycopy ( oldArray, 0, this.m_ArrayPart, 0, Math.min ( iOldArraySize, iNewArraySize ) );
+        }
 
-        //this.m_iModifications++;
-        this.m_iThreshold = ( int ) ( iNewSize * LOAD_FACTOR );
+        CreateHashPart ( iHashCount );
 
-        for ( int i = iOldSize; i -- > 0;) {
+        for ( int i = oldPairs.length; i -- > 0;) {
             for ( Pair old = oldPairs[i]; old != null;) {
                 Pair pair = old;
                 old = old.GetNextPair ();
 
-                int iIndex = ( pair.GetHash () & 0x7FFFFFFF ) % iNewSize;
+                Object key = pair.GetKey ();
+                if ( key == null || pair.GetValue () == null ) {
+                    RemoveFromSequence ( pair );
+                    pair.m_bIsDead = true;
+                    continue;
+                }
+
+                int iArrayIndex = ArrayIndex ( key );
+                if ( iArrayIndex > 0 && iArrayIndex <= iNewArraySize ) {
+                    RemoveFromSequence ( pair );
+                    pair.m_bIsDead = true;
+                    this.m_ArrayPart[iArrayIndex - 1] = pair.m_Value;
+                    continue;
+                }
+
+                int iIndex = ( pair.GetHash () & 0x7FFFFFFF ) % this.m_Pairs.length;
                 pair.SetNextPair ( this.m_Pairs[iIndex] );
                 this.m_Pairs[iIndex] = pair;
+                this.m_iCount ++;
             }
         }
-    }
 
-    public final boolean CanBeIndexToArray ( Object key ) {
-        if ( key instanceof Double ) {
-            int iIndex = ( ( Double ) key ).intValue ();
-            if ( ( double ) iIndex == ( ( Double ) key ).doubleValue () && iIndex > 0 && iIndex <= this.m_iArraySize ) {
-                return true;
+        // Move the elements which don't fit the shrunk array part to the hash part
+        for ( int i = iNewArraySize; i < iOldArraySize; i ++ ) {
+            Object value = this.m_bIsWeakValuesMode ? UnRefer ( oldArray[i] ) : oldArray[i];
+            if ( value != null ) {
+                Double key = LVM.NewNumber ( i + 1 );
+                int iHash = key.hashCode ();
+                int iIndex = ( iHash & 0x7FFFFFFF ) % this.m_Pairs.length;
+                this.m_Pairs[iIndex] = new Pair ( this, iHash, key, value, this.m_Pairs[iIndex] );
+                this.m_iCount ++;
             }
         }
-        return false;
+
+        FindArrayBorder ();
+    }
+
+    public final boolean CanBeIndexToArray ( Object key ) {
+        int iIndex = ArrayIndex ( key );
+        return iIndex > 0 && iIndex <= this.m_ArrayPart.length;
     }
 
     public final void RemoveFromSequence ( Pair pair ) {
-        if ( m_LastKeyNumberInSequence == pair ) {
-            m_LastKeyNumberInSequence = pair.m_PrevPairForNext;
+        if ( pair.m_bInSequence == false ) {
+            return;
         }
+        pair.m_bInSequence = false;
 
         Pair prev = pair.GetPrevPairForNext ();
         Pair next = pair.GetNextPairForNext ();
@@ -521,47 +768,130 @@ class Table extends Collectable {
         }
     }
 
+    // Traverses the array part first and then the hash part in insertion order.
+    // As in Lua, fields may be cleared during a traversal: a pair set to nil
+    // keeps its link to the next one. Keys added to the hash part during a
+    // traversal are appended to the sequence and still visited, keys which
+    // make the array part grow may be skipped or visited twice.
     public final Object GetNext ( Object key ) {
-        if ( key == null ) {
-            if ( this.m_SequenceHead != null ) {
-                return this.m_SequenceHead.GetKey ();
+        int iArrayIndex = 0;
+
+        if ( key != null ) {
+            iArrayIndex = ArrayIndex ( key );
+            if ( iArrayIndex == 0 || iArrayIndex > this.m_ArrayPart.length ) {
+                Pair pair = this.m_NextPair;
+                if ( pair == null || pair.m_bIsDead == true || pair.GetKey () != key ) {
+                    pair = GetPair ( key );
+                    if ( pair == null ) {
+                        return null;
+                    }
+                }
+                return GetFirstKey ( pair.GetNextPairForNext () );
             }
-            else {
-                return null;
+        }
+
+        for (; iArrayIndex < this.m_ArrayPart.length; iArrayIndex ++ ) {
+            if ( GetArrayValue ( iArrayIndex ) != null ) {
+                this.m_NextPair = null;
+                this.m_iNextIndex = iArrayIndex;
+                return LVM.NewNumber ( iArrayIndex + 1 );
             }
         }
 
-        Pair pair = GetPair ( key );
-        if ( pair != null && pair.GetNextPairForNext () != null ) {
-            return pair.GetNextPairForNext ().GetKey ();
+        return GetFirstKey ( this.m_SequenceHead );
+    }
+
+    // Value of the key the last call to GetNext returned
+    public final Object GetNextValue () {
+        if ( this.m_NextPair != null ) {
+            return this.m_NextPair.GetValue ();
         }
+        return GetArrayValue ( this.m_iNextIndex );
+    }
 
+    private final Object GetFirstKey ( Pair pair ) {
+        for (; pair != null; pair = pair.GetNextPairForNext () ) {
+            Object key = pair.GetKey ();
+            if ( key != null && pair.GetValue () != null ) {
+                this.m_NextPair = pair;
+                return key;
+            }
+        }
+        this.m_NextPair = null;
         return null;
     }
 
     public final void ResizeArray ( int iNewArraySize ) {
-        SetArraySize ( iNewArraySize );
+        Resize ( iNewArraySize, this.m_iCount );
     }
 
     public final Table GetMetaTable () {
         return this.m_MetaTable;
     }
 
+    // Returns a border: an index n with t[n] ~= nil and t[n + 1] == nil, or
+    // 0 if t[1] is nil. Picks the same one as luaH_getn: the one a binary
+    // search of the array part finds if its last slot is nil, else the array
+    // size or a border in the hash part.
     public final int GetBoundary () {
-        int iMaxIndex = 0;
-        Object key = GetNext ( null );
-
-        while ( key != null ) {
-            if ( key instanceof Double ) {
-                int iIndex = ( ( Double ) key ).intValue ();
-                if ( ( double ) iIndex == ( ( Double ) key ).doubleValue () && iIndex > 0 ) {
-                    iMaxIndex = iIndex;
+        int iArraySize = this.m_ArrayPart.length;
+
+        if ( iArraySize > 0 && GetArrayValue ( iArraySize - 1 ) == null ) {
+            // There is a border in the array part. The search ends at the
+            // first nil if no value comes after it.
+            if ( this.m_iArrayBorder >= 0 && this.m_bIsWeakValuesMode == false ) {
+                return this.m_iArrayBorder;
+            }
+            int i = 0;
+            int j = iArraySize;
+            while ( j - i > 1 ) {
+                int m = ( i + j ) >>> 1;
+                if ( GetArrayValue ( m - 1 ) == null ) {
+                    j = m;
+                }
+                else {
+                    i = m;
                 }
             }
-            key = GetNext ( key );
+            return i;
+        }
+
+        // The array part is full, continue in the hash part
+        int iHint = this.m_iBorderHint;
+        if ( iHint > iArraySize && GetValueNum ( iArraySize + 1 ) != null && GetValueNum ( iHint ) != null && GetValueNum ( iHint + 1 ) == null ) {
+            return iHint;
         }
+        this.m_iBorderHint = UnboundSearch ( iArraySize );
+        return this.m_iBorderHint;
+    }
 
-        return iMaxIndex;
+    private final int UnboundSearch ( int j ) {
+        int i = j;  // i is zero or a present index
+        j ++;
+        // Find i and j such that i is present and j is not
+        while ( GetValueNum ( j ) != null ) {
+            i = j;
+            if ( j > Integer.MAX_VALUE / 2 ) {
+                // Overflow, table was built with bad purposes: resort to linear search
+                i = 1;
+                while ( GetValueNum ( i ) != null ) {
+                    i ++;
+                }
+                return i - 1;
+            }
+            j *= 2;
+        }
+        // Now do a binary search between them
+        while ( j - i > 1 ) {
+            int m = ( i + j ) >>> 1;
+            if ( GetValueNum ( m ) == null ) {
+                j = m;
+            }
+            else {
+                i = m;
+            }
+        }
+        return i;
     }
 
     public final void SetMetaTable ( Table newMetaTable ) {
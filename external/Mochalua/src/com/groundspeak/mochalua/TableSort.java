@@ -0,0 +1,225 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// table.sort engine. The segment is copied out of the table, sorted in a
+// Java array and written back once. The sort is a TimSort-style merge sort:
+// short runs are sorted by insertion and merged bottom-up, and merges of
+// runs that are already in order are skipped, so sorted input is O(n).
+// Like ltablib's quicksort, a comparator that contradicts itself is caught
+// when it drives a scan past the end of its run.
+class TableSort {
+
+    private static final int MIN_RUN = 32;
+    private lua_State m_Thread;
+    private Function m_Comparator;
+    private Object[] m_Temp;
+
+    private TableSort ( lua_State thread, Function comparator ) {
+        this.m_Thread = thread;
+        this.m_Comparator = comparator;
+    }
+
+    public static void Sort ( lua_State thread, Table table, int iFirst, int iLast, Function comparator ) {
+        int iCount = iLast - iFirst + 1;
+        if ( iCount < 2 ) {
+            return;
+        }
+
+        Object[] values = new Object[ iCount ];
+        boolean bAllNumbers = comparator == null;
+        for ( int i = 0; i < iCount; i ++ ) {
+            values[i] = table.GetValueNum ( iFirst + i );
+            if ( values[i] instanceof Double == false ) {
+                bAllNumbers = false;
+            }
+        }
+
+        if ( bAllNumbers == true ) {
+            double[] numbers = new double[ iCount ];
+            for ( int i = 0; i < iCount; i ++ ) {
+                numbers[i] = ( ( Double ) values[i] ).doubleValue ();
+            }
+            SortNumbers ( numbers, new double[ iCount ] );
+            for ( int i = 0; i < iCount; i ++ ) {
+                table.SetValueNum ( iFirst + i, LVM.NewNumber ( numbers[i] ), thread );
+            }
+            return;
+        }
+
+        TableSort sort = new TableSort ( thread, comparator );
+        sort.m_Temp = new Object[ iCount ];
+        sort.SortValues ( values );
+        for ( int i = 0; i < iCount; i ++ ) {
+            table.SetValueNum ( iFirst + i, values[i], thread );
+        }
+    }
+
+    private final boolean Less ( Object a, Object b ) {
+        if ( this.m_Comparator == null ) {
+            return LuaAPI.luaV_lessthan ( this.m_Thread, a, b );
+        }
+
+        Object result = this.m_Thread.CallMetaTable ( this.m_Comparator, a, b );
+        if ( result == null || result == LuaAPI.m_NilObject ) {
+            return false;
+        }
+        if ( result instanceof Boolean ) {
+            return ( ( Boolean ) result ).booleanValue ();
+        }
+        return true;
+    }
+
+    private final void SortValues ( Object[] a ) {
+        int n = a.length;
+        for ( int iStart = 0; iStart < n; iStart += MIN_RUN ) {
+            int iEnd = Math.min ( iStart + MIN_RUN, n );
+            for ( int i = iStart + 1; i < iEnd; i ++ ) {
+                Object value = a[i];
+                if ( Less ( value, a[i - 1] ) == false ) {
+                    continue;
+                }
+                int j = i - 1;
+                do {
+                    a[j + 1] = a[j];
+                    j --;
+                } while ( j >= iStart && Less ( value, a[j] ) == true );
+                // Past the run start value is the new minimum, so the old first
+                // element (now a[iStart + 1]) can't be less than it
+                if ( j < iStart && Less ( a[iStart + 1], value ) == true ) {
+                    InvalidOrder ();
+                }
+                a[j + 1] = value;
+            }
+        }
+
+        for ( int iWidth = MIN_RUN; iWidth < n; iWidth *= 2 ) {
+            for ( int iLeft = 0; iLeft < n - iWidth; iLeft += 2 * iWidth ) {
+                int iMid = iLeft + iWidth;
+                int iRight = Math.min ( iMid + iWidth, n );
+                // Runs already in order don't need merging
+                if ( Less ( a[iMid], a[iMid - 1] ) == true ) {
+                    Merge ( a, iLeft, iMid, iRight );
+                }
+            }
+        }
+    }
+
+    private final void Merge ( Object[] a, int iLeft, int iMid, int iRight ) {
+        Object[] temp = this.m_Temp;
+        int iLeftCount = iMid - iLeft;
+        System.arraycopy ( a, iLeft, temp, 0, iLeftCount );
+
+        int i = 0;
+        int j = iMid;
+        int k = iLeft;
+        // The run whose last element goes last has to outlast the other one,
+        // running out of it first means the comparator contradicted itself
+        if ( Less ( a[iRight - 1], temp[iLeftCount - 1] ) == true ) {
+            while ( j < iRight ) {
+                if ( i == iLeftCount ) {
+                    InvalidOrder ();
+                }
+                // Take from the right only when strictly smaller, which keeps the sort stable
+                if ( Less ( a[j], temp[i] ) == true ) {
+                    a[k ++] = a[j ++];
+                }
+                else {
+                    a[k ++] = temp[i ++];
+                }
+            }
+            while ( i < iLeftCount ) {
+                a[k ++] = temp[i ++];
+            }
+        }
+        else {
+            while ( i < iLeftCount ) {
+                if ( j == iRight ) {
+                    InvalidOrder ();
+                }
+                if ( Less ( a[j], temp[i] ) == true ) {
+                    a[k ++] = a[j ++];
+                }
+                else {
+                    a[k ++] = temp[i ++];
+                }
+            }
+        }
+        for ( i = 0; i < iLeftCount; i ++ ) {
+            temp[i] = null;
+        }
+    }
+
+    private final void InvalidOrder () {
+        LuaAPI.luaL_error ( this.m_Thread, "invalid order function for sorting" );
+    }
+
+    private static void SortNumbers ( double[] a, double[] temp ) {
+        int n = a.length;
+        for ( int iStart = 0; iStart < n; iStart += MIN_RUN ) {
+            int iEnd = Math.min ( iStart + MIN_RUN, n );
+            for ( int i = iStart + 1; i < iEnd; i ++ ) {
+                double value = a[i];
+                if ( ( value < a[i - 1] ) == false ) {
+                    continue;
+                }
+                int j = i - 1;
+                do {
+                    a[j + 1] = a[j];
+                    j --;
+                } while ( j >= iStart && value < a[j] );
+                a[j + 1] = value;
+            }
+        }
+
+        for ( int iWidth = MIN_RUN; iWidth < n; iWidth *= 2 ) {
+            for ( int iLeft = 0; iLeft < n - iWidth; iLeft += 2 * iWidth ) {
+                int iMid = iLeft + iWidth;
+                int iRight = Math.min ( iMid + iWidth, n );
+                if ( a[iMid] < a[iMid - 1] ) {
+                    int iLeftCount = iMid - iLeft;
+                    System.arraycopy ( a, iLeft, temp, 0, iLeftCount );
+                    int i = 0;
+                    int j = iMid;
+                    int k = iLeft;
+                    while ( i < iLeftCount && j < iRight ) {
+                        if ( a[j] < temp[i] ) {
+                            a[k ++] = a[j ++];
+                        }
+                        else {
+                            a[k ++] = temp[i ++];
+                        }
+                    }
+                    while ( i < iLeftCount ) {
+                        a[k ++] = temp[i ++];
+                    }
+                }
+            }
+        }
+    }
+}
@@ -32,6 +32,8 @@ class UpValue {
     private Object m_Value;
     private int m_iIndex;
     private lua_State m_Thread;
+    // Next open upvalue further down the stack, see lua_State.FindUpValue
+    private UpValue m_Next;
 
     public UpValue ( lua_State thread ) {
         this.m_Thread = thread;
@@ -57,7 +59,6 @@ class UpValue {
     public final void SetValue ( Object value ) {
         if ( this.m_Thread == null ) {
             m_Value = value;
-            Collectable.Increment ( value );
             return;
         }
         m_Thread.SetValue ( m_iIndex, value );
@@ -71,8 +72,17 @@ class UpValue {
         return m_Thread.GetValue ( m_iIndex );
     }
 
+    public final UpValue GetNext () {
+        return this.m_Next;
+    }
+
+    public final void SetNext ( UpValue next ) {
+        this.m_Next = next;
+    }
+
     public final void Reset () {
         this.m_Thread = null;
+        this.m_Next = null;
         SetIndex ( 0 );
     }
 }
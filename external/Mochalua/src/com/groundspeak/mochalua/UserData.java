@@ -27,15 +27,22 @@ package com.groundspeak.mochalua;
  *
  * @author a.fornwald
  */
-class UserData extends Collectable {
+class UserData {
 
-    private Table m_MetaTable;
-    private Table m_Environment;
-    private Object m_UserData;
-    private int m_iSize;
+    // The state of a userdata lives apart from the object Lua code sees, so
+    // it outlives the object and can be handed to the __gc metamethod
+    public static final class Body {
+
+        private Table m_MetaTable;
+        private Table m_Environment;
+        private Object m_UserData;
+        private int m_iSize;
+        private boolean m_bIsFinalizable;
+    }
+    private final Body m_Body;
 
     public UserData ( Table metaTable, Table environment, Object userData, int iSize ) {
-        super ();
+        this.m_Body = new Body ();
 
         SetMetaTable ( metaTable );
         SetEnvironment ( environment );
@@ -43,35 +50,51 @@ class UserData extends Collectable {
         SetSize ( iSize );
     }
 
+    public UserData ( Body body ) {
+        this.m_Body = body;
+    }
+
+    public final Body GetBody () {
+        return this.m_Body;
+    }
+
     public final void SetSize ( int iSize ) {
-        this.m_iSize = iSize;
+        this.m_Body.m_iSize = iSize;
     }
 
     public final int GetSize () {
-        return this.m_iSize;
+        return this.m_Body.m_iSize;
     }
 
     public final void SetUserData ( Object userData ) {
-        this.m_UserData = userData;
+        this.m_Body.m_UserData = userData;
     }
 
     public final Object GetUserData () {
-        return this.m_UserData;
+        return this.m_Body.m_UserData;
     }
 
     public final void SetMetaTable ( Table metaTable ) {
-        this.m_MetaTable = metaTable;
+        this.m_Body.m_MetaTable = metaTable;
     }
 
     public final Table GetMetaTable () {
-        return this.m_MetaTable;
+        return this.m_Body.m_MetaTable;
     }
 
     public final void SetEnvironment ( Table environment ) {
-        this.m_Environment = environment;
+        this.m_Body.m_Environment = environment;
     }
 
     public final Table GetEnvironment () {
-        return this.m_Environment;
+        return this.m_Body.m_Environment;
+    }
+
+    public final void SetIsFinalizable ( boolean bIsFinalizable ) {
+        this.m_Body.m_bIsFinalizable = bIsFinalizable;
+    }
+
+    public final boolean GetIsFinalizable () {
+        return this.m_Body.m_bIsFinalizable;
     }
 }
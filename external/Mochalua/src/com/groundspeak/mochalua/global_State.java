@@ -0,0 +1,240 @@
+// Copyright (c) 2008 Groundspeak, Inc.
+
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package com.groundspeak.mochalua;
+
+import java.util.Vector;
+
+/**
+ *
+ * @author a.fornwald
+ */
+// State shared by the main thread and all coroutines created from it.
+// Independent states don't share anything, so each of them can run on its
+// own Java thread.
+class global_State {
+
+    // Results of Refuel
+    public static final int FUEL_CONTINUE = 0;
+    public static final int FUEL_SLICE_ENDED = 1;
+    public static final int FUEL_EXHAUSTED = 2;
+    // Instructions run between two looks at the budget and the clock
+    private static final int FUEL_CHECK_INTERVAL = 10000;
+    // Don't look for garbage coroutine threads until that many were started
+    private static final int MIN_COROUTINE_THREADS_THRESHOLD = 16;
+    private Table m_Registry;
+    private Table[] m_MetaTable;
+    private JavaFunction m_AtPanicFunction;
+    private FinalizerQueue m_Finalizers;
+    private MathProfile m_Math;
+    private PatternCache m_PatternCache;
+    private SymbolTable m_Symbols;
+    private boolean m_bThreadedCoroutines;
+    private Vector m_CoroutineThreads;
+    private int m_iCoroutineThreadsThreshold;
+    // Open files made by io.tmpfile, deleted by lua_close
+    private Vector m_TempFiles;
+    // Instruction budget: LVM.Execute counts m_iFuel down and calls Refuel
+    // once it runs out, which is where the limits below are looked at
+    private int m_iFuel;
+    private int m_iFuelGranted;
+    private long m_lInstructions;
+    private long m_lBudget;
+    private long m_lSliceEnd;
+    private long m_lSliceDeadline;
+
+    public global_State () {
+        this.m_Registry = new Table ( 0, 2 );
+        this.m_MetaTable = new Table[ LuaAPI.NUM_TAGS ];
+        this.m_AtPanicFunction = null;
+        this.m_Finalizers = new FinalizerQueue ();
+        this.m_Math = new SoftwareMath ();
+        this.m_PatternCache = new PatternCache ();
+        this.m_Symbols = new SymbolTable ();
+        this.m_CoroutineThreads = new Vector ();
+        this.m_iCoroutineThreadsThreshold = MIN_COROUTINE_THREADS_THRESHOLD;
+        this.m_TempFiles = new Vector ();
+        this.m_iFuel = this.m_iFuelGranted = FUEL_CHECK_INTERVAL;
+        this.m_lBudget = -1;
+        this.m_lSliceEnd = -1;
+    }
+
+    public final void SetAtPanicFunction ( JavaFunction javaFunction ) {
+        this.m_AtPanicFunction = javaFunction;
+    }
+
+    public final JavaFunction GetAtPanicFunction () {
+        return this.m_AtPanicFunction;
+    }
+
+    public final Table GetRegistry () {
+        return this.m_Registry;
+    }
+
+    public final Table GetMetaTable ( int iType ) {
+        if ( LuaAPI.LUA_TNIL > iType || iType >= LuaAPI.NUM_TAGS ) {
+            return null;
+        }
+        return this.m_MetaTable[iType];
+    }
+
+    public final void SetMetaTable ( int iType, Table newTable ) {
+        this.m_MetaTable[iType] = newTable;
+    }
+
+    public final FinalizerQueue GetFinalizers () {
+        return this.m_Finalizers;
+    }
+
+    public final MathProfile GetMath () {
+        return this.m_Math;
+    }
+
+    public final void SetMath ( MathProfile math ) {
+        this.m_Math = math;
+    }
+
+    public final PatternCache GetPatternCache () {
+        return this.m_PatternCache;
+    }
+
+    public final SymbolTable GetSymbols () {
+        return this.m_Symbols;
+    }
+
+    public final boolean GetThreadedCoroutines () {
+        return this.m_bThreadedCoroutines;
+    }
+
+    public final void SetThreadedCoroutines ( boolean bThreadedCoroutines ) {
+        this.m_bThreadedCoroutines = bThreadedCoroutines;
+    }
+
+    public final void AddCoroutineThread ( CoroutineThread coroutineThread ) {
+        if ( this.m_CoroutineThreads.size () >= this.m_iCoroutineThreadsThreshold ) {
+            ReclaimCoroutineThreads ();
+        }
+        this.m_CoroutineThreads.addElement ( coroutineThread );
+    }
+
+    public final void RemoveCoroutineThread ( CoroutineThread coroutineThread ) {
+        this.m_CoroutineThreads.removeElement ( coroutineThread );
+    }
+
+    // Takes iInstructions from the fuel; false when it has run out
+    public final boolean Charge ( int iInstructions ) {
+        return ( this.m_iFuel -= iInstructions ) >= 0;
+    }
+
+    // Accounts the fuel used so far and grants the next portion, up to the
+    // next check, the end of the budget or the end of the slice
+    public final int Refuel () {
+        this.m_lInstructions += this.m_iFuelGranted - this.m_iFuel;
+
+        int iResult = FUEL_CONTINUE;
+        long lGrant = FUEL_CHECK_INTERVAL;
+        if ( this.m_lBudget >= 0 ) {
+            if ( this.m_lInstructions >= this.m_lBudget ) {
+                // Nothing more is granted, so every later check fails again
+                // until the budget is raised
+                iResult = FUEL_EXHAUSTED;
+                lGrant = 0;
+            }
+            else if ( this.m_lBudget - this.m_lInstructions < lGrant ) {
+                lGrant = this.m_lBudget - this.m_lInstructions;
+            }
+        }
+        if ( iResult == FUEL_CONTINUE && this.m_lSliceEnd >= 0 ) {
+            if ( this.m_lInstructions >= this.m_lSliceEnd || ( this.m_lSliceDeadline != 0 && System.currentTimeMillis () >= this.m_lSliceDeadline ) ) {
+                iResult = FUEL_SLICE_ENDED;
+            }
+            else if ( this.m_lSliceEnd - this.m_lInstructions < lGrant ) {
+                lGrant = this.m_lSliceEnd - this.m_lInstructions;
+            }
+        }
+
+        this.m_iFuel = this.m_iFuelGranted = ( int ) lGrant;
+        return iResult;
+    }
+
+    public final long GetInstructionCount () {
+        return this.m_lInstructions + this.m_iFuelGranted - this.m_iFuel;
+    }
+
+    // Instructions left in the budget, -1 without one
+    public final long GetBudget () {
+        if ( this.m_lBudget < 0 ) {
+            return -1;
+        }
+        return Math.max ( 0, this.m_lBudget - GetInstructionCount () );
+    }
+
+    // -1 removes the limit
+    public final void SetBudget ( long lBudget ) {
+        this.m_lBudget = lBudget < 0 ? -1 : GetInstructionCount () + lBudget;
+        Refuel ();
+    }
+
+    // Starts a slice of lInstructions instructions or lMillis milliseconds,
+    // whichever ends first; 0 milliseconds leaves the time open
+    public final void BeginSlice ( long lInstructions, long lMillis ) {
+        this.m_lSliceEnd = GetInstructionCount () + lInstructions;
+        this.m_lSliceDeadline = lMillis > 0 ? System.currentTimeMillis () + lMillis : 0;
+        Refuel ();
+    }
+
+    public final void EndSlice () {
+        this.m_lSliceEnd = -1;
+        this.m_lSliceDeadline = 0;
+    }
+
+    public final Vector GetTempFiles () {
+        return this.m_TempFiles;
+    }
+
+    public final void CloseTempFiles () {
+        LuaIOLib.closeTempFiles ( this.m_TempFiles );
+    }
+
+    // Ends the Java threads of suspended coroutines no Lua value refers to
+    // any more, as far as the Java collector has found them
+    public final void ReclaimCoroutineThreads () {
+        for ( int iIndex = this.m_CoroutineThreads.size (); iIndex -- > 0;) {
+            final CoroutineThread coroutineThread = ( CoroutineThread ) this.m_CoroutineThreads.elementAt ( iIndex );
+            if ( coroutineThread.IsGarbage () == true ) {
+                this.m_CoroutineThreads.removeElementAt ( iIndex );
+                coroutineThread.Close ();
+            }
+        }
+        this.m_iCoroutineThreadsThreshold = Math.max ( this.m_CoroutineThreads.size () * 2, MIN_COROUTINE_THREADS_THRESHOLD );
+    }
+
+    // Ends the Java threads of coroutines which were left suspended
+    public final void CloseCoroutineThreads () {
+        while ( this.m_CoroutineThreads.isEmpty () == false ) {
+            final CoroutineThread coroutineThread = ( CoroutineThread ) this.m_CoroutineThreads.lastElement ();
+            this.m_CoroutineThreads.removeElementAt ( this.m_CoroutineThreads.size () - 1 );
+            coroutineThread.Close ();
+        }
+    }
+}
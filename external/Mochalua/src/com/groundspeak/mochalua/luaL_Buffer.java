@@ -29,9 +29,54 @@ package com.groundspeak.mochalua;
  */
 public class luaL_Buffer {
 
-    public String m_strValue;
+    private static final int INITIAL_SIZE = 64;
+    private char[] m_Chars;
+    private int m_iLength;
     private lua_State m_Thread;
 
+    public final void Reset () {
+        if ( this.m_Chars == null ) {
+            this.m_Chars = new char[ INITIAL_SIZE ];
+        }
+        this.m_iLength = 0;
+    }
+
+    private final void EnsureCapacity ( int iExtra ) {
+        int iNeeded = this.m_iLength + iExtra;
+        if ( iNeeded > this.m_Chars.length ) {
+            int iNewSize = this.m_Chars.length * 2;
+            if ( iNewSize < iNeeded ) {
+                iNewSize = iNeeded;
+            }
+            char[] newChars = new char[ iNewSize ];
+            System.arraycopy ( this.m_Chars, 0, newChars, 0, this.m_iLength );
+            this.m_Chars = newChars;
+        }
+    }
+
+    public final void AddChar ( char c ) {
+        EnsureCapacity ( 1 );
+        this.m_Chars[this.m_iLength ++] = c;
+    }
+
+    public final void AddString ( String s, int iLength ) {
+        AddString ( s, 0, iLength );
+    }
+
+    public final void AddString ( String s, int iStart, int iLength ) {
+        EnsureCapacity ( iLength );
+        s.getChars ( iStart, iStart + iLength, this.m_Chars, this.m_iLength );
+        this.m_iLength += iLength;
+    }
+
+    public final int GetLength () {
+        return this.m_iLength;
+    }
+
+    public String toString () {
+        return new String ( this.m_Chars, 0, this.m_iLength );
+    }
+
     public final void SetThread ( lua_State thread ) {
         m_Thread = thread;
     }
@@ -24,7 +24,6 @@
 package com.groundspeak.mochalua;
 
 import java.io.*;
-import java.util.Vector;
 import java.io.ByteArrayOutputStream;
 import javax.microedition.io.file.FileConnection;
 
@@ -58,12 +57,28 @@ public class lua_State {
     private CallInfo[] m_CallInfosStack;
     private int m_iCallInfosStackTop;
     private Table m_Environment;
-    private Vector m_LiveUpValues;
+    // Open upvalues, linked through UpValue.m_Next and sorted by
+    // descending stack index
+    private UpValue m_OpenUpValues;
     private Function m_ErrorFunction;
     private lua_Hook m_Hook;
     private int m_iHookMask;
     private int m_iHookCount;
     private int m_iBaseHookCount;
+    private global_State m_GlobalState;
+    private boolean m_bIsStackOverflow;
+    // Thread whose LVM.Execute loop switched into this coroutine, and the
+    // count of Lua calls it had running there
+    private lua_State m_Resumer;
+    private int m_iResumerCalls;
+    private CoroutineThread m_CoroutineThread;
+    // Set on the handle of a coroutine with a Java thread of its own. Lua
+    // values refer to the handle and the Java thread only to this body, so
+    // the thread can be ended once the handle is garbage, see CoroutineThread.
+    private lua_State m_Body;
+    // Set for coroutines run by LuaScheduler, which may be suspended when
+    // their time slice ends
+    private boolean m_bPreemptible;
 
     private static final class pmain implements JavaFunction {
 
@@ -75,7 +90,8 @@ public class lua_State {
     /**
      * Creates a new instance of lua_State
      */
-    public lua_State ( boolean isMainThread ) {
+    public lua_State ( global_State globalState, boolean isMainThread ) {
+        this.m_GlobalState = globalState;
         this.nCcalls = this.baseCcalls = 0;
         // Init stack
         this.m_ObjectsStack = new Object[ LuaAPI.BASIC_STACK_SIZE + LuaAPI.EXTRA_STACK ];
@@ -87,7 +103,6 @@ public class lua_State {
 
         this.m_Environment = new Table ( 0, 2 );
 
-        this.m_LiveUpValues = new Vector ();
 
         this.isMainThread = isMainThread;
 
@@ -98,9 +113,19 @@ public class lua_State {
         // base callinfo that shouldn't be ever deleted
         PushCallInfo ( new CallInfo ( this, new Function ( new pmain (), GetEnvironment (), 0 ), 0, 0, 0, 0 ) );
     }
+
+    // Creates the handle of a coroutine body, it has no stack of its own
+    lua_State ( lua_State body ) {
+        this.m_GlobalState = body.m_GlobalState;
+        this.m_Body = body;
+    }
     public static final int PCRLUA = 0;
     public static final int PCRJAVA = 1;
 
+    public final global_State GetGlobalState () {
+        return this.m_GlobalState;
+    }
+
     public final lua_Hook GetHook () {
         return this.m_Hook;
     }
@@ -169,9 +194,7 @@ public class lua_State {
         if ( object instanceof Function ) {
             Function function = ( Function ) object;
 
-            CallInfo callInfo = new CallInfo ( this, function, iFunctionIndexOnTheStack + 1, iFunctionIndexOnTheStack, iResultsQuantity, iArgsQuantity );
-
-            PushCallInfo ( callInfo );
+            CallInfo callInfo = PushCallInfo ( function, iFunctionIndexOnTheStack + 1, iFunctionIndexOnTheStack, iResultsQuantity, iArgsQuantity );
 
             if ( function.IsLuaFunction () ) {
                 LVM.Execute ( this, 1 );
@@ -210,11 +233,6 @@ public class lua_State {
     }
 
     public final void SetValue ( int iIndex, Object value ) {
-        Object oldObject = this.m_ObjectsStack[iIndex];
-
-        Collectable.Increment ( value );
-        Collectable.Decrement ( this, oldObject );
-
         this.m_ObjectsStack[iIndex] = value;
     }
 
@@ -288,7 +306,7 @@ public class lua_State {
         else {
             switch ( iIndex ) {
                 case LuaAPI.LUA_REGISTRYINDEX: {
-                    return LVM.GetRegistry ();
+                    return this.m_GlobalState.GetRegistry ();
                 }
                 case LuaAPI.LUA_ENVIRONINDEX: {
                     return currentCallInfo.GetFunction ().GetEnvironment ();
@@ -349,12 +367,11 @@ public class lua_State {
         }
         return true;
     }
-    private static boolean bErrorGenerated = false;
 
     public void GrowStack ( int iIndex ) {
         if ( CheckStack ( iIndex ) == false ) {
-            if ( bErrorGenerated == false ) {
-                bErrorGenerated = true;
+            if ( this.m_bIsStackOverflow == false ) {
+                this.m_bIsStackOverflow = true;
                 LuaAPI.luaG_runerror ( this, "stack overflow" );
             }
         }
@@ -387,13 +404,18 @@ public class lua_State {
 
     public final void SetCallInfosStackTop ( int iNewCallInfosStackTop ) {
         if ( iNewCallInfosStackTop + 1 > this.m_CallInfosStack.length ) {
-            CallInfo[] newCallInfoStack = new CallInfo[ iNewCallInfosStackTop + 1 ];
-            System.arraycopy ( this.m_CallInfosStack, 0, newCallInfoStack, 0, this.m_CallInfosStack.length );
-            this.m_CallInfosStack = newCallInfoStack;
+            GrowCallInfosStack ( iNewCallInfosStackTop + 1 );
         }
         this.m_iCallInfosStackTop = iNewCallInfosStackTop;
     }
 
+    // Doubles the stack at least, so deep recursion copies it O(log n) times
+    private void GrowCallInfosStack ( int iSize ) {
+        CallInfo[] newCallInfoStack = new CallInfo[ Math.max ( iSize, this.m_CallInfosStack.length * 2 ) ];
+        System.arraycopy ( this.m_CallInfosStack, 0, newCallInfoStack, 0, this.m_CallInfosStack.length );
+        this.m_CallInfosStack = newCallInfoStack;
+    }
+
     public final CallInfo GetCurrentCallInfo () {
         if ( this.m_iCallInfosStackTop > 0 ) {
             return this.m_CallInfosStack[this.m_iCallInfosStackTop - 1];
@@ -411,9 +433,34 @@ public class lua_State {
         SetCallInfosStackTop ( this.GetCallInfosStackTop () + 1 );
     }
 
+    // Pushes a call info for a new call, reusing the one left in the slot by
+    // an earlier call. Popped call infos stay in their slots for that, so
+    // nothing may hold on to one after popping it.
+    public final CallInfo PushCallInfo ( Function function, int iLocalStackBase, int iReturnBase, int iResultsWanted, int iArgsQuantity ) {
+        final int iTop = this.m_iCallInfosStackTop;
+        if ( iTop + 2 > this.m_CallInfosStack.length ) {
+            GrowCallInfosStack ( iTop + 2 );
+        }
+
+        CallInfo callInfo = this.m_CallInfosStack[iTop];
+        if ( callInfo == null ) {
+            callInfo = new CallInfo ( this, function, iLocalStackBase, iReturnBase, iResultsWanted, iArgsQuantity );
+            this.m_CallInfosStack[iTop] = callInfo;
+        }
+        else {
+            callInfo.Init ( function, iLocalStackBase, iReturnBase, iResultsWanted, iArgsQuantity );
+        }
+
+        // Save top
+        if ( iTop > 0 ) {
+            this.m_CallInfosStack[iTop - 1].SaveTop ();
+        }
+        this.m_iCallInfosStackTop = iTop + 1;
+        return callInfo;
+    }
+
     public void PopCallInfo () {
-        m_CallInfosStack[m_iCallInfosStackTop - 1] = null;
-        SetCallInfosStackTop ( GetCallInfosStackTop () - 1 );
+        this.m_CallInfosStack[ -- this.m_iCallInfosStackTop].Release ();
     }
 
     public Object GetTable ( int tableIndex, Object key ) {
@@ -510,7 +557,7 @@ public class lua_State {
         currentCallInfo.SetTop ( iOldTop );
     }
 
-    public static Object GetMetaTableObjectByObject ( Object object, int iEvent ) {
+    public Object GetMetaTableObjectByObject ( Object object, int iEvent ) {
         Table metaTable;
         if ( object instanceof Table ) {
             metaTable = ( ( Table ) object ).GetMetaTable ();
@@ -519,7 +566,7 @@ public class lua_State {
             metaTable = ( ( UserData ) object ).GetMetaTable ();
         }
         else {
-            metaTable = LVM.GetMetaTable ( LuaAPI.lua_typebyobject ( object ) );
+            metaTable = this.m_GlobalState.GetMetaTable ( LuaAPI.lua_typebyobject ( object ) );
         }
 
         if ( metaTable != null ) {
@@ -529,7 +576,7 @@ public class lua_State {
         return null;
     }
 
-    public static Object GetMetaTableObjectByObjects ( Object o1, Object o2, int iEvent ) {
+    public Object GetMetaTableObjectByObjects ( Object o1, Object o2, int iEvent ) {
         Object object = ( Function ) GetMetaTableObjectByObject ( o1, iEvent );
         if ( object == null ) {
             object = GetMetaTableObjectByObject ( o2, iEvent );
@@ -538,7 +585,7 @@ public class lua_State {
         return object;
     }
 
-    public static Function GetEqualMetaTableObjectByObjects ( Object o1, Object o2, int iEvent ) {
+    public Function GetEqualMetaTableObjectByObjects ( Object o1, Object o2, int iEvent ) {
         Function function1 = ( Function ) GetMetaTableObjectByObject ( o1, iEvent );
         Function function2 = ( Function ) GetMetaTableObjectByObject ( o2, iEvent );
 
@@ -638,114 +685,149 @@ public class lua_State {
 
     public Function LoadByteCode ( DataInputStream dis, FileConnection fileConnection, String chunkname ) throws LuaRuntimeException {
         try {
+            // Take the whole chunk in one go and decode it from memory
+            ByteArrayOutputStream baos = new ByteArrayOutputStream ( Math.max ( dis.available (), 256 ) );
+            byte[] aBuffer = new byte[ 4096 ];
+            int iBytesRead;
+            while ( ( iBytesRead = dis.read ( aBuffer, 0, aBuffer.length ) ) > 0 ) {
+                baos.write ( aBuffer, 0, iBytesRead );
+            }
+            return LoadByteCode ( baos.toByteArray (), chunkname );
+        }
+        catch ( IOException ex ) {
+            throw new LuaRuntimeException ( ex.getMessage () == null ? "Not a LUAs bytecode file" : ex.getMessage () );
+        }
+        finally {
+            if ( dis != null ) {
+                try {
+                    dis.close ();
+                }
+                catch ( IOException e ) {
+                    e.printStackTrace ();
+                }
+                finally {
+                    dis = null;
+                }
+            }
+
+            if ( fileConnection != null ) {
+                try {
+                    fileConnection.close ();
+                }
+                catch ( IOException e ) {
+                    e.printStackTrace ();
+                }
+                finally {
+                    fileConnection = null;
+                }
+            }
+        }
+    }
+
+    public Function LoadByteCode ( byte[] aChunk, String chunkname ) throws LuaRuntimeException {
+        final PrototypeCache prototypeCache = PrototypeCache.GetInstance ();
+        final LuaFunction prototype = prototypeCache.Get ( aChunk );
+        if ( prototype != null ) {
+            return new Function ( new LuaFunction ( prototype, GetGlobalState ().GetSymbols () ), GetEnvironment () );
+        }
+
+        try {
+            ChunkReader chunk = new ChunkReader ( aChunk, 0, LUA_SIZEOFSIZET4 );
             boolean bIsLittleEndian;
             int iSizeOfsize_t;
 
-            if ( dis.readInt () != LUA_SIGNATURE ) {
+            if ( aChunk.length < 12 || ( chunk.ReadByte () << 24 | chunk.ReadByte () << 16 | chunk.ReadByte () << 8 | chunk.ReadByte () ) != LUA_SIGNATURE ) {
                 throw new LuaRuntimeException ( "Not a LUAs bytecode file" );
             }
 
-            if ( dis.read () != LUAC_VERSION ) {
+            if ( chunk.ReadByte () != LUAC_VERSION ) {
                 throw new LuaRuntimeException ( "Wrong version of LUAs bytecode. Expected 5.1." );
             }
 
-            if ( dis.read () != LUAC_FORMAT ) {
+            if ( chunk.ReadByte () != LUAC_FORMAT ) {
                 throw new LuaRuntimeException ( "Wrong format of LUAs bytecode." );
             }
 
-            bIsLittleEndian = ( dis.read () == 1 );
+            bIsLittleEndian = ( chunk.ReadByte () == 1 );
 
             if ( bIsLittleEndian != LUA_ISLITTLEENDIAN ) {
                 throw new LuaRuntimeException ( "BigEndian is not supported for now." );
             }
 
-            if ( dis.read () != LUA_SIZEOFINT ) {
+            if ( chunk.ReadByte () != LUA_SIZEOFINT ) {
                 throw new LuaRuntimeException ( "Only sizeof( int ) = 4 is supported." );
             }
 
-            iSizeOfsize_t = dis.read ();
+            iSizeOfsize_t = chunk.ReadByte ();
             if ( iSizeOfsize_t != LUA_SIZEOFSIZET4 && iSizeOfsize_t != LUA_SIZEOFSIZET8 ) {
                 throw new LuaRuntimeException ( "Only sizeof( size_t ) = 4 is supported." );
             }
 
-            if ( dis.read () != LUA_SIZEOFINSTRUCTION ) {
+            if ( chunk.ReadByte () != LUA_SIZEOFINSTRUCTION ) {
                 throw new LuaRuntimeException ( "Only sizeof( Instruction ) = 4 is supported." );
             }
 
-            if ( dis.read () != LUA_SIZEOFNUMBER ) {
+            if ( chunk.ReadByte () != LUA_SIZEOFNUMBER ) {
                 throw new LuaRuntimeException ( "Only sizeof( Number ) = 4 is supported." );
             }
 
-            if ( dis.read () == 0 ? false : true != LUA_ISINTEGRAL ) {
+            if ( chunk.ReadByte () == 0 ? false : true != LUA_ISINTEGRAL ) {
                 throw new LuaRuntimeException ( "Only sizeof( Integral ) = 4 is supported." );
             }
 
-            LuaFunction luaFunction = new LuaFunction ( dis, bIsLittleEndian, iSizeOfsize_t, "=?" );
+            chunk = new ChunkReader ( aChunk, chunk.GetPosition (), iSizeOfsize_t );
+            LuaFunction luaFunction = new LuaFunction ( chunk, "=?" );
+            if ( chunk.IsComplete () == false ) {
+                throw new LuaRuntimeException ( "Truncated LUAs bytecode file." );
+            }
+            luaFunction.Decode ();
+            if ( prototypeCache.Put ( aChunk, luaFunction ) == true ) {
+                luaFunction = new LuaFunction ( luaFunction, GetGlobalState ().GetSymbols () );
+            }
+            else {
+                luaFunction.SetSymbols ( GetGlobalState ().GetSymbols () );
+            }
             Function function = new Function ( luaFunction, GetEnvironment () );
 
             return function;
         }
-        catch ( IOException ex ) {
-            throw new LuaRuntimeException ( ex.getMessage () == null ? "Not a LUAs bytecode file" : ex.getMessage () );
-        }
-        finally {
-            if ( dis != null ) {
-                try {
-                    dis.close ();
-                }
-                catch ( IOException e ) {
-                    e.printStackTrace ();
-                }
-                finally {
-                    dis = null;
-                }
-            }
-
-            if ( fileConnection != null ) {
-                try {
-                    fileConnection.close ();
-                }
-                catch ( IOException e ) {
-                    e.printStackTrace ();
-                }
-                finally {
-                    fileConnection = null;
-                }
-            }
+        catch ( ArrayIndexOutOfBoundsException ex ) {
+            throw new LuaRuntimeException ( "Truncated LUAs bytecode file." );
         }
     }
 
     public void CloseUpValues ( int iCloseIndex ) {
-        int iLoopIndex = m_LiveUpValues.size ();
-        while (  -- iLoopIndex >= 0 ) {
-            UpValue uv = ( UpValue ) m_LiveUpValues.elementAt ( iLoopIndex );
-            if ( uv.GetIndex () < iCloseIndex ) {
-                return;
-            }
-
+        UpValue uv = this.m_OpenUpValues;
+        while ( uv != null && uv.GetIndex () >= iCloseIndex ) {
+            UpValue next = uv.GetNext ();
             int iIndex = uv.GetIndex ();
             uv.Reset ();
             uv.SetValue ( this.m_ObjectsStack[iIndex] );
-
-            m_LiveUpValues.removeElementAt ( iLoopIndex );
+            uv = next;
         }
+        this.m_OpenUpValues = uv;
     }
 
     public UpValue FindUpValue ( int iScanIndex ) {
-        int iLoopIndex = m_LiveUpValues.size ();
-        while (  -- iLoopIndex >= 0 ) {
-            UpValue uv = ( UpValue ) m_LiveUpValues.elementAt ( iLoopIndex );
-            if ( uv.GetIndex () == iScanIndex ) {
-                return uv;
-            }
-            if ( uv.GetIndex () < iScanIndex ) {
-                break;
-            }
+        UpValue previous = null;
+        UpValue uv = this.m_OpenUpValues;
+        while ( uv != null && uv.GetIndex () > iScanIndex ) {
+            previous = uv;
+            uv = uv.GetNext ();
+        }
+        if ( uv != null && uv.GetIndex () == iScanIndex ) {
+            return uv;
         }
-        UpValue uv = new UpValue ( this, iScanIndex );
 
-        m_LiveUpValues.insertElementAt ( uv, iLoopIndex + 1 );
-        return uv;
+        UpValue newUpValue = new UpValue ( this, iScanIndex );
+        newUpValue.SetNext ( uv );
+        if ( previous == null ) {
+            this.m_OpenUpValues = newUpValue;
+        }
+        else {
+            previous.SetNext ( newUpValue );
+        }
+        return newUpValue;
     }
 
     public int getNCCalls () {
@@ -764,6 +846,45 @@ public class lua_State {
         this.baseCcalls = newBaseCcalls;
     }
 
+    public final lua_State GetResumer () {
+        return this.m_Resumer;
+    }
+
+    public final int GetResumerCalls () {
+        return this.m_iResumerCalls;
+    }
+
+    public final void SetResumer ( lua_State resumer, int iResumerCalls ) {
+        this.m_Resumer = resumer;
+        this.m_iResumerCalls = iResumerCalls;
+    }
+
+    public final boolean IsPreemptible () {
+        return this.m_bPreemptible;
+    }
+
+    public final void SetPreemptible ( boolean bPreemptible ) {
+        this.m_bPreemptible = bPreemptible;
+    }
+
+    public final CoroutineThread GetCoroutineThread () {
+        return this.m_CoroutineThread;
+    }
+
+    public final void SetCoroutineThread ( CoroutineThread coroutineThread ) {
+        this.m_CoroutineThread = coroutineThread;
+    }
+
+    // The state that runs the coroutine of a Lua value
+    public final lua_State GetBody () {
+        return this.m_Body != null ? this.m_Body : this;
+    }
+
+    // The Lua value of the coroutine the state runs
+    public final lua_State GetHandle () {
+        return this.m_CoroutineThread != null ? this.m_CoroutineThread.GetHandle () : this;
+    }
+
     public boolean GetMainThreadFlag () {
         return isMainThread;
     }